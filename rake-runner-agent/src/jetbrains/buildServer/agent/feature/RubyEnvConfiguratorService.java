@@ -2,15 +2,19 @@
 
 package jetbrains.buildServer.agent.feature;
 
+import com.intellij.openapi.util.Pair;
 import com.intellij.util.PathUtil;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import jetbrains.buildServer.RunBuildException;
 import jetbrains.buildServer.agent.*;
 import jetbrains.buildServer.agent.rakerunner.ModifiableRunnerContext;
 import jetbrains.buildServer.agent.rakerunner.RakeTasksBuildService;
 import jetbrains.buildServer.agent.rakerunner.SharedParams;
 import jetbrains.buildServer.agent.rakerunner.SharedParamsType;
+import jetbrains.buildServer.agent.rakerunner.utils.EnvUtil;
 import jetbrains.buildServer.agent.rakerunner.utils.EnvironmentPatchableMap;
 import jetbrains.buildServer.agent.rakerunner.utils.RubySDKUtil;
 import jetbrains.buildServer.agent.ruby.RubySdk;
@@ -23,6 +27,7 @@ import jetbrains.buildServer.feature.RubyEnvConfiguratorConstants;
 import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.plugins.ruby.rvm.RVMPathsSettings;
 import org.jetbrains.plugins.ruby.rvm.RVMSupportUtil;
 
@@ -34,15 +39,51 @@ public class RubyEnvConfiguratorService implements BuildRunnerPrecondition {
 
   public static final String ENVS_TO_UNSET_PARAM = "teamcity.ruby.env.conf.feature.envs.to.unset";
 
+  // sdks configured for running build steps, key is build id and runner id
+  private static final Map<String, Pair<RubySdk, Map<String, String>>> ourConfiguredSdks =
+    new ConcurrentHashMap<String, Pair<RubySdk, Map<String, String>>>();
+
   public RubyEnvConfiguratorService(@NotNull final EventDispatcher<AgentLifeCycleListener> dispatcher) {
     dispatcher.addListener(new AgentLifeCycleAdapter() {
+      @Override
+      public void runnerFinished(@NotNull final BuildRunnerContext runner, @NotNull final BuildFinishedStatus status) {
+        ourConfiguredSdks.remove(getRunnerKey(runner));
+      }
+
       @Override
       public void buildFinished(@NotNull final AgentRunningBuild build, @NotNull final BuildFinishedStatus buildStatus) {
-        RVMRCBasedRubySdkImpl.clearCache();
+        final String prefix = build.getBuildId() + ":";
+        for (String key : ourConfiguredSdks.keySet()) {
+          if (key.startsWith(prefix)) {
+            ourConfiguredSdks.remove(key);
+          }
+        }
       }
     });
   }
 
+  /**
+   * @return sdk created and set up by build feature for given build step
+   * or null if feature isn't enabled or environment was changed after configuring
+   */
+  @Nullable
+  public static RubySdk getConfiguredSdk(@NotNull final BuildRunnerContext context) {
+    final Pair<RubySdk, Map<String, String>> configured = ourConfiguredSdks.get(getRunnerKey(context));
+    if (configured == null) {
+      return null;
+    }
+    final Map<String, String> current = context.getBuildParameters().getEnvironmentVariables();
+    if (!EnvUtil.getRubyRelevantEnvMap(configured.second).equals(EnvUtil.getRubyRelevantEnvMap(current))) {
+      return null;
+    }
+    return configured.first;
+  }
+
+  @NotNull
+  private static String getRunnerKey(@NotNull final BuildRunnerContext context) {
+    return context.getBuild().getBuildId() + ":" + context.getId();
+  }
+
   public void canStart(@NotNull final BuildRunnerContext context) throws RunBuildException {
     // check if feature is enabled
     final Collection<AgentBuildFeature> features =
@@ -94,6 +135,8 @@ public class RubyEnvConfiguratorService implements BuildRunnerPrecondition {
     if (sdk instanceof RVMRCBasedRubySdkImpl) {
       RVMRCBasedRubySdkImpl.cache(sdk, newEnv, ((RVMRCBasedRubySdkImpl)sdk).getPathToRVMRCFolder());
     }
+    // hand sdk over to build runner, so it won't be created and set up again
+    ourConfiguredSdks.put(getRunnerKey(context), Pair.<RubySdk, Map<String, String>>create(sdk, new HashMap<String, String>(newEnv)));
   }
 
   protected EnvironmentPatchableMap patchRunnerEnvironment(@NotNull final BuildRunnerContext context,
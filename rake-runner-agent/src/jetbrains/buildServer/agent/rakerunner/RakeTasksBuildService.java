@@ -6,6 +6,7 @@ import java.io.File;
 import java.util.*;
 import jetbrains.buildServer.RunBuildException;
 import jetbrains.buildServer.agent.BuildRunnerContext;
+import jetbrains.buildServer.agent.feature.RubyEnvConfiguratorService;
 import jetbrains.buildServer.agent.rakerunner.utils.*;
 import jetbrains.buildServer.agent.ruby.RubySdk;
 import jetbrains.buildServer.agent.ruby.SdkUtil;
@@ -74,7 +75,7 @@ public class RakeTasksBuildService extends BuildServiceAdapter implements RakeRu
       shared.applyToParameters(runParams);
 
       // Sdk
-      final RubySdk sdk = RubySDKUtil.createAndSetupSdk(runParams, context);
+      final RubySdk sdk = getOrCreateSdk(interpreterConfigMode, rubyEnvAlreadyConfigured, runParams, context);
 
 
       if (!(interpreterConfigMode == RakeRunnerUtils.RubyConfigMode.DEFAULT && rubyEnvAlreadyConfigured)) {
@@ -162,7 +163,7 @@ public class RakeTasksBuildService extends BuildServiceAdapter implements RakeRu
 
       // Bundle exec emulation:
       // (do not do it before RVM Env patch!!!!!!)
-      BundlerUtil.enableBundleExecEmulationIfNeeded(sdk, mc);
+      BundlerUtil.enableBundleExecEmulationIfNeeded(sdk, mc, getLogger());
 
 
       // Result:
@@ -181,6 +182,21 @@ public class RakeTasksBuildService extends BuildServiceAdapter implements RakeRu
     }
   }
 
+  @NotNull
+  private static RubySdk getOrCreateSdk(@NotNull final RakeRunnerUtils.RubyConfigMode interpreterConfigMode,
+                                        final boolean rubyEnvAlreadyConfigured,
+                                        @NotNull final Map<String, String> runParams,
+                                        @NotNull final BuildRunnerContext context) throws MyBuildFailureException, RunBuildException {
+    if (interpreterConfigMode == RakeRunnerUtils.RubyConfigMode.DEFAULT && rubyEnvAlreadyConfigured) {
+      // already set up by Ruby Environment Configurator for this step
+      final RubySdk configured = RubyEnvConfiguratorService.getConfiguredSdk(context);
+      if (configured != null) {
+        return configured;
+      }
+    }
+    return RubySDKUtil.createAndSetupSdk(runParams, context);
+  }
+
   private void validateRunnerParams(@NotNull final RakeRunnerUtils.RubyConfigMode interpreterConfigMode,
                                     @NotNull final Map<String, String> runParams,
                                     @NotNull final SharedParams sharedParams) throws MyBuildFailureException {
@@ -6,6 +6,7 @@ import com.intellij.openapi.util.Pair;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import jetbrains.buildServer.ExecResult;
@@ -16,15 +17,19 @@ import jetbrains.buildServer.agent.rakerunner.utils.EnvironmentPatchableMap;
 import jetbrains.buildServer.agent.rakerunner.utils.FileUtil2;
 import jetbrains.buildServer.agent.rakerunner.utils.InternalRubySdkUtil;
 import jetbrains.buildServer.agent.ruby.RubySdk;
+import jetbrains.buildServer.agent.ruby.RubySdkRegistry;
 import jetbrains.buildServer.agent.ruby.impl.RubySdkImpl;
 import jetbrains.buildServer.agent.ruby.rbenv.InstalledRbEnv;
 import jetbrains.buildServer.agent.ruby.rbenv.RbEnvPathsSettings;
 import jetbrains.buildServer.agent.ruby.rbenv.RbEnvRubySdk;
+import jetbrains.buildServer.agent.ruby.rvm.RVMGemsetCreator;
 import jetbrains.buildServer.agent.ruby.rvm.impl.RVMRCBasedRubySdkImpl;
 import jetbrains.buildServer.agent.ruby.rvm.impl.RVMRubySdkImpl;
+import jetbrains.buildServer.agent.ruby.rvm.util.RVMUtil;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.jetbrains.plugins.ruby.rvm.RVMPathsSettings;
 import org.jetbrains.plugins.ruby.rvm.RVMSupportUtil;
 
@@ -51,7 +56,8 @@ public enum SharedParamsType {
     public RubySdk createSdk(@NotNull final BuildRunnerContext context,
                              @NotNull final SharedParams sharedParams)
       throws RakeTasksBuildService.MyBuildFailureException {
-      return new RubySdkImpl(findSystemInterpreterExecutable(context.getBuildParameters().getEnvironmentVariables()), true);
+      final Map<String, String> env = context.getBuildParameters().getEnvironmentVariables();
+      return getSystemSdk(findSystemInterpreterExecutable(env), env);
     }
   },
   INTERPRETER_PATH("intpath") {
@@ -65,7 +71,14 @@ public enum SharedParamsType {
         return DEFAULT.createSdk(context, sharedParams);
       }
       InternalRubySdkUtil.checkInterpreterPathValid(path);
-      return new RubySdkImpl(new File(path), false);
+      return RubySdkRegistry.getInstance().getOrCreate(
+        "path", path, context.getBuildParameters().getEnvironmentVariables(), Collections.<File>emptyList(),
+        new RubySdkRegistry.SdkFactory() {
+          @NotNull
+          public RubySdk createSdk() {
+            return new RubySdkImpl(new File(path), false);
+          }
+        });
     }
   },
   RVM("rvmsdk") {
@@ -78,11 +91,19 @@ public enum SharedParamsType {
 
       // at first lets check that it isn't "system" interpreter
       if (RVMSupportUtil.isSystemRuby(sdkName)) {
-        final EnvironmentPatchableMap env = new EnvironmentPatchableMap(context.getBuildParameters().getEnvironmentVariables());
-        final Map<String, String> patched = RVMSupportUtil.patchEnvForRVMIfNecessary2(sdkName, env);
-        final RubySdk sdk = new RVMRubySdkImpl(findSystemInterpreterExecutable(patched));
-        sdk.setup(patched);
-        return sdk;
+        final Map<String, String> original = context.getBuildParameters().getEnvironmentVariables();
+        return RubySdkRegistry.getInstance().getOrCreate(
+          "rvm", sdkName, original, Collections.<File>emptyList(),
+          new RubySdkRegistry.SdkFactory() {
+            @NotNull
+            public RubySdk createSdk() throws RakeTasksBuildService.MyBuildFailureException {
+              final EnvironmentPatchableMap env = new EnvironmentPatchableMap(original);
+              final Map<String, String> patched = RVMSupportUtil.patchEnvForRVMIfNecessary2(sdkName, env);
+              final RubySdk sdk = new RVMRubySdkImpl(findSystemInterpreterExecutable(patched));
+              sdk.setup(patched);
+              return sdk;
+            }
+          });
       }
 
       // build  dist/gemsets table, match ref with dist. name
@@ -99,22 +120,24 @@ public enum SharedParamsType {
         }
         if (suitable.second == null && !StringUtil.isEmptyOrSpaces(gemset)) {
           if (sharedParams.isRVMGemsetCreate()) {
-            // Creating gemset
-            final ShellScriptRunner scriptRunner = new BashShellScriptRunner();
-            final ExecResult output = scriptRunner.run(". $rvm_path/scripts/rvm && rvm use --create " + suitable.first + "@" + gemset,
-              context.getWorkingDirectory().getAbsolutePath(),
-              context.getBuildParameters().getEnvironmentVariables());
-            //noinspection ThrowableResultOfMethodCallIgnored
-            if (output.getExitCode() != 0 || output.getException() != null) {
-              throw new RakeTasksBuildService.MyBuildFailureException("Failed to create gemset '" + gemset + "':" + output);
+            // Creating gemset, RVM is used only if gemset files cannot be created directly
+            if (!RVMGemsetCreator.createGemset(RVMPathsSettings.getRVMNullSafe(), suitable.first, gemset)) {
+              final ShellScriptRunner scriptRunner = new BashShellScriptRunner();
+              final ExecResult output = scriptRunner.run(". $rvm_path/scripts/rvm && rvm use --create " + suitable.first + "@" + gemset,
+                context.getWorkingDirectory().getAbsolutePath(),
+                context.getBuildParameters().getEnvironmentVariables());
+              //noinspection ThrowableResultOfMethodCallIgnored
+              if (output.getExitCode() != 0 || output.getException() != null) {
+                throw new RakeTasksBuildService.MyBuildFailureException("Failed to create gemset '" + gemset + "':" + output);
+              }
             }
-            return new RVMRubySdkImpl(home, suitable.first, gemset);
+            return getRVMSdk(context, home, suitable.first, gemset);
           } else {
             throw new RakeTasksBuildService.MyBuildFailureException(String.format("Gemset '%s' isn't defined for RVM interpreter '%s'. " +
               "You may enable 'Create gemset if not exist' option in Ruby Environment Configurator build feature.", gemset, sdkName));
           }
         }
-        return new RVMRubySdkImpl(home, suitable.first, suitable.second);
+        return getRVMSdk(context, home, suitable.first, suitable.second);
       }
     }
   },
@@ -163,9 +186,12 @@ public enum SharedParamsType {
           new FileNotFoundException(version.getAbsolutePath()), false);
       }
 
-      //final File gemset = new File(p, ".ruby-gemset");
+      final RubySdk sdk = getRubyVersionBasedRVMSdk(context, version, new File(p, ".ruby-gemset"));
+      if (sdk != null) {
+        return sdk;
+      }
 
-      // Create SDK
+      // Create SDK, rvm will resolve the files itself
       return RVMRCBasedRubySdkImpl.getOrCreate(p.getAbsolutePath(), context.getBuildParameters().getEnvironmentVariables());
     }
   },
@@ -186,13 +212,13 @@ public enum SharedParamsType {
         final EnvironmentPatchableMap env = new EnvironmentPatchableMap(context.getBuildParameters().getEnvironmentVariables());
         env.put(RBENV_VERSION_ENV_VARIABLE, version);
         final File executable = findSystemInterpreterExecutable(env);
-        return new RubySdkImpl(executable, true);
+        return getSystemSdk(executable, context.getBuildParameters().getEnvironmentVariables());
       } else {
         if (!rbEnv.isVersionInstalled(version)) {
           throw new RakeTasksBuildService.MyBuildFailureException(
             "Specified Ruby interpreter version '" + version + "' isn't installed in rbenv");
         }
-        return new RbEnvRubySdk(rbEnv.getInterpreterHome(version), version, rbEnv);
+        return getRbEnvSdk(context, rbEnv, version);
       }
     }
   },
@@ -246,17 +272,94 @@ public enum SharedParamsType {
         final EnvironmentPatchableMap env = new EnvironmentPatchableMap(context.getBuildParameters().getEnvironmentVariables());
         env.put(RBENV_VERSION_ENV_VARIABLE, version);
         final File executable = findSystemInterpreterExecutable(env);
-        return new RubySdkImpl(executable, true);
+        return getSystemSdk(executable, context.getBuildParameters().getEnvironmentVariables());
       } else {
         if (!rbEnv.isVersionInstalled(version)) {
           throw new RakeTasksBuildService.MyBuildFailureException(
             "Specified Ruby interpreter version '" + version + "' isn't installed in rbenv");
         }
-        return new RbEnvRubySdk(rbEnv.getInterpreterHome(version), version, rbEnv);
+        return getRbEnvSdk(context, rbEnv, version);
       }
     }
   };
 
+  @NotNull
+  private static RubySdk getSystemSdk(@NotNull final File executable, @NotNull final Map<String, String> env)
+    throws RakeTasksBuildService.MyBuildFailureException {
+    return RubySdkRegistry.getInstance().getOrCreate(
+      "system", executable.getAbsolutePath(), env, Collections.<File>emptyList(),
+      new RubySdkRegistry.SdkFactory() {
+        @NotNull
+        public RubySdk createSdk() {
+          return new RubySdkImpl(executable, true);
+        }
+      });
+  }
+
+  @NotNull
+  private static RubySdk getRVMSdk(@NotNull final BuildRunnerContext context,
+                                   @NotNull final File home,
+                                   @NotNull final String name,
+                                   @Nullable final String gemset) throws RakeTasksBuildService.MyBuildFailureException {
+    return RubySdkRegistry.getInstance().getOrCreate(
+      "rvm", gemset == null ? name : name + RVMSupportUtil.getGemsetSeparator() + gemset, context.getBuildParameters().getEnvironmentVariables(),
+      Collections.<File>emptyList(),
+      new RubySdkRegistry.SdkFactory() {
+        @NotNull
+        public RubySdk createSdk() {
+          return new RVMRubySdkImpl(home, name, gemset);
+        }
+      });
+  }
+
+  /**
+   * Resolves '.ruby-version' and '.ruby-gemset' using RVM names and gemsets indexes without launching rvm
+   *
+   * @return sdk or null if files should be resolved by rvm
+   */
+  @Nullable
+  private static RubySdk getRubyVersionBasedRVMSdk(@NotNull final BuildRunnerContext context,
+                                                   @NotNull final File version,
+                                                   @NotNull final File gemset) throws RakeTasksBuildService.MyBuildFailureException {
+    if (RVMPathsSettings.getInstance().getRVM() == null) {
+      return null;
+    }
+    final Pair<String, String> requested;
+    try {
+      requested = RVMUtil.parseRubyVersionFiles(FileUtil.readText(version), gemset.isFile() ? FileUtil.readText(gemset) : null);
+    } catch (IOException e) {
+      return null;
+    }
+    if (requested == null || RVMSupportUtil.isSystemRuby(requested.first)) {
+      return null;
+    }
+    final Pair<String, String> suitable = RVMSupportUtil.determineSuitableRVMSdkDist(requested.first, requested.second);
+    // rvm creates missing gemset, so it's used in such case
+    if (suitable.first == null || (requested.second != null && suitable.second == null)) {
+      return null;
+    }
+    final File home = RVMPathsSettings.getRVMNullSafe().getHomeForVersionName(suitable.first);
+    if (home == null) {
+      return null;
+    }
+    return getRVMSdk(context, home, suitable.first, suitable.second);
+  }
+
+  @NotNull
+  private static RubySdk getRbEnvSdk(@NotNull final BuildRunnerContext context,
+                                     @NotNull final InstalledRbEnv rbEnv,
+                                     @NotNull final String version) throws RakeTasksBuildService.MyBuildFailureException {
+    final File home = rbEnv.getInterpreterHome(version);
+    return RubySdkRegistry.getInstance().getOrCreate(
+      "rbenv", home.getAbsolutePath(), context.getBuildParameters().getEnvironmentVariables(), Collections.<File>emptyList(),
+      new RubySdkRegistry.SdkFactory() {
+        @NotNull
+        public RubySdk createSdk() {
+          return new RbEnvRubySdk(home, version, rbEnv);
+        }
+      });
+  }
+
   private final String myValue;
 
   SharedParamsType(@NotNull final String value) {
@@ -0,0 +1,265 @@
+package jetbrains.buildServer.agent.rakerunner.bundler;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.agent.rakerunner.RakeTasksBuildService;
+import jetbrains.buildServer.agent.rakerunner.utils.TextUtil;
+import jetbrains.buildServer.agent.ruby.RubySdk;
+import jetbrains.buildServer.agent.ruby.impl.RubyScriptDaemons;
+import jetbrains.buildServer.rakerunner.RakeRunnerConstants;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Agent-local content-addressed store of installed bundles.
+ * Bundle folder is addressed by Gemfile.lock content, interpreter fingerprint (ABI of native extensions) and its platform.
+ * Bundle is restored from store by copying, if store is empty bundle is installed incrementally into bundle folder
+ * and then copied to store,
+ * so builds modifying bundle folder never affect stored bundles.
+ * Only {@link #MAX_STORED_BUNDLES} least recently used bundles are kept.
+ */
+public class BundleCache {
+  private static final Logger LOG = Logger.getInstance(BundleCache.class.getName());
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final String CACHE_DIRECTORY_NAME = "ruby.bundles";
+  private static final String BUNDLE_FOLDER_NAME = "bundle";
+  static final String KEY_FILE_NAME = ".teamcity-bundle-key";
+  static final int MAX_STORED_BUNDLES = 16;
+  // keeps folder managed by cache while it is being installed, never matches real key
+  private static final String INCOMPLETE_KEY = "incomplete";
+  private static final String[] RELEVANT_ENV_VARIABLES = new String[]{"BUNDLE_WITH", "BUNDLE_WITHOUT"};
+  private static final String INSTALL_SCRIPT =
+    "ARGV.replace(['install'])\n" +
+    "load ENV['BUNDLE_BIN_PATH']\n";
+
+  @NotNull
+  private final File myCacheDirectory;
+
+  public BundleCache(@NotNull final BuildAgentConfiguration configuration) {
+    this(configuration.getCacheDirectory(CACHE_DIRECTORY_NAME));
+  }
+
+  BundleCache(@NotNull final File cacheDirectory) {
+    myCacheDirectory = cacheDirectory;
+  }
+
+  /**
+   * @return whether bundle folder was restored or installed by cache
+   */
+  public static boolean isRestored(@NotNull final File bundleFolder) {
+    return new File(bundleFolder, KEY_FILE_NAME).isFile();
+  }
+
+  /**
+   * Makes bundle folder match Gemfile.lock: restores it from store or installs bundle and stores it.
+   * Folders not created by this cache (without key file) are left as is.
+   *
+   * @param bundleFolder BUNDLE_PATH folder
+   * @param env          environment with BUNDLE_BIN_PATH and BUNDLE_GEMFILE
+   * @return true if bundle folder is managed by cache and matches Gemfile.lock, false if cache wasn't used
+   */
+  public synchronized boolean restoreOrInstall(@NotNull final RubySdk sdk,
+                                               @NotNull final String gemfilePath,
+                                               @NotNull final File bundleFolder,
+                                               @NotNull final Map<String, String> env)
+    throws RakeTasksBuildService.MyBuildFailureException {
+    final File gemfile = new File(gemfilePath);
+    final File lockfile = new File(gemfile.getParentFile(), gemfile.getName() + ".lock");
+    if (!lockfile.isFile()) {
+      LOG.info("Bundler lock file " + lockfile + " not found, bundle cache isn't used");
+      return false;
+    }
+
+    final String key;
+    try {
+      key = getKey(sdk, lockfile, env);
+    } catch (IOException e) {
+      LOG.warn("Failed to compute bundle key of " + lockfile + ": " + e.toString());
+      return false;
+    }
+    final String current = readKey(bundleFolder);
+    final File entry = new File(myCacheDirectory, key);
+    if (key.equals(current)) {
+      touch(entry);
+      return true;
+    }
+    if (current == null && bundleFolder.exists()) {
+      LOG.info("Bundle folder " + bundleFolder + " wasn't restored from cache, leaving it as is");
+      return false;
+    }
+
+    final File stored = new File(entry, BUNDLE_FOLDER_NAME);
+    if (!stored.isDirectory()) {
+      // bundler reuses gems already installed into folder, e.g. when one gem is updated in Gemfile.lock
+      install(sdk, gemfile, bundleFolder, env);
+      try {
+        store(bundleFolder, stored);
+      } catch (IOException e) {
+        LOG.warn("Failed to store bundle " + bundleFolder + " in cache: " + e.toString());
+      }
+      writeKey(bundleFolder, key);
+      evict(myCacheDirectory, MAX_STORED_BUNDLES);
+      return true;
+    }
+
+    final File staging = new File(bundleFolder.getParentFile(), bundleFolder.getName() + ".tmp-" + System.nanoTime());
+    try {
+      copyTree(stored.toPath(), staging.toPath());
+      writeKey(staging, key);
+      FileUtil.delete(bundleFolder);
+      Files.move(staging.toPath(), bundleFolder.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      LOG.info("Bundle " + bundleFolder + " restored from cache " + stored);
+      touch(entry);
+    } catch (IOException e) {
+      LOG.warn("Failed to restore bundle " + bundleFolder + " from cache: " + e.toString());
+      install(sdk, gemfile, bundleFolder, env);
+      writeKey(bundleFolder, key);
+    } finally {
+      FileUtil.delete(staging);
+    }
+    return true;
+  }
+
+  private void store(@NotNull final File bundleFolder, @NotNull final File stored) throws IOException {
+    final File staging = new File(stored.getParentFile(), stored.getName() + ".tmp-" + System.nanoTime());
+    try {
+      copyTree(bundleFolder.toPath(), staging.toPath());
+      Files.move(staging.toPath(), stored.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      FileUtil.delete(staging);
+    }
+  }
+
+  /**
+   * Installs bundle into folder, folder keeps incomplete key until caller writes real one
+   */
+  private static void install(@NotNull final RubySdk sdk,
+                              @NotNull final File gemfile,
+                              @NotNull final File bundleFolder,
+                              @NotNull final Map<String, String> env) throws RakeTasksBuildService.MyBuildFailureException {
+    //noinspection ResultOfMethodCallIgnored
+    bundleFolder.mkdirs();
+    writeKey(bundleFolder, INCOMPLETE_KEY);
+    final Map<String, String> installEnv = new HashMap<String, String>(env);
+    installEnv.remove(RakeRunnerConstants.RUBYOPT_ENVIRONMENT_VARIABLE);
+    installEnv.put("BUNDLE_PATH", bundleFolder.getAbsolutePath());
+    // bundler must not be loaded into shared interpreter
+    final ExecResult result = RubyScriptDaemons.getProcessRunner(sdk).run(INSTALL_SCRIPT, gemfile.getParentFile().getAbsolutePath(), installEnv);
+    //noinspection ThrowableResultOfMethodCallIgnored
+    if (result == null || result.getExitCode() != 0 || result.getException() != null) {
+      final String output = result != null ? result.getStdout() + "\n" + result.getStderr() : "";
+      final String msg = "Failed to install bundle into '" + bundleFolder + "':\n" + output;
+      throw new RakeTasksBuildService.MyBuildFailureException(msg);
+    }
+    LOG.info("Bundle installed into " + bundleFolder);
+  }
+
+  /**
+   * Copies folder tree preserving symbolic links, key file of bundle folder isn't copied
+   */
+  static void copyTree(@NotNull final Path from, @NotNull final Path to) throws IOException {
+    Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+        Files.createDirectories(to.resolve(from.relativize(dir)));
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) throws IOException {
+        final Path target = to.resolve(from.relativize(file));
+        if (attrs.isSymbolicLink()) {
+          Files.createSymbolicLink(target, Files.readSymbolicLink(file));
+        } else if (!(KEY_FILE_NAME.equals(file.getFileName().toString()) && file.getParent().equals(from))) {
+          Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  /**
+   * Removes least recently used stored bundles above limit and leftovers of interrupted stores
+   */
+  static void evict(@NotNull final File cacheDirectory, final int maxBundles) {
+    final File[] entries = cacheDirectory.listFiles();
+    if (entries == null) {
+      return;
+    }
+    final List<File> bundles = new ArrayList<File>();
+    for (File entry : entries) {
+      if (new File(entry, BUNDLE_FOLDER_NAME).isDirectory()) {
+        bundles.add(entry);
+      } else {
+        FileUtil.delete(entry);
+      }
+    }
+    if (bundles.size() <= maxBundles) {
+      return;
+    }
+    Collections.sort(bundles, new Comparator<File>() {
+      public int compare(final File o1, final File o2) {
+        final long m1 = o1.lastModified();
+        final long m2 = o2.lastModified();
+        return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+      }
+    });
+    for (File entry : bundles.subList(0, bundles.size() - maxBundles)) {
+      LOG.info("Removing least recently used bundle " + entry + " from cache");
+      FileUtil.delete(entry);
+    }
+  }
+
+  private static void touch(@NotNull final File entry) {
+    //noinspection ResultOfMethodCallIgnored
+    entry.setLastModified(System.currentTimeMillis());
+  }
+
+  @NotNull
+  private static String getKey(@NotNull final RubySdk sdk,
+                               @NotNull final File lockfile,
+                               @NotNull final Map<String, String> env) throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(new String(Files.readAllBytes(lockfile.toPath()), UTF8));
+    // interpreter rebuilt in place (e.g. against new openssl) must not reuse native extensions
+    final File executable = sdk.getRubyExecutable().getCanonicalFile();
+    sb.append('|').append(executable.getPath()).append('|').append(executable.length()).append('|').append(executable.lastModified());
+    sb.append('|').append(sdk.getVersion()).append('|').append(sdk.isJRuby());
+    // RbConfig arch of interpreter, not of agent JVM
+    sb.append('|').append(sdk.getPlatform());
+    for (String name : RELEVANT_ENV_VARIABLES) {
+      sb.append('|').append(name).append('=').append(env.get(name));
+    }
+    return TextUtil.sha1(sb.toString());
+  }
+
+  @Nullable
+  private static String readKey(@NotNull final File bundleFolder) {
+    final File file = new File(bundleFolder, KEY_FILE_NAME);
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      return new String(Files.readAllBytes(file.toPath()), UTF8).trim();
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private static void writeKey(@NotNull final File bundleFolder, @NotNull final String key) {
+    try {
+      Files.write(new File(bundleFolder, KEY_FILE_NAME).toPath(), key.getBytes(UTF8));
+    } catch (IOException e) {
+      LOG.warn("Failed to write bundle key in " + bundleFolder + ": " + e.toString());
+    }
+  }
+}
@@ -0,0 +1,210 @@
+package jetbrains.buildServer.agent.rakerunner.bundler;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.agent.rakerunner.utils.TextUtil;
+import jetbrains.buildServer.agent.ruby.RubySdk;
+import jetbrains.buildServer.agent.ruby.impl.RubyScriptDaemons;
+import jetbrains.buildServer.rakerunner.RakeRunnerConstants;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Agent-local cache of precomputed 'bundler/setup' replacements.
+ * Script is generated once per Gemfile.lock content, interpreter and bundler settings:
+ * it adds load path resolved by bundler, like 'bundler/setup.rb' generated by 'bundle install --standalone' does,
+ * so processes started by build don't resolve bundle on each start.
+ */
+public class BundlerSetupCache {
+  private static final Logger LOG = Logger.getInstance(BundlerSetupCache.class.getName());
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final String CACHE_DIRECTORY_NAME = "ruby.bundler.setup";
+  public static final String SETUP_SCRIPT_NAME = "teamcity_bundler_setup";
+  private static final String LOAD_PATH_FILE_NAME = "load_path.txt";
+  private static final String LOAD_PATH_MARKER = "##teamcity-bundler-load-path";
+  private static final String[] RELEVANT_ENV_VARIABLES = new String[]{
+    "GEM_HOME", "GEM_PATH", "BUNDLE_PATH", "BUNDLE_WITH", "BUNDLE_WITHOUT", "BUNDLE_APP_CONFIG", "RUBYLIB"
+  };
+  private static final String LOAD_PATH_SCRIPT =
+    "before = $LOAD_PATH.dup\n" +
+    "require 'bundler/setup'\n" +
+    "puts '" + LOAD_PATH_MARKER + "'\n" +
+    "puts(($LOAD_PATH - before).map { |p| File.expand_path(p) })\n";
+
+  @NotNull
+  private final File myCacheDirectory;
+
+  public BundlerSetupCache(@NotNull final BuildAgentConfiguration configuration) {
+    myCacheDirectory = configuration.getCacheDirectory(CACHE_DIRECTORY_NAME);
+  }
+
+  /**
+   * @param sdk         interpreter
+   * @param gemfilePath Gemfile bundle is resolved for
+   * @param env         environment with bundler settings, but without 'bundler/setup' attached
+   * @return folder containing {@link #SETUP_SCRIPT_NAME} script or null if it cannot be generated
+   */
+  @Nullable
+  public synchronized File getSetupScriptFolder(@NotNull final RubySdk sdk,
+                                                @NotNull final String gemfilePath,
+                                                @NotNull final Map<String, String> env) {
+    final File gemfile = new File(gemfilePath);
+    final File lockfile = new File(gemfile.getParentFile(), gemfile.getName() + ".lock");
+    if (!lockfile.isFile()) {
+      LOG.info("Bundler lock file " + lockfile + " not found, bundler/setup will be used");
+      return null;
+    }
+
+    final File folder;
+    try {
+      folder = new File(myCacheDirectory, TextUtil.sha1(getKey(sdk, gemfile, lockfile, env)));
+    } catch (IOException e) {
+      LOG.warn("Failed to read " + lockfile + ": " + e.toString());
+      return null;
+    }
+    if (isValid(folder)) {
+      return folder;
+    }
+
+    final List<String> loadPath = computeLoadPath(sdk, gemfile, env);
+    if (loadPath == null) {
+      return null;
+    }
+    try {
+      write(folder, loadPath, gemfile);
+    } catch (IOException e) {
+      LOG.warn("Failed to store bundler setup script in " + folder + ": " + e.toString());
+      FileUtil.delete(folder);
+      return null;
+    }
+    return folder;
+  }
+
+  @NotNull
+  private static String getKey(@NotNull final RubySdk sdk,
+                               @NotNull final File gemfile,
+                               @NotNull final File lockfile,
+                               @NotNull final Map<String, String> env) throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(sdk.getRubyExecutable().getAbsolutePath()).append('|').append(sdk.getName());
+    sb.append('|').append(gemfile.getAbsolutePath());
+    sb.append('|').append(TextUtil.sha1(new String(Files.readAllBytes(lockfile.toPath()), UTF8)));
+    final File config = new File(gemfile.getParentFile(), ".bundle" + File.separator + "config");
+    if (config.isFile()) {
+      sb.append('|').append(TextUtil.sha1(new String(Files.readAllBytes(config.toPath()), UTF8)));
+    }
+    for (String name : RELEVANT_ENV_VARIABLES) {
+      sb.append('|').append(name).append('=').append(env.get(name));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Entry is valid while all folders it adds to load path exist, i.e. gems weren't removed
+   */
+  static boolean isValid(@NotNull final File folder) {
+    final File loadPathFile = new File(folder, LOAD_PATH_FILE_NAME);
+    if (!loadPathFile.isFile() || !new File(folder, SETUP_SCRIPT_NAME + ".rb").isFile()) {
+      return false;
+    }
+    try {
+      final List<String> loadPath = Files.readAllLines(loadPathFile.toPath(), UTF8);
+      if (loadPath.isEmpty()) {
+        return false;
+      }
+      for (String path : loadPath) {
+        if (!new File(path).isDirectory()) {
+          LOG.info("Bundler load path entry " + path + " doesn't exist anymore, setup script will be regenerated");
+          return false;
+        }
+      }
+    } catch (IOException e) {
+      return false;
+    }
+    return true;
+  }
+
+  @Nullable
+  private static List<String> computeLoadPath(@NotNull final RubySdk sdk,
+                                              @NotNull final File gemfile,
+                                              @NotNull final Map<String, String> env) {
+    final Map<String, String> probeEnv = new HashMap<String, String>(env);
+    // options like test-unit load path hacks aren't needed to resolve bundle
+    probeEnv.remove(RakeRunnerConstants.RUBYOPT_ENVIRONMENT_VARIABLE);
+    // 'bundler/setup' changes interpreter state, so it must not be loaded into shared interpreter
+    final ExecResult result = RubyScriptDaemons.getProcessRunner(sdk).run(LOAD_PATH_SCRIPT, gemfile.getParentFile().getAbsolutePath(), probeEnv);
+    //noinspection ThrowableResultOfMethodCallIgnored
+    if (result.getExitCode() != 0 || result.getException() != null) {
+      LOG.warn("Failed to compute bundler load path, bundler/setup will be used: " + result);
+      return null;
+    }
+    final List<String> lines = Arrays.asList(result.getStdout().split("\r?\n"));
+    final int marker = lines.indexOf(LOAD_PATH_MARKER);
+    if (marker < 0) {
+      LOG.warn("Unexpected output of bundler load path script, bundler/setup will be used: " + result);
+      return null;
+    }
+    final List<String> loadPath = new ArrayList<String>();
+    for (String line : lines.subList(marker + 1, lines.size())) {
+      if (line.length() > 0) {
+        loadPath.add(line);
+      }
+    }
+    if (loadPath.isEmpty()) {
+      LOG.warn("Bundler load path script reported no load path entries, bundler/setup will be used: " + result);
+      return null;
+    }
+    return loadPath;
+  }
+
+  static void write(@NotNull final File folder,
+                    @NotNull final List<String> loadPath,
+                    @NotNull final File gemfile) throws IOException {
+    final StringBuilder script = new StringBuilder();
+    script.append("# Generated by TeamCity from ").append(gemfile.getName()).append(".lock, replaces 'bundler/setup'\n");
+    script.append("paths = [\n");
+    for (String path : loadPath) {
+      script.append("  ").append(toRubyString(path)).append(",\n");
+    }
+    script.append("].reject { |p| $LOAD_PATH.include?(p) }\n");
+    // bundler inserts gems before site_ruby folders, after -I and RUBYLIB entries
+    script.append("index = defined?(Gem) && Gem.respond_to?(:load_path_insert_index) ? (Gem.load_path_insert_index || 0) : 0\n");
+    script.append("$LOAD_PATH.insert(index, *paths)\n");
+    script.append("ENV['BUNDLE_GEMFILE'] ||= ").append(toRubyString(gemfile.getAbsolutePath())).append("\n");
+
+    if (!folder.isDirectory() && !folder.mkdirs()) {
+      throw new IOException("Cannot create directory " + folder);
+    }
+    // load path file is written last: entry without it is invalid
+    writeAtomically(new File(folder, SETUP_SCRIPT_NAME + ".rb"), script.toString());
+    final StringBuilder list = new StringBuilder();
+    for (String path : loadPath) {
+      list.append(path).append('\n');
+    }
+    writeAtomically(new File(folder, LOAD_PATH_FILE_NAME), list.toString());
+  }
+
+  private static void writeAtomically(@NotNull final File file, @NotNull final String content) throws IOException {
+    final File temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+    try {
+      Files.write(temp.toPath(), content.getBytes(UTF8));
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      FileUtil.delete(temp);
+    }
+  }
+
+  @NotNull
+  static String toRubyString(@NotNull final String value) {
+    return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+  }
+}
@@ -0,0 +1,181 @@
+package jetbrains.buildServer.agent.rakerunner.bundler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Specs of Gemfile.lock sections 'GEM' and 'GIT' in form sufficient to find installed gem folders.
+ * Gems of 'PATH' sections are part of project sources and aren't reported.
+ */
+public class GemfileLock {
+  private static final Pattern SPEC_PATTERN = Pattern.compile("^ {4}(\\S+) \\(([^)]+)\\)$");
+  private static final Pattern EOL_PATTERN = Pattern.compile("\r?\n");
+  private static final Pattern OPTION_PATTERN = Pattern.compile("^ {2}(\\w+): (.*)$");
+  private static final int GIT_REVISION_LENGTH = 12;
+  private static final Pattern OS_VERSION_PATTERN = Pattern.compile("^(\\D+?)(\\d+(?:\\.\\d+)*)$");
+
+  public static class Spec {
+    @NotNull private final String myName;
+    @NotNull private final String myVersion;
+    @Nullable private final String myGitFolderName;
+
+    public Spec(@NotNull final String name, @NotNull final String version, @Nullable final String gitFolderName) {
+      myName = name;
+      myVersion = version;
+      myGitFolderName = gitFolderName;
+    }
+
+    @NotNull
+    public String getName() {
+      return myName;
+    }
+
+    /**
+     * @return version, with platform suffix for platform-specific gems, e.g. '1.8.2-x86_64-linux'
+     */
+    @NotNull
+    public String getVersion() {
+      return myVersion;
+    }
+
+    /**
+     * @return platform of platform-specific gem, e.g. 'x86_64-linux', null for pure ruby gems
+     */
+    @Nullable
+    public String getPlatform() {
+      final int i = myVersion.indexOf('-');
+      return i >= 0 ? myVersion.substring(i + 1) : null;
+    }
+
+    /**
+     * @return gem version without platform suffix, platform variants of same gem share it
+     */
+    @NotNull
+    public String getBaseVersion() {
+      final int i = myVersion.indexOf('-');
+      return i >= 0 ? myVersion.substring(0, i) : myVersion;
+    }
+
+    /**
+     * @return checkout folder name in '&lt;gem path&gt;/bundler/gems' for gems from git, null for gems from rubygems
+     */
+    @Nullable
+    public String getGitFolderName() {
+      return myGitFolderName;
+    }
+
+    /**
+     * @return folder name in '&lt;gem path&gt;/gems' for gems from rubygems
+     */
+    @NotNull
+    public String getFullName() {
+      return myName + "-" + myVersion;
+    }
+
+    @Override
+    public String toString() {
+      return getFullName();
+    }
+  }
+
+  @NotNull
+  public static List<Spec> parse(@NotNull final String text) {
+    final List<Spec> specs = new ArrayList<Spec>();
+    String section = null;
+    String remote = null;
+    String revision = null;
+    // indentation is significant, so TextUtil.splitByLines isn't applicable
+    for (String line : EOL_PATTERN.split(text)) {
+      if (line.length() == 0) {
+        continue;
+      }
+      if (!line.startsWith(" ")) {
+        section = line.trim();
+        remote = null;
+        revision = null;
+        continue;
+      }
+      final boolean git = "GIT".equals(section);
+      if (!git && !"GEM".equals(section)) {
+        continue;
+      }
+      final Matcher option = OPTION_PATTERN.matcher(line);
+      if (option.matches()) {
+        if ("remote".equals(option.group(1))) {
+          remote = option.group(2).trim();
+        } else if ("revision".equals(option.group(1))) {
+          revision = option.group(2).trim();
+        }
+        continue;
+      }
+      final Matcher spec = SPEC_PATTERN.matcher(line);
+      if (spec.matches()) {
+        specs.add(new Spec(spec.group(1), spec.group(2), git ? getGitFolderName(remote, revision) : null));
+      }
+    }
+    return Collections.unmodifiableList(specs);
+  }
+
+  /**
+   * Simplified 'Gem::Platform#=~': cpu, os and os version (if both known) must match, 'universal' cpu matches any
+   *
+   * @param gemPlatform  platform of gem from Gemfile.lock, e.g. 'x86_64-linux'
+   * @param rubyPlatform RUBY_PLATFORM of interpreter, e.g. 'x86_64-linux-gnu'
+   */
+  public static boolean isPlatformMatched(@NotNull final String gemPlatform, @NotNull final String rubyPlatform) {
+    if (gemPlatform.contains("java") || rubyPlatform.contains("java")) {
+      return gemPlatform.contains("java") && rubyPlatform.contains("java");
+    }
+    final String[] gem = parsePlatform(gemPlatform);
+    final String[] ruby = parsePlatform(rubyPlatform);
+    final boolean cpu = gem[0] == null || ruby[0] == null || gem[0].equals(ruby[0]) || "universal".equals(gem[0]) || "universal".equals(ruby[0]);
+    final boolean version = gem[2] == null || ruby[2] == null || gem[2].equals(ruby[2]);
+    return cpu && gem[1].equals(ruby[1]) && version;
+  }
+
+  /**
+   * @return cpu, os and os version, e.g. 'arm64-darwin21' is [arm64, darwin, 21]
+   */
+  @NotNull
+  private static String[] parsePlatform(@NotNull final String platform) {
+    final String[] parts = platform.split("-");
+    String cpu = parts.length > 1 ? parts[0] : null;
+    if (cpu != null && cpu.matches("^i\\d86$")) {
+      cpu = "x86";
+    }
+    String os = parts.length > 1 ? parts[1] : parts[0];
+    String version = parts.length > 2 ? parts[2] : null;
+    final Matcher matcher = OS_VERSION_PATTERN.matcher(os);
+    // 'mingw32' and 'mswin32' are names of os, not versions
+    if (matcher.matches() && !os.startsWith("mingw") && !os.startsWith("mswin")) {
+      os = matcher.group(1);
+      version = matcher.group(2);
+    }
+    if ("linux".equals(os) && "gnu".equals(version)) {
+      version = null;
+    }
+    return new String[]{cpu, os, version};
+  }
+
+  /**
+   * Bundler checks out repository into '&lt;repository base name&gt;-&lt;short revision&gt;' folder
+   */
+  @NotNull
+  private static String getGitFolderName(@Nullable final String remote, @Nullable final String revision) {
+    String name = remote != null ? remote : "";
+    while (name.endsWith("/")) {
+      name = name.substring(0, name.length() - 1);
+    }
+    name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf(':')) + 1);
+    if (name.endsWith(".git")) {
+      name = name.substring(0, name.length() - ".git".length());
+    }
+    final String ref = revision != null && revision.length() > GIT_REVISION_LENGTH ? revision.substring(0, GIT_REVISION_LENGTH) : revision;
+    return name + "-" + ref;
+  }
+}
@@ -0,0 +1,410 @@
+package jetbrains.buildServer.agent.rakerunner.scripting;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.agent.rakerunner.utils.EnvironmentPatchableMap;
+import jetbrains.buildServer.agent.ruby.RubySdk;
+import jetbrains.buildServer.agent.ruby.SdkUtil;
+import jetbrains.buildServer.agent.ruby.rbenv.RbEnvRubySdk;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.plugins.ruby.rvm.RVMSupportUtil;
+
+import static com.intellij.openapi.util.io.FileUtil.getTempDirectory;
+
+/**
+ * Evaluates scripts in forks of one long-lived interpreter process instead of launching interpreter for each script.
+ * Each script is evaluated in its own forked process with STDIN, STDOUT and STDERR reopened to files,
+ * so scripts don't share loaded features, gems state or file descriptors with each other and with the protocol.
+ * Daemon answers 'ready' line on start, or 'unsupported' if interpreter cannot fork (e.g. JRuby or Windows).
+ * Request is a header line '&lt;working dir size&gt; &lt;script size&gt;' followed by working dir and script bytes,
+ * response is a header line '&lt;exit code&gt; &lt;stdout size&gt; &lt;stderr size&gt;' followed by stdout and stderr bytes.
+ * Interpreter exits itself after idle timeout. Daemon is restarted when environment changes.
+ * Scripts with interpreter arguments, scripts which broke daemon or didn't finish in time are run with fallback runner.
+ */
+public class DaemonRubyScriptRunner implements RubyScriptRunner {
+  private static final Logger LOG = Logger.getInstance(DaemonRubyScriptRunner.class.getName());
+  private static final String CHARSET = "UTF-8";
+  static final String READY = "ready";
+  static final String UNSUPPORTED = "unsupported";
+
+  /**
+   * Script is passed to interpreter in file, so there are no quoting restrictions.
+   * Forked evaluation is killed when daemon is terminated.
+   */
+  private static final String DAEMON_SCRIPT =
+    "require 'rubygems'\n" +
+    "require 'tmpdir'\n" +
+    "idle_timeout = Integer(ARGV[0])\n" +
+    "STDIN.binmode\n" +
+    "STDOUT.binmode\n" +
+    "STDOUT.sync = true\n" +
+    "unless Process.respond_to?(:fork)\n" +
+    "  STDOUT.write(\"" + UNSUPPORTED + "\\n\")\n" +
+    "  exit!(0)\n" +
+    "end\n" +
+    "$child = nil\n" +
+    "trap('TERM') do\n" +
+    "  Process.kill('KILL', $child) rescue nil if $child\n" +
+    "  exit!(1)\n" +
+    "end\n" +
+    "out_path = File.join(Dir.tmpdir, \"teamcity-ruby-daemon-#{$$}.out\")\n" +
+    "err_path = File.join(Dir.tmpdir, \"teamcity-ruby-daemon-#{$$}.err\")\n" +
+    "read_file = lambda { |path| File.exist?(path) ? File.open(path, 'rb') { |f| f.read } : '' }\n" +
+    "size_of = lambda { |s| s.respond_to?(:bytesize) ? s.bytesize : s.length }\n" +
+    "STDOUT.write(\"" + READY + "\\n\")\n" +
+    "begin\n" +
+    "  loop do\n" +
+    "    break unless IO.select([STDIN], nil, nil, idle_timeout)\n" +
+    "    header = STDIN.gets\n" +
+    "    break if header.nil?\n" +
+    "    dir_size, script_size = header.split.map { |s| Integer(s) }\n" +
+    "    dir = STDIN.read(dir_size)\n" +
+    "    script = STDIN.read(script_size)\n" +
+    "    script.force_encoding('UTF-8') if script.respond_to?(:force_encoding)\n" +
+    "    $child = fork do\n" +
+    "      trap('TERM', 'DEFAULT')\n" +
+    "      STDIN.reopen('/dev/null')\n" +
+    "      STDOUT.reopen(out_path, 'w')\n" +
+    "      STDERR.reopen(err_path, 'w')\n" +
+    "      STDOUT.sync = true\n" +
+    "      STDERR.sync = true\n" +
+    "      $stdin = STDIN\n" +
+    "      $stdout = STDOUT\n" +
+    "      $stderr = STDERR\n" +
+    "      Dir.chdir(dir)\n" +
+    "      eval(script, TOPLEVEL_BINDING, '-e', 1)\n" +
+    "    end\n" +
+    "    Process.wait($child)\n" +
+    "    $child = nil\n" +
+    "    status = $?.exitstatus || 128 + $?.termsig.to_i\n" +
+    "    out = read_file.call(out_path)\n" +
+    "    err = read_file.call(err_path)\n" +
+    "    STDOUT.write([status, size_of.call(out), size_of.call(err)].join(' ') + \"\\n\")\n" +
+    "    STDOUT.write(out)\n" +
+    "    STDOUT.write(err)\n" +
+    "  end\n" +
+    "ensure\n" +
+    "  File.delete(out_path) rescue nil\n" +
+    "  File.delete(err_path) rescue nil\n" +
+    "end\n";
+
+  private static final ExecutorService ourReaders = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(@NotNull final Runnable r) {
+      final Thread thread = new Thread(r, "Ruby daemon response reader");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  /**
+   * Settings and registry of running daemons
+   */
+  public interface Manager {
+    int getIdleTimeoutSeconds();
+
+    /**
+     * @return seconds to wait for evaluation result before daemon is killed and script is run with fallback runner
+     */
+    int getEvaluationTimeoutSeconds();
+
+    void register(@NotNull DaemonRubyScriptRunner runner);
+
+    void unregister(@NotNull DaemonRubyScriptRunner runner);
+  }
+
+  @NotNull
+  private final RubySdk mySdk;
+  @NotNull
+  private final RubyScriptRunner myFallbackRunner;
+  @NotNull
+  private final Manager myManager;
+
+  @Nullable
+  private Daemon myDaemon;
+  // interpreter cannot fork, fallback runner is always used
+  private boolean myUnsupported;
+
+  public DaemonRubyScriptRunner(@NotNull final RubySdk sdk,
+                                @NotNull final RubyScriptRunner fallbackRunner,
+                                @NotNull final Manager manager) {
+    mySdk = sdk;
+    myFallbackRunner = fallbackRunner;
+    myManager = manager;
+  }
+
+  /**
+   * @return runner which starts separate interpreter process for each script
+   */
+  @NotNull
+  public RubyScriptRunner getFallbackRunner() {
+    return myFallbackRunner;
+  }
+
+  @NotNull
+  public ExecResult run(@NotNull final String script,
+                        @NotNull final String workingDirectory,
+                        @Nullable final Map<String, String> environment,
+                        @NotNull final String... rubyArgs) {
+    if (rubyArgs.length == 0) {
+      final ExecResult result = evaluate(script, workingDirectory, environment);
+      if (result != null) {
+        return result;
+      }
+    }
+    return myFallbackRunner.run(script, workingDirectory, environment, rubyArgs);
+  }
+
+  /**
+   * @return evaluation result or null if daemon isn't available
+   */
+  @Nullable
+  private synchronized ExecResult evaluate(@NotNull final String script,
+                                           @NotNull final String workingDirectory,
+                                           @Nullable final Map<String, String> environment) {
+    if (myUnsupported) {
+      return null;
+    }
+    final Map<String, String> env = environment != null ? environment : new HashMap<String, String>();
+    if (myDaemon != null && !myDaemon.isUsable(env, myManager.getIdleTimeoutSeconds())) {
+      stop();
+    }
+    if (myDaemon == null) {
+      final Daemon daemon;
+      try {
+        daemon = new Daemon(env);
+      } catch (IOException e) {
+        LOG.warn("Failed to start Ruby daemon for " + mySdk.getName() + ": " + e.toString());
+        return null;
+      }
+      try {
+        final String answer = daemon.readLine(getTimeoutMillis());
+        if (!READY.equals(answer)) {
+          LOG.info("Ruby daemon isn't supported by " + mySdk.getName() + ", scripts will be run in separate processes: " + answer);
+          myUnsupported = true;
+          daemon.destroy();
+          return null;
+        }
+      } catch (IOException e) {
+        LOG.warn("Ruby daemon for " + mySdk.getName() + " didn't start: " + e.toString());
+        daemon.destroy();
+        return null;
+      }
+      myDaemon = daemon;
+      myManager.register(this);
+    }
+    try {
+      return myDaemon.evaluate(script, workingDirectory, getTimeoutMillis());
+    } catch (IOException e) {
+      LOG.info("Ruby daemon for " + mySdk.getName() + " failed, script will be run in separate process: " + e.toString());
+      stop();
+      return null;
+    }
+  }
+
+  private long getTimeoutMillis() {
+    return myManager.getEvaluationTimeoutSeconds() * 1000L;
+  }
+
+  public synchronized void stop() {
+    if (myDaemon != null) {
+      myDaemon.destroy();
+      myDaemon = null;
+      myManager.unregister(this);
+    }
+  }
+
+  static void writeRequest(@NotNull final OutputStream stream,
+                           @NotNull final String script,
+                           @NotNull final String workingDirectory) throws IOException {
+    final byte[] dir = workingDirectory.getBytes(CHARSET);
+    final byte[] code = script.getBytes(CHARSET);
+    stream.write((dir.length + " " + code.length + "\n").getBytes(CHARSET));
+    stream.write(dir);
+    stream.write(code);
+    stream.flush();
+  }
+
+  @NotNull
+  static ExecResult readResponse(@NotNull final InputStream stream) throws IOException {
+    final String line = readLine(stream);
+    final String[] header = line.trim().split(" ");
+    if (header.length != 3) {
+      throw new IOException("Unexpected response header: " + line);
+    }
+    final ExecResult result = new ExecResult();
+    try {
+      result.setExitCode(Integer.parseInt(header[0]));
+      result.setStdout(new String(readBytes(stream, Integer.parseInt(header[1])), CHARSET));
+      result.setStderr(new String(readBytes(stream, Integer.parseInt(header[2])), CHARSET));
+    } catch (NumberFormatException e) {
+      throw new IOException("Unexpected response header: " + line);
+    }
+    return result;
+  }
+
+  @NotNull
+  static String readLine(@NotNull final InputStream stream) throws IOException {
+    final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = stream.read()) != '\n') {
+      if (b == -1) {
+        throw new EOFException("Ruby daemon exited");
+      }
+      line.write(b);
+    }
+    return line.toString(CHARSET);
+  }
+
+  @NotNull
+  private static byte[] readBytes(@NotNull final InputStream stream, final int size) throws IOException {
+    final byte[] bytes = new byte[size];
+    new DataInputStream(stream).readFully(bytes);
+    return bytes;
+  }
+
+  /**
+   * Waits for result of blocking read, stream owner must close stream on timeout to release reading thread
+   */
+  static <T> T withTimeout(@NotNull final Callable<T> read, final long timeoutMillis) throws IOException {
+    final Future<T> future = ourReaders.submit(read);
+    try {
+      return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      future.cancel(true);
+      throw new IOException("No response from Ruby daemon in " + timeoutMillis + " ms");
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for Ruby daemon");
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private class Daemon {
+    @NotNull
+    private final Map<String, String> myEnv;
+    @NotNull
+    private final File myScriptFile;
+    @NotNull
+    private final Process myProcess;
+    @NotNull
+    private final OutputStream myInput;
+    @NotNull
+    private final InputStream myOutput;
+    private long myLastUsed;
+
+    private Daemon(@NotNull final Map<String, String> env) throws IOException {
+      myEnv = new HashMap<String, String>(env);
+      myScriptFile = File.createTempFile("ruby-daemon", ".rb");
+      try {
+        FileUtil.writeFile(myScriptFile, DAEMON_SCRIPT, CHARSET);
+
+        final EnvironmentPatchableMap patchedEnv = new EnvironmentPatchableMap(env);
+        RVMSupportUtil.patchEnvForRVMIfNecessary(mySdk, patchedEnv);
+        if (SdkUtil.isRbEnvSdk(mySdk)) {
+          ((RbEnvRubySdk)mySdk).patchEnvironment(patchedEnv);
+        }
+
+        final List<String> command = new ArrayList<String>();
+        command.add(mySdk.getRubyExecutable().getAbsolutePath());
+        command.add(myScriptFile.getAbsolutePath());
+        command.add(String.valueOf(myManager.getIdleTimeoutSeconds()));
+        final ProcessBuilder builder = new ProcessBuilder(command);
+        builder.directory(new File(getTempDirectory()));
+        builder.environment().clear();
+        builder.environment().putAll(patchedEnv);
+        myProcess = builder.start();
+      } catch (IOException e) {
+        FileUtil.delete(myScriptFile);
+        throw e;
+      }
+      myInput = new BufferedOutputStream(myProcess.getOutputStream());
+      myOutput = new BufferedInputStream(myProcess.getInputStream());
+      drainErrorStream();
+      myLastUsed = System.currentTimeMillis();
+      LOG.info("Started Ruby daemon for " + mySdk.getName());
+    }
+
+    /**
+     * Daemon which is about to exit because of idle timeout isn't used, it's safer to start new one
+     */
+    private boolean isUsable(@NotNull final Map<String, String> env, final int idleTimeoutSeconds) {
+      final long idleMillis = System.currentTimeMillis() - myLastUsed;
+      return myEnv.equals(env) && idleMillis < idleTimeoutSeconds * 1000L / 2 && isAlive();
+    }
+
+    private boolean isAlive() {
+      try {
+        myProcess.exitValue();
+        return false;
+      } catch (IllegalThreadStateException e) {
+        return true;
+      }
+    }
+
+    @NotNull
+    private String readLine(final long timeoutMillis) throws IOException {
+      return withTimeout(new Callable<String>() {
+        public String call() throws IOException {
+          return DaemonRubyScriptRunner.readLine(myOutput);
+        }
+      }, timeoutMillis);
+    }
+
+    @NotNull
+    private ExecResult evaluate(@NotNull final String script,
+                                @NotNull final String workingDirectory,
+                                final long timeoutMillis) throws IOException {
+      writeRequest(myInput, script, workingDirectory);
+      final ExecResult result = withTimeout(new Callable<ExecResult>() {
+        public ExecResult call() throws IOException {
+          return readResponse(myOutput);
+        }
+      }, timeoutMillis);
+      myLastUsed = System.currentTimeMillis();
+      return result;
+    }
+
+    private void drainErrorStream() {
+      final InputStream errors = myProcess.getErrorStream();
+      final Thread thread = new Thread(new Runnable() {
+        public void run() {
+          final BufferedReader reader = new BufferedReader(new InputStreamReader(errors));
+          try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+              LOG.debug("Ruby daemon for " + mySdk.getName() + ": " + line);
+            }
+          } catch (IOException ignored) {
+          } finally {
+            FileUtil.close(reader);
+          }
+        }
+      }, "Ruby daemon stderr reader");
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    private void destroy() {
+      FileUtil.close(myInput);
+      // terminated daemon kills evaluation in progress
+      myProcess.destroy();
+      FileUtil.close(myOutput);
+      FileUtil.delete(myScriptFile);
+      LOG.info("Stopped Ruby daemon for " + mySdk.getName());
+    }
+  }
+}
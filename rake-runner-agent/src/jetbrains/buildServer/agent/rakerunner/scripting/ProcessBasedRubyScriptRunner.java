@@ -3,13 +3,16 @@
 package jetbrains.buildServer.agent.rakerunner.scripting;
 
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.SystemInfo;
 import java.io.File;
 import java.io.PrintStream;
-import java.util.Map;
+import java.util.*;
 import jetbrains.buildServer.ExecResult;
 import jetbrains.buildServer.agent.rakerunner.utils.EnvironmentPatchableMap;
 import jetbrains.buildServer.agent.rakerunner.utils.RunnerUtil;
 import jetbrains.buildServer.agent.ruby.RubySdk;
+import jetbrains.buildServer.agent.ruby.SdkUtil;
+import jetbrains.buildServer.agent.ruby.rbenv.RbEnvRubySdk;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.plugins.ruby.rvm.RVMSupportUtil;
@@ -20,12 +23,19 @@ import org.jetbrains.plugins.ruby.rvm.RVMSupportUtil;
  */
 public class ProcessBasedRubyScriptRunner implements RubyScriptRunner {
   private static final Logger LOG = Logger.getInstance(ProcessBasedRubyScriptRunner.class.getName());
+  // Linux limits length of single argument with 128Kb
+  private static final int MAX_INLINE_SCRIPT_LENGTH = 32 * 1024;
 
   public ProcessBasedRubyScriptRunner(@NotNull final RubySdk sdk) {
     mySdk = sdk;
   }
 
   private final RubySdk mySdk;
+  // last environment passed to runner and its patched version, callers usually pass the same environment
+  @Nullable
+  private Map<String, String> myLastEnvironment;
+  @Nullable
+  private Map<String, String> myLastPatchedEnvironment;
 
   @NotNull
   public ExecResult run(@NotNull final String script,
@@ -35,26 +45,31 @@ public class ProcessBasedRubyScriptRunner implements RubyScriptRunner {
     ExecResult result = null;
     File scriptFile = null;
     try {
-      // Writing source to the temp file
-      scriptFile = File.createTempFile("script", ".rb");
-      PrintStream out = new PrintStream(scriptFile);
-      out.print(script);
-      out.close();
-
       //Args
-      final String[] args = new String[2 + rubyArgs.length];
-      args[0] = mySdk.getRubyExecutable().getAbsolutePath();
-      System.arraycopy(rubyArgs, 0, args, 1, rubyArgs.length);
-      args[rubyArgs.length + 1] = scriptFile.getPath();
-
-      // Env
-      final EnvironmentPatchableMap patchableEnv = new EnvironmentPatchableMap(environment);
-      RVMSupportUtil.patchEnvForRVMIfNecessary(mySdk, patchableEnv);
+      final List<String> args = new ArrayList<String>(3 + rubyArgs.length);
+      args.add(mySdk.getRubyExecutable().getAbsolutePath());
+      args.addAll(Arrays.asList(rubyArgs));
+      if (SystemInfo.isUnix && script.length() <= MAX_INLINE_SCRIPT_LENGTH) {
+        args.add("-e");
+        args.add(script);
+      } else {
+        // Writing source to the temp file
+        scriptFile = File.createTempFile("script", ".rb");
+        PrintStream out = new PrintStream(scriptFile);
+        out.print(script);
+        out.close();
+        args.add(scriptFile.getPath());
+      }
 
       //Result
-      result = RunnerUtil.run(workingDirectory, patchableEnv, args);
+      result = RunnerUtil.run(workingDirectory, getPatchedEnvironment(environment), args.toArray(new String[args.size()]));
     } catch (Exception e) {
       LOG.error(e.getMessage(), e);
+      result = new ExecResult();
+      result.setExitCode(-1);
+      result.setStdout("");
+      result.setStderr("");
+      result.setException(e);
     } finally {
       if (scriptFile != null && scriptFile.exists()) {
         scriptFile.delete();
@@ -63,4 +78,19 @@ public class ProcessBasedRubyScriptRunner implements RubyScriptRunner {
 
     return result;
   }
-}
\ No newline at end of file
+
+  @NotNull
+  private synchronized Map<String, String> getPatchedEnvironment(@Nullable final Map<String, String> environment) {
+    final Map<String, String> env = environment != null ? environment : System.getenv();
+    if (myLastPatchedEnvironment == null || !env.equals(myLastEnvironment)) {
+      final EnvironmentPatchableMap patchableEnv = new EnvironmentPatchableMap(env);
+      RVMSupportUtil.patchEnvForRVMIfNecessary(mySdk, patchableEnv);
+      if (SdkUtil.isRbEnvSdk(mySdk)) {
+        ((RbEnvRubySdk)mySdk).patchEnvironment(patchableEnv);
+      }
+      myLastEnvironment = new HashMap<String, String>(env);
+      myLastPatchedEnvironment = Collections.unmodifiableMap(new HashMap<String, String>(patchableEnv));
+    }
+    return myLastPatchedEnvironment;
+  }
+}
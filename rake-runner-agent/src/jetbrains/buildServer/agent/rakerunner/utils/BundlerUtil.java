@@ -2,17 +2,22 @@
 
 package jetbrains.buildServer.agent.rakerunner.utils;
 
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.Pair;
 import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Map;
+import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import jetbrains.buildServer.RunBuildException;
+import jetbrains.buildServer.agent.BuildProgressLogger;
 import jetbrains.buildServer.agent.rakerunner.ModifiableRunnerContext;
 import jetbrains.buildServer.agent.rakerunner.RakeTasksBuildService;
 import jetbrains.buildServer.agent.rakerunner.SupportedTestFramework;
+import jetbrains.buildServer.agent.rakerunner.bundler.BundleCache;
+import jetbrains.buildServer.agent.rakerunner.bundler.BundlerSetupCache;
+import jetbrains.buildServer.agent.rakerunner.bundler.GemfileLock;
+import jetbrains.buildServer.agent.ruby.AgentRubyServices;
 import jetbrains.buildServer.agent.ruby.RubySdk;
 import jetbrains.buildServer.rakerunner.RakeRunnerConstants;
 import jetbrains.buildServer.util.FileUtil;
@@ -28,6 +33,7 @@ import static jetbrains.buildServer.rakerunner.RakeRunnerConstants.CUSTOM_GEMFIL
  * @author Roman.Chernyatchik
  */
 public class BundlerUtil {
+  private static final Logger LOG = Logger.getInstance(BundlerUtil.class.getName());
   private static final String BUNDLER_GEM_NAME = "bundler";
   static final String BUNDLE_BIN_PATH_ENV_VAR = "BUNDLE_BIN_PATH";
   private static final String BUNDLE_GEMFILE_ENV_VAR = "BUNDLE_GEMFILE";
@@ -36,6 +42,7 @@ public class BundlerUtil {
   private static final String BUNDLER_FOLDER = ".bundler";
   private static final String GEM_HOME = "GEM_HOME";
   private static final String BUNDLE_PATH_ENV_VAR = "BUNDLE_PATH";
+  private static final String DEFAULT_BUNDLE_FOLDER = "vendor" + File.separator + "bundle";
 
   public static boolean isBundleExecEmulationEnabled(@NotNull final Map<String, String> runParams) {
     return ConfigurationParamsUtil.isParameterEnabled(runParams, RakeRunnerConstants.SERVER_UI_BUNDLE_EXEC_PROPERTY);
@@ -68,7 +75,8 @@ public class BundlerUtil {
   }
 
   public static void enableBundleExecEmulationIfNeeded(@NotNull final RubySdk sdk,
-                                                       @NotNull final ModifiableRunnerContext context)
+                                                       @NotNull final ModifiableRunnerContext context,
+                                                       @NotNull final BuildProgressLogger logger)
     throws RakeTasksBuildService.MyBuildFailureException, RunBuildException {
 
     if (!isBundleExecEmulationEnabled(context.getRunnerParameters())) {
@@ -84,14 +92,217 @@ public class BundlerUtil {
     final String gemFilePath = FileUtil.toSystemIndependentName(determineGemfilePath(context));
     context.getEnvParameters().put(BUNDLE_GEMFILE_ENV_VAR, gemFilePath);
 
+    // Restore bundle from agent cache or install it
+    restoreBundleIfNeeded(sdk, context, gemFilePath, logger);
+
     // Add BUNDLE_PATH/.../bin to PATH
     addCustomBundleGemsBinFolderToPath(sdk, context, gemFilePath);
 
     // RUBYLIB: Let's add bundler setup script to loadpath
     addBundlerSetupScriptToLoadPath(context.getEnvParameters(), bundlerGemRootPath);
 
+    // Precomputed load path instead of resolving bundle in each ruby process
+    final File setupScriptFolder = getStandaloneSetupScriptFolder(sdk, context, gemFilePath);
+    if (setupScriptFolder != null) {
+      OSUtil.appendToRUBYLIBEnvVariable(getCanonicalPath(setupScriptFolder), context.getEnvParameters());
+    }
+
     // RUBYOPT: attach bundler using its bundler/setup script
-    attachBundler(context.getRunnerParameters(), context.getEnvParameters());
+    attachBundler(context.getRunnerParameters(), context.getEnvParameters(),
+                  setupScriptFolder != null ? BundlerSetupCache.SETUP_SCRIPT_NAME : "bundler/setup");
+  }
+
+  private static void restoreBundleIfNeeded(@NotNull final RubySdk sdk,
+                                            @NotNull final ModifiableRunnerContext context,
+                                            @NotNull final String gemFilePath,
+                                            @NotNull final BuildProgressLogger logger)
+    throws RakeTasksBuildService.MyBuildFailureException {
+    if (!ConfigurationParamsUtil.isParameterEnabled(context.getBuildParameters(), RakeRunnerConstants.BUNDLE_CACHE_PROPERTY)) {
+      return;
+    }
+    final BundleCache cache = AgentRubyServices.getBundleCache();
+    if (cache == null) {
+      return;
+    }
+    final Map<String, String> env = context.getEnvParameters();
+    final String customBundleFolderPath = context.getBuildParameters().get(RakeRunnerConstants.CUSTOM_BUNDLE_FOLDER_PATH);
+    final File bundleFolder;
+    if (!StringUtil.isEmpty(customBundleFolderPath)) {
+      bundleFolder = FileUtil.isAbsolute(customBundleFolderPath)
+                     ? new File(customBundleFolderPath)
+                     : new File(context.getCheckoutDirectory(), customBundleFolderPath);
+    } else if (!StringUtil.isEmpty(env.get(BUNDLE_PATH_ENV_VAR))) {
+      bundleFolder = new File(env.get(BUNDLE_PATH_ENV_VAR));
+    } else {
+      bundleFolder = new File(new File(gemFilePath).getParentFile(), DEFAULT_BUNDLE_FOLDER);
+    }
+    final boolean useDefaultFolder = StringUtil.isEmpty(customBundleFolderPath) && StringUtil.isEmpty(env.get(BUNDLE_PATH_ENV_VAR));
+
+    // 'bundle check' without bundler: nothing to restore if all locked gems are installed
+    final List<GemfileLock.Spec> specs = readGemfileLockSpecs(gemFilePath);
+    if (specs != null) {
+      // default folder is used by bundler only if it was restored by cache;
+      // with configured bundle path bundler doesn't use shared gems except default ones
+      final boolean bundlePathConfigured = !useDefaultFolder || BundleCache.isRestored(bundleFolder);
+      final List<File> gemPaths = bundlePathConfigured ? getBundleGemPaths(bundleFolder) : new ArrayList<File>();
+      final List<File> defaultGemPaths = new ArrayList<File>();
+      for (String path : sdk.getGemPaths()) {
+        (bundlePathConfigured ? defaultGemPaths : gemPaths).add(new File(path));
+      }
+      final Collection<List<GemfileLock.Spec>> gems = groupPlatformVariants(specs);
+      final int missing = countMissingGems(gems, gemPaths, defaultGemPaths, sdk.getPlatform());
+      if (missing == 0) {
+        logger.message("All " + gems.size() + " gems from Gemfile.lock are installed, bundle restore is skipped");
+        if (useDefaultFolder && BundleCache.isRestored(bundleFolder)) {
+          env.put(BUNDLE_PATH_ENV_VAR, bundleFolder.getAbsolutePath());
+        }
+        return;
+      }
+      logger.message(missing + " of " + gems.size() + " gems from Gemfile.lock are missing, bundle will be restored or installed");
+    }
+
+    if (cache.restoreOrInstall(sdk, gemFilePath, bundleFolder, env) && useDefaultFolder) {
+      // bundler should use restored bundle
+      env.put(BUNDLE_PATH_ENV_VAR, bundleFolder.getAbsolutePath());
+    }
+  }
+
+  @Nullable
+  private static List<GemfileLock.Spec> readGemfileLockSpecs(@NotNull final String gemFilePath) {
+    final File gemfile = new File(gemFilePath);
+    final File lockfile = new File(gemfile.getParentFile(), gemfile.getName() + ".lock");
+    if (!lockfile.isFile()) {
+      return null;
+    }
+    try {
+      return GemfileLock.parse(new String(FileUtil.loadFileText(lockfile)));
+    } catch (IOException e) {
+      LOG.warn("Failed to read " + lockfile + ": " + e.toString());
+      return null;
+    }
+  }
+
+  /**
+   * @return gem paths inside BUNDLE_PATH folder: '&lt;bundle path&gt;/&lt;engine&gt;/&lt;abi version&gt;'
+   */
+  @NotNull
+  private static List<File> getBundleGemPaths(@NotNull final File bundleFolder) {
+    final List<File> result = new ArrayList<File>();
+    final File[] engines = bundleFolder.listFiles();
+    if (engines != null) {
+      for (File engine : engines) {
+        final File[] versions = engine.listFiles();
+        if (versions != null) {
+          for (File version : versions) {
+            if (version.isDirectory()) {
+              result.add(version);
+            }
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Multi-platform Gemfile.lock lists each platform variant of gem, e.g. 'nokogiri (1.10.4)' and 'nokogiri (1.10.4-x86_64-linux)'
+   *
+   * @return specs grouped by gem name and version
+   */
+  @NotNull
+  static Collection<List<GemfileLock.Spec>> groupPlatformVariants(@NotNull final List<GemfileLock.Spec> specs) {
+    final Map<String, List<GemfileLock.Spec>> gems = new LinkedHashMap<String, List<GemfileLock.Spec>>();
+    for (GemfileLock.Spec spec : specs) {
+      final String key = spec.getName() + "-" + spec.getBaseVersion();
+      List<GemfileLock.Spec> variants = gems.get(key);
+      if (variants == null) {
+        variants = new ArrayList<GemfileLock.Spec>();
+        gems.put(key, variants);
+      }
+      variants.add(spec);
+    }
+    return gems.values();
+  }
+
+  /**
+   * Checks Gemfile.lock specs against installed gems like 'bundle check' does.
+   * Gem is installed if any of its variants for interpreter platform is installed, gems only for other platforms are ignored.
+   *
+   * @param gems            platform variants of each gem
+   * @param gemPaths        gem paths used by bundler
+   * @param defaultGemPaths gem paths where only default gems are used by bundler
+   * @param rubyPlatform    RUBY_PLATFORM of interpreter, if unknown only pure ruby variants are checked
+   * @return number of gems not installed in any of gem paths
+   */
+  static int countMissingGems(@NotNull final Collection<List<GemfileLock.Spec>> gems,
+                              @NotNull final List<File> gemPaths,
+                              @NotNull final List<File> defaultGemPaths,
+                              @Nullable final String rubyPlatform) {
+    int missing = 0;
+    for (List<GemfileLock.Spec> variants : gems) {
+      boolean applicable = false;
+      boolean installed = false;
+      for (GemfileLock.Spec spec : variants) {
+        final String platform = spec.getPlatform();
+        if (spec.getGitFolderName() == null && platform != null
+            && (rubyPlatform == null || !GemfileLock.isPlatformMatched(platform, rubyPlatform))) {
+          continue;
+        }
+        applicable = true;
+        if (isInstalled(spec, gemPaths, defaultGemPaths)) {
+          installed = true;
+          break;
+        }
+      }
+      if (applicable && !installed) {
+        missing++;
+      }
+    }
+    return missing;
+  }
+
+  private static boolean isInstalled(@NotNull final GemfileLock.Spec spec,
+                                     @NotNull final List<File> gemPaths,
+                                     @NotNull final List<File> defaultGemPaths) {
+    final String gitFolderName = spec.getGitFolderName();
+    for (File gemPath : gemPaths) {
+      if (gitFolderName != null) {
+        if (new File(gemPath, "bundler" + File.separator + "gems" + File.separator + gitFolderName).isDirectory()) {
+          return true;
+        }
+      } else if (new File(gemPath, "gems" + File.separator + spec.getFullName()).isDirectory() || isDefaultGem(spec, gemPath)) {
+        return true;
+      }
+    }
+    if (gitFolderName == null) {
+      for (File gemPath : defaultGemPaths) {
+        if (isDefaultGem(spec, gemPath)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Default gems don't have own folder in 'gems'
+   */
+  private static boolean isDefaultGem(@NotNull final GemfileLock.Spec spec, @NotNull final File gemPath) {
+    return new File(gemPath, "specifications" + File.separator + "default" + File.separator + spec.getFullName() + ".gemspec").isFile();
+  }
+
+  @Nullable
+  private static File getStandaloneSetupScriptFolder(@NotNull final RubySdk sdk,
+                                                     @NotNull final ModifiableRunnerContext context,
+                                                     @NotNull final String gemFilePath) {
+    if (!ConfigurationParamsUtil.isParameterEnabled(context.getBuildParameters(), RakeRunnerConstants.BUNDLER_STANDALONE_SETUP_PROPERTY)) {
+      return null;
+    }
+    final BundlerSetupCache cache = AgentRubyServices.getBundlerSetupCache();
+    if (cache == null) {
+      return null;
+    }
+    return cache.getSetupScriptFolder(sdk, gemFilePath, context.getEnvParameters());
   }
 
 
@@ -255,9 +466,10 @@ public class BundlerUtil {
   }
 
   private static void attachBundler(@NotNull final Map<String, String> runParams,
-                                    @NotNull final Map<String, String> runnerEnvParams) {
+                                    @NotNull final Map<String, String> runnerEnvParams,
+                                    @NotNull final String setupScript) {
     // RUBYOPT: attach bundler using its bundler/setup script
-    String bundlerExecCommand = "-rbundler/setup";
+    String bundlerExecCommand = "-r" + setupScript;
 
     // if project uses with test-unit gem and uses bundler
     // if Test::Unit bundled in sdk is used such patch will not break anything, so let's simplify check:
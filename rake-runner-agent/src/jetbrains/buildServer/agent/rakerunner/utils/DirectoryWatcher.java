@@ -0,0 +1,187 @@
+package jetbrains.buildServer.agent.rakerunner.utils;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Agent-wide watcher of directories used by Ruby version managers indexes (installed rubies, gemsets, etc.).
+ * Each watched directory gets a {@link Key}, which reports whether entries of directory were changed since last check.
+ * All directories are watched by one {@link WatchService} thread.
+ * If directory cannot be watched (e.g. it doesn't exist yet), its modification time is checked instead.
+ */
+public class DirectoryWatcher {
+  private static final Logger LOG = Logger.getInstance(DirectoryWatcher.class.getName());
+
+  private static final DirectoryWatcher ourInstance = new DirectoryWatcher();
+
+  private final Map<WatchKey, List<Key>> myKeys = new HashMap<WatchKey, List<Key>>();
+  @Nullable
+  private WatchService myWatchService;
+  private boolean myIsWatchServiceFailed = false;
+
+  @NotNull
+  public static DirectoryWatcher getInstance() {
+    return ourInstance;
+  }
+
+  /**
+   * @return key reporting changes of directory entries, first check always reports change
+   */
+  @NotNull
+  public Key watch(@NotNull final File directory) {
+    final Key key = new Key(directory);
+    register(key);
+    return key;
+  }
+
+  public class Key {
+    @NotNull
+    private final File myDirectory;
+    private boolean myRegistered = false;
+    private long myStamp = -1;
+    // names of changed entries, null means all entries should be rescanned
+    @Nullable
+    private Set<String> myChangedEntries = null;
+
+    private Key(@NotNull final File directory) {
+      myDirectory = directory;
+    }
+
+    @NotNull
+    public File getDirectory() {
+      return myDirectory;
+    }
+
+    /**
+     * @return true if directory was changed since previous check
+     */
+    public boolean pollChanged() {
+      final Set<String> changed = pollChangedEntries();
+      return changed == null || !changed.isEmpty();
+    }
+
+    /**
+     * @return names of entries created, removed or modified since previous check
+     * or null if it's unknown and whole directory should be rescanned
+     */
+    @Nullable
+    public Set<String> pollChangedEntries() {
+      synchronized (DirectoryWatcher.this) {
+        if (!myRegistered) {
+          register(this);
+        }
+        if (!myRegistered) {
+          // not watched: directory may appear later, compare modification time meanwhile
+          final long stamp = myDirectory.lastModified();
+          if (stamp != myStamp) {
+            myStamp = stamp;
+            myChangedEntries = null;
+          }
+        }
+        final Set<String> changed = myChangedEntries;
+        myChangedEntries = new HashSet<String>();
+        return changed;
+      }
+    }
+  }
+
+  private synchronized void register(@NotNull final Key key) {
+    if (key.myRegistered || !key.myDirectory.isDirectory()) {
+      return;
+    }
+    final WatchService service = getWatchService();
+    if (service == null) {
+      return;
+    }
+    try {
+      final WatchKey watchKey = key.myDirectory.toPath().register(service,
+                                                                  StandardWatchEventKinds.ENTRY_CREATE,
+                                                                  StandardWatchEventKinds.ENTRY_DELETE,
+                                                                  StandardWatchEventKinds.ENTRY_MODIFY);
+      List<Key> keys = myKeys.get(watchKey);
+      if (keys == null) {
+        keys = new ArrayList<Key>();
+        myKeys.put(watchKey, keys);
+      }
+      keys.add(key);
+      key.myRegistered = true;
+      // changes made before registration must not be lost
+      key.myChangedEntries = null;
+    } catch (IOException e) {
+      LOG.debug("Cannot watch directory " + key.myDirectory + ": " + e.toString());
+    }
+  }
+
+  @Nullable
+  private synchronized WatchService getWatchService() {
+    if (myWatchService == null && !myIsWatchServiceFailed) {
+      try {
+        myWatchService = FileSystems.getDefault().newWatchService();
+      } catch (Exception e) {
+        LOG.warn("File system watching isn't available, modification times will be checked instead: " + e.toString());
+        myIsWatchServiceFailed = true;
+        return null;
+      }
+      final Thread thread = new Thread(new Runnable() {
+        public void run() {
+          processEvents();
+        }
+      }, "Ruby directories watcher");
+      thread.setDaemon(true);
+      thread.start();
+    }
+    return myWatchService;
+  }
+
+  private void processEvents() {
+    final WatchService service;
+    synchronized (this) {
+      service = myWatchService;
+    }
+    if (service == null) {
+      return;
+    }
+    while (true) {
+      final WatchKey watchKey;
+      try {
+        watchKey = service.take();
+      } catch (InterruptedException e) {
+        return;
+      } catch (ClosedWatchServiceException e) {
+        return;
+      }
+      final List<WatchEvent<?>> events = watchKey.pollEvents();
+      final boolean valid = watchKey.reset();
+      synchronized (this) {
+        final List<Key> keys = valid ? myKeys.get(watchKey) : myKeys.remove(watchKey);
+        if (keys == null) {
+          continue;
+        }
+        for (Key key : keys) {
+          if (!valid) {
+            // directory was removed, it will be registered again when it appears
+            key.myRegistered = false;
+            key.myStamp = -1;
+            key.myChangedEntries = null;
+            continue;
+          }
+          for (WatchEvent<?> event : events) {
+            if (key.myChangedEntries == null) {
+              break;
+            }
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || !(event.context() instanceof Path)) {
+              key.myChangedEntries = null;
+            } else {
+              key.myChangedEntries.add(event.context().toString());
+            }
+          }
+        }
+      }
+    }
+  }
+}
@@ -11,6 +11,8 @@ import org.jetbrains.annotations.NotNull;
  */
 public class EnvUtil {
   private static final Set<String> IGNORING_ENV_KEYS = CollectionsUtil.setOf("PWD", "OLDPWD");
+  private static final Set<String> RUBY_RELEVANT_ENV_KEYS = CollectionsUtil.setOf("GEM_HOME", "GEM_PATH", "RUBYOPT", "RUBYLIB");
+  private static final String RUBY_RELEVANT_ENV_KEYS_PREFIX = "BUNDLE_";
 
   @NotNull
   public static Map<String, String> parse(@NotNull final String stdout) {
@@ -57,4 +59,19 @@ public class EnvUtil {
     na.keySet().removeAll(IGNORING_ENV_KEYS);
     return na;
   }
-}
\ No newline at end of file
+
+  /**
+   * @return sorted variables which affect ruby gem paths and load path
+   */
+  @NotNull
+  public static Map<String, String> getRubyRelevantEnvMap(@NotNull final Map<String, String> env) {
+    final Map<String, String> relevant = new TreeMap<String, String>();
+    for (Map.Entry<String, String> entry : env.entrySet()) {
+      final String key = entry.getKey();
+      if (RUBY_RELEVANT_ENV_KEYS.contains(key) || key.startsWith(RUBY_RELEVANT_ENV_KEYS_PREFIX)) {
+        relevant.put(key, entry.getValue());
+      }
+    }
+    return relevant;
+  }
+}
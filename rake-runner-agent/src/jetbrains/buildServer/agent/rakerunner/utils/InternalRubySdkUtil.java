@@ -3,6 +3,10 @@
 package jetbrains.buildServer.agent.rakerunner.utils;
 
 import java.io.File;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.Map;
 import jetbrains.buildServer.ExecResult;
 import jetbrains.buildServer.RunBuildException;
@@ -10,6 +14,8 @@ import jetbrains.buildServer.agent.BuildRunnerContext;
 import jetbrains.buildServer.agent.rakerunner.RakeTasksBuildService;
 import jetbrains.buildServer.agent.rakerunner.SharedParams;
 import jetbrains.buildServer.agent.ruby.RubySdk;
+import jetbrains.buildServer.agent.ruby.RubySdkInfo;
+import jetbrains.buildServer.agent.ruby.impl.StaticRubySdkIntrospector;
 import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
@@ -21,11 +27,58 @@ import static com.intellij.openapi.util.io.FileUtil.getTempDirectory;
  * @author Roman.Chernyatchik
  */
 public class InternalRubySdkUtil {
-  public static final String RUBY_VERSION_SCRIPT = "print RUBY_VERSION";
-  public static final String RUBY_PLATFORM_SCRIPT = "print RUBY_PLATFORM";
+  /**
+   * Common part of SDK probe script, see {@link #getSdkInfoScript(Collection)}.
+   * Gem folders are filtered from $LOAD_PATH like it was with '--disable-gems' option.
+   * Script is passed to shell in double quotes, so it mustn't contain double quotes or backticks.
+   */
   @NonNls
-  public static final String GET_LOAD_PATH_SCRIPT = "puts $LOAD_PATH";
-  public static final String RUBY19_DISABLE_GEMS_OPTION = "--disable-gems";
+  private static final String SDK_INFO_SCRIPT_PROLOGUE =
+    "load_path = $LOAD_PATH.dup\n" +
+    "begin\n" +
+    "  require 'rubygems'\n" +
+    "rescue LoadError\n" +
+    "end\n" +
+    "require 'rbconfig'\n" +
+    "gem_paths = defined?(Gem) ? Gem.path : []\n";
+
+  @NonNls
+  private static final String JRUBY_OPTS_ENV_VARIABLE = "JRUBY_OPTS";
+  @NonNls
+  private static final String JRUBY_DEV_OPTION = "--dev";
+
+  @NonNls
+  private static final Map<RubySdkInfo.Section, String> SDK_INFO_SECTION_SCRIPTS = new EnumMap<RubySdkInfo.Section, String>(RubySdkInfo.Section.class);
+
+  static {
+    SDK_INFO_SECTION_SCRIPTS.put(RubySdkInfo.Section.version, "puts RUBY_VERSION\n");
+    SDK_INFO_SECTION_SCRIPTS.put(RubySdkInfo.Section.platform, "puts RUBY_PLATFORM\n");
+    SDK_INFO_SECTION_SCRIPTS.put(RubySdkInfo.Section.gem_paths, "puts gem_paths\n");
+    SDK_INFO_SECTION_SCRIPTS.put(RubySdkInfo.Section.load_path,
+                                 "gem_dirs = gem_paths.map { |p| File.join(p, 'gems') + '/' }\n" +
+                                 "puts load_path.map { |p| p.to_s }.reject { |p| gem_dirs.any? { |d| p.index(d) == 0 } }\n");
+    SDK_INFO_SECTION_SCRIPTS.put(RubySdkInfo.Section.rbconfig,
+                                 "%w(ruby_version arch prefix bindir rubylibdir ruby_install_name).each { |k| puts k + '=' + RbConfig::CONFIG[k].to_s }\n");
+  }
+
+  /**
+   * Gathers all facts about interpreter in one run
+   */
+  @NonNls
+  public static final String SDK_INFO_SCRIPT = getSdkInfoScript(EnumSet.allOf(RubySdkInfo.Section.class));
+
+  /**
+   * @return script printing given sections of {@link RubySdkInfo}
+   */
+  @NotNull
+  public static String getSdkInfoScript(@NotNull final Collection<RubySdkInfo.Section> sections) {
+    final StringBuilder sb = new StringBuilder(SDK_INFO_SCRIPT_PROLOGUE);
+    for (RubySdkInfo.Section section : sections) {
+      sb.append("puts '").append(RubySdkInfo.SECTION_PREFIX).append(section.name()).append("'\n");
+      sb.append(SDK_INFO_SECTION_SCRIPTS.get(section));
+    }
+    return sb.toString();
+  }
 
   @NotNull
   static RubySdk createSdk(@NotNull final Map<String, String> runParameters,
@@ -80,35 +133,51 @@ public class InternalRubySdkUtil {
     throw new RakeTasksBuildService.MyBuildFailureException(msg);
   }
 
-  public static String getRubyInterpreterVersion(@NotNull final RubySdk sdk,
-                                                 @Nullable final Map<String, String> env) {
-    final ExecResult result = sdk.getScriptRunner().run(RUBY_VERSION_SCRIPT, getTempDirectory(), env);
-    return result.getStdout();
+  @NotNull
+  public static ExecResult getSdkInfo(@NotNull final RubySdk sdk,
+                                      @Nullable final Map<String, String> env,
+                                      @NotNull final Collection<RubySdkInfo.Section> sections) {
+    return sdk.getScriptRunner().run(getSdkInfoScript(sections), getTempDirectory(), getProbeEnvironment(sdk, env));
   }
 
-  public static boolean isJRubyInterpreter(@NotNull final RubySdk sdk,
-                                           @Nullable final Map<String, String> env) {
-    if (sdk.getRubyExecutable().getName().startsWith("jruby")) {
-      return true;
+  /**
+   * @return environment for SDK probe script
+   */
+  @Nullable
+  public static Map<String, String> getProbeEnvironment(@NotNull final RubySdk sdk, @Nullable final Map<String, String> env) {
+    if (!isJRubyInterpreter(sdk, null)) {
+      return env;
     }
-    final ExecResult rubyPlatformResult = sdk.getScriptRunner().run(RUBY_PLATFORM_SCRIPT, getTempDirectory(), env);
-    final String stdOut = rubyPlatformResult.getStdout();
-    return stdOut.contains("java");
+    // JVM tuned for fast startup is enough for short probe
+    final Map<String, String> probeEnv = env != null ? new HashMap<String, String>(env) : new HashMap<String, String>();
+    final String jrubyOpts = probeEnv.get(JRUBY_OPTS_ENV_VARIABLE);
+    probeEnv.put(JRUBY_OPTS_ENV_VARIABLE, StringUtil.isEmptyOrSpaces(jrubyOpts) ? JRUBY_DEV_OPTION : jrubyOpts + " " + JRUBY_DEV_OPTION);
+    return probeEnv;
   }
 
-  public static ExecResult getLoadPaths(@NotNull final RubySdk sdk,
-                                        @Nullable final Map<String, String> env) {
-    // LOAD_PATH way
-    if (sdk.isRuby19()) {
-      // filter gem paths in case of Ruby 1.9 (use --disable-gems)
-      return sdk.getScriptRunner().run(GET_LOAD_PATH_SCRIPT, getTempDirectory(), env, RUBY19_DISABLE_GEMS_OPTION);
-    } else {
-      return sdk.getScriptRunner().run(GET_LOAD_PATH_SCRIPT, getTempDirectory(), env);
-    }
+  public static boolean isJRubyInterpreter(@NotNull final RubySdk sdk, @Nullable final String platform) {
+    return sdk.getRubyExecutable().getName().startsWith("jruby")
+           || (platform != null && platform.contains("java"))
+           || StaticRubySdkIntrospector.findJRubyHome(sdk) != null;
   }
 
-  public static ExecResult getGemPaths(@NotNull final RubySdk sdk,
-                                       @Nullable final Map<String, String> env) {
-    return sdk.getScriptRunner().run(RubySDKUtil.GET_GEM_PATHS_SCRIPT, getTempDirectory(), env);
+  /**
+   * @param probeResult result of SDK probe or null if facts were obtained without running interpreter
+   * @return result of SDK probe narrowed to one section, for compatibility with per-fact fetch logs
+   */
+  @NotNull
+  public static ExecResult getSectionLog(@Nullable final ExecResult probeResult,
+                                         @NotNull final RubySdkInfo info,
+                                         @NotNull final RubySdkInfo.Section section) {
+    final ExecResult result = new ExecResult();
+    result.setStdout(StringUtil.join(info.getSection(section), "\n"));
+    if (probeResult != null) {
+      result.setStderr(probeResult.getStderr());
+      result.setExitCode(probeResult.getExitCode());
+      result.setException(probeResult.getException());
+    } else {
+      result.setStderr("");
+    }
+    return result;
   }
-}
\ No newline at end of file
+}
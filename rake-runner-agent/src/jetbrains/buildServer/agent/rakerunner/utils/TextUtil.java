@@ -2,6 +2,10 @@
 
 package jetbrains.buildServer.agent.rakerunner.utils;
 
+import java.io.UnsupportedEncodingException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.regex.Pattern;
 import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
@@ -68,4 +72,20 @@ public class TextUtil {
     }
     return text;
   }
-}
\ No newline at end of file
+
+  /**
+   * @return hex SHA-1 digest of UTF-8 encoded text, e.g. to name cache entries after their keys
+   */
+  @NotNull
+  public static String sha1(@NotNull final String text) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      final byte[] bytes = digest.digest(text.getBytes("UTF-8"));
+      return String.format("%040x", new BigInteger(1, bytes));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
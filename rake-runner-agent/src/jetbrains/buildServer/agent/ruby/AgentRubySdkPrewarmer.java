@@ -0,0 +1,264 @@
+package jetbrains.buildServer.agent.ruby;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.agent.*;
+import jetbrains.buildServer.agent.rakerunner.utils.EnvironmentPatchableMap;
+import jetbrains.buildServer.agent.rakerunner.utils.InternalRubySdkUtil;
+import jetbrains.buildServer.agent.ruby.impl.RubySdkInfoCache;
+import jetbrains.buildServer.agent.ruby.impl.StaticRubySdkIntrospector;
+import jetbrains.buildServer.agent.ruby.rbenv.InstalledRbEnv;
+import jetbrains.buildServer.agent.ruby.rbenv.RbEnvPathsSettings;
+import jetbrains.buildServer.agent.ruby.rbenv.RbEnvRubySdk;
+import jetbrains.buildServer.agent.ruby.rvm.InstalledRVM;
+import jetbrains.buildServer.agent.ruby.rvm.impl.RVMRubySdkImpl;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.plugins.ruby.rvm.RVMPathsSettings;
+import org.jetbrains.plugins.ruby.rvm.RVMSupportUtil;
+
+import static com.intellij.openapi.util.io.FileUtil.getTempDirectory;
+
+/**
+ * Probes interpreters installed with RVM and rbenv in background after agent start,
+ * so {@link RubySdkInfoCache} is filled before first build on them.
+ * Interpreters fully described by {@link StaticRubySdkIntrospector} are skipped, they are never launched anyway.
+ * Pre-warming is cancelled as soon as build starts, running probe processes are destroyed.
+ */
+public class AgentRubySdkPrewarmer {
+  private static final Logger LOG = Logger.getInstance(AgentRubySdkPrewarmer.class.getName());
+
+  public static final String PREWARM_ENABLED_PARAMETER = "teamcity.ruby.sdk.prewarm.enabled";
+  public static final String PREWARM_THREADS_PARAMETER = "teamcity.ruby.sdk.prewarm.threads";
+  private static final int DEFAULT_THREADS = 2;
+  private static final String CHARSET = "UTF-8";
+
+  @NotNull
+  private final BuildAgentConfiguration myConfiguration;
+  @NotNull
+  private final RVMPathsSettings myRVMPathsSettings;
+  @NotNull
+  private final RbEnvPathsSettings myRbEnvPathsSettings;
+
+  @Nullable
+  private ExecutorService myExecutor;
+  private volatile boolean myCancelled;
+  private final Set<Process> myProcesses = Collections.newSetFromMap(new ConcurrentHashMap<Process, Boolean>());
+
+  public AgentRubySdkPrewarmer(@NotNull final EventDispatcher<AgentLifeCycleListener> dispatcher,
+                               @NotNull final BuildAgentConfiguration configuration,
+                               @NotNull final RVMPathsSettings rvmPathsSettings,
+                               @NotNull final RbEnvPathsSettings rbEnvPathsSettings) {
+    myConfiguration = configuration;
+    myRVMPathsSettings = rvmPathsSettings;
+    myRbEnvPathsSettings = rbEnvPathsSettings;
+    dispatcher.addListener(new AgentLifeCycleAdapter() {
+      @Override
+      public void agentStarted(@NotNull final BuildAgent agent) {
+        start();
+      }
+
+      @Override
+      public void buildStarted(@NotNull final AgentRunningBuild runningBuild) {
+        cancel();
+      }
+
+      @Override
+      public void agentShutdown() {
+        cancel();
+      }
+    });
+  }
+
+  private synchronized void start() {
+    final Map<String, String> parameters = myConfiguration.getConfigurationParameters();
+    if ("false".equals(parameters.get(PREWARM_ENABLED_PARAMETER)) || AgentRubyServices.getSdkInfoCache() == null) {
+      return;
+    }
+    final Map<String, String> env = myConfiguration.getBuildParameters().getEnvironmentVariables();
+    final List<RubySdk> sdks;
+    try {
+      sdks = collectInstalledSdks(env);
+    } catch (Exception e) {
+      LOG.warn("Failed to list installed Ruby interpreters for pre-warming: " + e.toString());
+      return;
+    }
+    if (sdks.isEmpty()) {
+      return;
+    }
+
+    LOG.info("Pre-warming " + sdks.size() + " Ruby SDK(s) in background");
+    myCancelled = false;
+    myExecutor = Executors.newFixedThreadPool(getThreadsCount(parameters), new ThreadFactory() {
+      private final AtomicInteger myCounter = new AtomicInteger();
+
+      public Thread newThread(@NotNull final Runnable r) {
+        final Thread thread = new Thread(r, "Ruby SDK pre-warming " + myCounter.incrementAndGet());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+      }
+    });
+    for (final RubySdk sdk : sdks) {
+      myExecutor.submit(new Runnable() {
+        public void run() {
+          prewarm(sdk, env);
+        }
+      });
+    }
+    myExecutor.shutdown();
+  }
+
+  private synchronized void cancel() {
+    myCancelled = true;
+    if (myExecutor != null) {
+      myExecutor.shutdownNow();
+      myExecutor = null;
+    }
+    // interrupting threads doesn't stop interpreters they wait for
+    for (Process process : myProcesses) {
+      process.destroy();
+    }
+  }
+
+  private void prewarm(@NotNull final RubySdk sdk, @NotNull final Map<String, String> env) {
+    final RubySdkInfoCache cache = AgentRubyServices.getSdkInfoCache();
+    if (myCancelled || cache == null) {
+      return;
+    }
+    try {
+      if (isComplete(StaticRubySdkIntrospector.introspect(sdk, env)) || isComplete(cache.get(sdk, env))) {
+        return;
+      }
+      final RubySdkInfo info = probe(sdk, env);
+      if (info != null) {
+        cache.put(sdk, env, info);
+      }
+    } catch (Exception e) {
+      LOG.warn("Failed to pre-warm Ruby SDK " + sdk.getName() + ": " + e.toString());
+    }
+  }
+
+  private static boolean isComplete(@Nullable final RubySdkInfo info) {
+    if (info == null) {
+      return false;
+    }
+    for (RubySdkInfo.Section section : RubySdkInfo.Section.values()) {
+      if (!info.hasSection(section)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Runs SDK probe script in own process, so it can be destroyed on cancel
+   *
+   * @return probed facts, null if probe failed or was cancelled
+   */
+  @Nullable
+  private RubySdkInfo probe(@NotNull final RubySdk sdk, @NotNull final Map<String, String> env) throws IOException, InterruptedException {
+    final File scriptFile = File.createTempFile("ruby-prewarm", ".rb");
+    final File errorFile = File.createTempFile("ruby-prewarm", ".err");
+    try {
+      FileUtil.writeFile(scriptFile, InternalRubySdkUtil.SDK_INFO_SCRIPT, CHARSET);
+
+      final Map<String, String> probeEnv = InternalRubySdkUtil.getProbeEnvironment(sdk, env);
+      final EnvironmentPatchableMap patchedEnv = new EnvironmentPatchableMap(probeEnv != null ? probeEnv : env);
+      RVMSupportUtil.patchEnvForRVMIfNecessary(sdk, patchedEnv);
+      if (SdkUtil.isRbEnvSdk(sdk)) {
+        ((RbEnvRubySdk)sdk).patchEnvironment(patchedEnv);
+      }
+
+      final ProcessBuilder builder = new ProcessBuilder(sdk.getRubyExecutable().getAbsolutePath(), scriptFile.getAbsolutePath());
+      builder.directory(new File(getTempDirectory()));
+      builder.environment().clear();
+      builder.environment().putAll(patchedEnv);
+      builder.redirectError(errorFile);
+      final Process process = builder.start();
+      myProcesses.add(process);
+      try {
+        // cancel() may have been called before process was registered
+        if (myCancelled) {
+          return null;
+        }
+        process.getOutputStream().close();
+        final String output = readFully(process.getInputStream());
+        final int exitCode = process.waitFor();
+        if (myCancelled) {
+          return null;
+        }
+        if (exitCode != 0) {
+          LOG.info("Ruby SDK " + sdk.getName() + " pre-warming probe failed with exit code " + exitCode);
+          return null;
+        }
+        return RubySdkInfo.parse(output);
+      } finally {
+        myProcesses.remove(process);
+        process.destroy();
+      }
+    } finally {
+      FileUtil.delete(scriptFile);
+      FileUtil.delete(errorFile);
+    }
+  }
+
+  @NotNull
+  private static String readFully(@NotNull final InputStream stream) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[8192];
+    try {
+      int read;
+      while ((read = stream.read(buffer)) >= 0) {
+        bytes.write(buffer, 0, read);
+      }
+    } finally {
+      FileUtil.close(stream);
+    }
+    return bytes.toString(CHARSET);
+  }
+
+  @NotNull
+  private List<RubySdk> collectInstalledSdks(@NotNull final Map<String, String> env) {
+    final List<RubySdk> sdks = new ArrayList<RubySdk>();
+
+    myRVMPathsSettings.initialize(env);
+    final InstalledRVM rvm = myRVMPathsSettings.getRVM();
+    if (rvm != null) {
+      for (String name : rvm.getInstalledRubies()) {
+        final File home = rvm.getHomeForVersionName(name);
+        if (home != null) {
+          sdks.add(new RVMRubySdkImpl(home, name, null));
+        }
+      }
+    }
+
+    myRbEnvPathsSettings.initialize(env);
+    final InstalledRbEnv rbEnv = myRbEnvPathsSettings.getRbEnv();
+    if (rbEnv != null) {
+      for (String version : rbEnv.getInstalledVersions()) {
+        sdks.add(new RbEnvRubySdk(rbEnv.getInterpreterHome(version), version, rbEnv));
+      }
+    }
+    return sdks;
+  }
+
+  private static int getThreadsCount(@NotNull final Map<String, String> parameters) {
+    final String value = parameters.get(PREWARM_THREADS_PARAMETER);
+    if (value != null) {
+      try {
+        return Math.max(1, Integer.parseInt(value.trim()));
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    return DEFAULT_THREADS;
+  }
+}
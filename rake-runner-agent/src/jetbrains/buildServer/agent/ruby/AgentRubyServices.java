@@ -0,0 +1,70 @@
+package jetbrains.buildServer.agent.ruby;
+
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.agent.rakerunner.bundler.BundleCache;
+import jetbrains.buildServer.agent.rakerunner.bundler.BundlerSetupCache;
+import jetbrains.buildServer.agent.ruby.impl.RubyScriptDaemons;
+import jetbrains.buildServer.agent.ruby.impl.RubySdkInfoCache;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Agent-wide caches and processes shared by Ruby SDKs and build steps.
+ * SDKs are created by static utilities, so services are reachable statically;
+ * each getter returns null until agent creates this bean (e.g. in tests), callers should work without service then.
+ */
+public class AgentRubyServices {
+  @Nullable
+  private static volatile AgentRubyServices ourInstance;
+
+  @NotNull
+  private final RubySdkInfoCache mySdkInfoCache;
+  @NotNull
+  private final RubyScriptDaemons myScriptDaemons;
+  @NotNull
+  private final BundlerSetupCache myBundlerSetupCache;
+  @NotNull
+  private final BundleCache myBundleCache;
+
+  public AgentRubyServices(@NotNull final EventDispatcher<AgentLifeCycleListener> dispatcher,
+                           @NotNull final BuildAgentConfiguration configuration) {
+    mySdkInfoCache = new RubySdkInfoCache(configuration);
+    myScriptDaemons = new RubyScriptDaemons(configuration);
+    myBundlerSetupCache = new BundlerSetupCache(configuration);
+    myBundleCache = new BundleCache(configuration);
+    dispatcher.addListener(new AgentLifeCycleAdapter() {
+      @Override
+      public void agentShutdown() {
+        myScriptDaemons.stopAll();
+      }
+    });
+    ourInstance = this;
+  }
+
+  @Nullable
+  public static RubySdkInfoCache getSdkInfoCache() {
+    final AgentRubyServices services = ourInstance;
+    return services != null ? services.mySdkInfoCache : null;
+  }
+
+  @Nullable
+  public static RubyScriptDaemons getScriptDaemons() {
+    final AgentRubyServices services = ourInstance;
+    return services != null ? services.myScriptDaemons : null;
+  }
+
+  @Nullable
+  public static BundlerSetupCache getBundlerSetupCache() {
+    final AgentRubyServices services = ourInstance;
+    return services != null ? services.myBundlerSetupCache : null;
+  }
+
+  @Nullable
+  public static BundleCache getBundleCache() {
+    final AgentRubyServices services = ourInstance;
+    return services != null ? services.myBundleCache : null;
+  }
+}
@@ -32,6 +32,12 @@ public interface RubySdk {
   @Nullable
   String getVersion();
 
+  /**
+   * @return RUBY_PLATFORM of interpreter, e.g. 'x86_64-linux', null if unknown
+   */
+  @Nullable
+  String getPlatform();
+
   boolean isSystem();
 
   boolean isRuby19();
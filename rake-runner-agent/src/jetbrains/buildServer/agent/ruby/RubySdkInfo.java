@@ -0,0 +1,107 @@
+package jetbrains.buildServer.agent.ruby;
+
+import java.util.*;
+import jetbrains.buildServer.agent.rakerunner.utils.TextUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Facts about ruby interpreter gathered by single SDK probe.
+ * Probe output consists of sections, each section starts with line {@link #SECTION_PREFIX}&lt;section name&gt;
+ */
+public class RubySdkInfo {
+  public static final String SECTION_PREFIX = "##sdk.";
+
+  public enum Section {
+    version,
+    platform,
+    gem_paths,
+    load_path,
+    rbconfig
+  }
+
+  private final Map<Section, List<String>> mySectionsValues = new EnumMap<Section, List<String>>(Section.class);
+
+  @NotNull
+  public static RubySdkInfo parse(@NotNull final String output) {
+    final RubySdkInfo info = new RubySdkInfo();
+    List<String> current = null;
+    for (String line : TextUtil.splitByLines(output)) {
+      if (line.startsWith(SECTION_PREFIX)) {
+        current = null;
+        final String name = line.substring(SECTION_PREFIX.length()).trim();
+        for (Section section : Section.values()) {
+          if (section.name().equals(name)) {
+            current = new ArrayList<String>();
+            info.setSection(section, current);
+            break;
+          }
+        }
+      } else if (current != null && line.length() > 0) {
+        current.add(line);
+      }
+    }
+    return info;
+  }
+
+  public boolean hasSection(@NotNull final Section section) {
+    return mySectionsValues.containsKey(section);
+  }
+
+  @NotNull
+  public List<String> getSection(@NotNull final Section section) {
+    final List<String> values = mySectionsValues.get(section);
+    return values != null ? values : Collections.<String>emptyList();
+  }
+
+  public void setSection(@NotNull final Section section, @NotNull final List<String> values) {
+    mySectionsValues.put(section, values);
+  }
+
+  @Nullable
+  public String getVersion() {
+    return getFirstLine(Section.version);
+  }
+
+  @Nullable
+  public String getPlatform() {
+    return getFirstLine(Section.platform);
+  }
+
+  @NotNull
+  public String[] getGemPaths() {
+    return toArray(Section.gem_paths);
+  }
+
+  @NotNull
+  public String[] getLoadPath() {
+    return toArray(Section.load_path);
+  }
+
+  /**
+   * @return several RbConfig::CONFIG values, e.g. 'ruby_version', 'arch', 'prefix'
+   */
+  @NotNull
+  public Map<String, String> getRbConfig() {
+    final Map<String, String> config = new LinkedHashMap<String, String>();
+    for (String line : getSection(Section.rbconfig)) {
+      final int i = line.indexOf('=');
+      if (i > 0) {
+        config.put(line.substring(0, i), line.substring(i + 1));
+      }
+    }
+    return config;
+  }
+
+  @Nullable
+  private String getFirstLine(@NotNull final Section section) {
+    final List<String> values = getSection(section);
+    return values.isEmpty() ? null : values.get(0);
+  }
+
+  @NotNull
+  private String[] toArray(@NotNull final Section section) {
+    final List<String> values = getSection(section);
+    return values.toArray(new String[values.size()]);
+  }
+}
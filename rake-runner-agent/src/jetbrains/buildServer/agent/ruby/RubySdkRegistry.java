@@ -0,0 +1,141 @@
+package jetbrains.buildServer.agent.ruby;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.util.*;
+import jetbrains.buildServer.agent.rakerunner.RakeTasksBuildService;
+import jetbrains.buildServer.agent.rakerunner.utils.EnvUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Agent-wide registry of created Ruby SDKs.
+ * SDK is created only once per key, even if several build steps request it simultaneously.
+ * Entry is dropped when one of files it depends on (interpreter executable, .rvmrc, .ruby-version, etc.) changes,
+ * least recently used entries are evicted when registry is full.
+ */
+public class RubySdkRegistry {
+  private static final Logger LOG = Logger.getInstance(RubySdkRegistry.class.getName());
+  private static final int MAX_SIZE = 64;
+
+  private static final RubySdkRegistry ourInstance = new RubySdkRegistry(MAX_SIZE);
+
+  public interface SdkFactory {
+    @NotNull
+    RubySdk createSdk() throws RakeTasksBuildService.MyBuildFailureException;
+  }
+
+  private final Map<String, Entry> myEntries;
+
+  RubySdkRegistry(final int maxSize) {
+    myEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  @NotNull
+  public static RubySdkRegistry getInstance() {
+    return ourInstance;
+  }
+
+  /**
+   * @param kind    kind of sdk, e.g. 'rvm'
+   * @param id      sdk identifier unique within kind, e.g. interpreter path or name
+   * @param env     environment sdk would be set up with, only variables affecting sdk facts are taken into account
+   * @param watched files sdk depends on in addition to interpreter executable
+   * @param factory creates sdk if there is no actual one in registry
+   */
+  @NotNull
+  public RubySdk getOrCreate(@NotNull final String kind,
+                             @NotNull final String id,
+                             @NotNull final Map<String, String> env,
+                             @NotNull final Collection<File> watched,
+                             @NotNull final SdkFactory factory) throws RakeTasksBuildService.MyBuildFailureException {
+    final String key = getKey(kind, id, env);
+    Entry entry;
+    synchronized (myEntries) {
+      entry = myEntries.get(key);
+      if (entry != null && !entry.isUpToDate()) {
+        LOG.info("Ruby SDK " + key + " was changed on disk, it will be created again");
+        myEntries.remove(key);
+        entry = null;
+      }
+      if (entry == null) {
+        entry = new Entry(watched);
+        myEntries.put(key, entry);
+      }
+    }
+    return entry.getOrCreate(factory);
+  }
+
+  /**
+   * Registers already created sdk, e.g. under environment patched for it
+   */
+  public void register(@NotNull final String kind,
+                       @NotNull final String id,
+                       @NotNull final Map<String, String> env,
+                       @NotNull final Collection<File> watched,
+                       @NotNull final RubySdk sdk) {
+    final Entry entry = new Entry(watched);
+    entry.setSdk(sdk);
+    synchronized (myEntries) {
+      myEntries.put(getKey(kind, id, env), entry);
+    }
+  }
+
+  public void clear() {
+    synchronized (myEntries) {
+      myEntries.clear();
+    }
+  }
+
+  @NotNull
+  private static String getKey(@NotNull final String kind, @NotNull final String id, @NotNull final Map<String, String> env) {
+    return kind + ':' + id + ':' + EnvUtil.getRubyRelevantEnvMap(env);
+  }
+
+  private static class Entry {
+    private final Collection<File> myWatched;
+    // entry being created is up to date until it gets its stamps
+    private volatile Map<File, Long> myStamps = Collections.emptyMap();
+    @Nullable
+    private volatile RubySdk mySdk;
+
+    private Entry(@NotNull final Collection<File> watched) {
+      myWatched = new ArrayList<File>(watched);
+    }
+
+    @NotNull
+    synchronized RubySdk getOrCreate(@NotNull final SdkFactory factory) throws RakeTasksBuildService.MyBuildFailureException {
+      RubySdk sdk = mySdk;
+      if (sdk == null) {
+        sdk = factory.createSdk();
+        setSdk(sdk);
+      }
+      return sdk;
+    }
+
+    synchronized void setSdk(@NotNull final RubySdk sdk) {
+      final Map<File, Long> stamps = new HashMap<File, Long>();
+      for (File file : myWatched) {
+        stamps.put(file, file.lastModified());
+      }
+      final File executable = sdk.getRubyExecutable();
+      stamps.put(executable, executable.lastModified());
+      myStamps = stamps;
+      mySdk = sdk;
+    }
+
+    boolean isUpToDate() {
+      for (Map.Entry<File, Long> stamp : myStamps.entrySet()) {
+        if (stamp.getKey().lastModified() != stamp.getValue()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package jetbrains.buildServer.agent.ruby.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.agent.rakerunner.scripting.DaemonRubyScriptRunner;
+import jetbrains.buildServer.agent.rakerunner.scripting.RubyScriptRunner;
+import jetbrains.buildServer.agent.ruby.AgentRubyServices;
+import jetbrains.buildServer.agent.ruby.RubySdk;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Settings and lifecycle of long-lived interpreter processes used by {@link DaemonRubyScriptRunner}.
+ * Daemons are disabled by default, running daemons are stopped on agent shutdown.
+ */
+public class RubyScriptDaemons implements DaemonRubyScriptRunner.Manager {
+  public static final String DAEMON_ENABLED_PARAMETER = "teamcity.ruby.sdk.daemon.enabled";
+  public static final String DAEMON_IDLE_TIMEOUT_PARAMETER = "teamcity.ruby.sdk.daemon.idleTimeout";
+  public static final String DAEMON_EVALUATION_TIMEOUT_PARAMETER = "teamcity.ruby.sdk.daemon.evaluationTimeout";
+  private static final int DEFAULT_IDLE_TIMEOUT_SECONDS = 300;
+  private static final int DEFAULT_EVALUATION_TIMEOUT_SECONDS = 120;
+
+  @NotNull
+  private final BuildAgentConfiguration myConfiguration;
+  private final Set<DaemonRubyScriptRunner> myRunning = new HashSet<DaemonRubyScriptRunner>();
+
+  public RubyScriptDaemons(@NotNull final BuildAgentConfiguration configuration) {
+    myConfiguration = configuration;
+  }
+
+  /**
+   * @return runner evaluating scripts in long-lived interpreter if daemons are enabled on agent, otherwise given runner
+   */
+  @NotNull
+  public static RubyScriptRunner wrap(@NotNull final RubySdk sdk, @NotNull final RubyScriptRunner runner) {
+    final RubyScriptDaemons daemons = AgentRubyServices.getScriptDaemons();
+    if (daemons == null || !daemons.isEnabled()) {
+      return runner;
+    }
+    return new DaemonRubyScriptRunner(sdk, runner, daemons);
+  }
+
+  /**
+   * @return runner of given SDK which starts separate interpreter process for each script,
+   * for scripts which depend on fresh interpreter state or are too long for daemon
+   */
+  @NotNull
+  public static RubyScriptRunner getProcessRunner(@NotNull final RubySdk sdk) {
+    final RubyScriptRunner runner = sdk.getScriptRunner();
+    return runner instanceof DaemonRubyScriptRunner ? ((DaemonRubyScriptRunner)runner).getFallbackRunner() : runner;
+  }
+
+  public boolean isEnabled() {
+    return "true".equals(myConfiguration.getConfigurationParameters().get(DAEMON_ENABLED_PARAMETER));
+  }
+
+  public int getIdleTimeoutSeconds() {
+    return getPositiveParameter(DAEMON_IDLE_TIMEOUT_PARAMETER, DEFAULT_IDLE_TIMEOUT_SECONDS);
+  }
+
+  public int getEvaluationTimeoutSeconds() {
+    return getPositiveParameter(DAEMON_EVALUATION_TIMEOUT_PARAMETER, DEFAULT_EVALUATION_TIMEOUT_SECONDS);
+  }
+
+  private int getPositiveParameter(@NotNull final String name, final int defaultValue) {
+    final String value = myConfiguration.getConfigurationParameters().get(name);
+    if (value != null) {
+      try {
+        return Math.max(1, Integer.parseInt(value.trim()));
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    return defaultValue;
+  }
+
+  public synchronized void register(@NotNull final DaemonRubyScriptRunner runner) {
+    myRunning.add(runner);
+  }
+
+  public synchronized void unregister(@NotNull final DaemonRubyScriptRunner runner) {
+    myRunning.remove(runner);
+  }
+
+  public void stopAll() {
+    final List<DaemonRubyScriptRunner> running;
+    synchronized (this) {
+      running = new ArrayList<DaemonRubyScriptRunner>(myRunning);
+    }
+    for (DaemonRubyScriptRunner runner : running) {
+      runner.stop();
+    }
+  }
+}
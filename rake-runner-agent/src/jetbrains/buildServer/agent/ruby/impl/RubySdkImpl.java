@@ -4,13 +4,14 @@ package jetbrains.buildServer.agent.ruby.impl;
 
 import com.intellij.openapi.util.SystemInfo;
 import java.io.File;
-import java.util.Map;
+import java.util.*;
 import jetbrains.buildServer.ExecResult;
 import jetbrains.buildServer.agent.rakerunner.scripting.ProcessBasedRubyScriptRunner;
 import jetbrains.buildServer.agent.rakerunner.scripting.RubyScriptRunner;
 import jetbrains.buildServer.agent.rakerunner.utils.InternalRubySdkUtil;
-import jetbrains.buildServer.agent.rakerunner.utils.TextUtil;
+import jetbrains.buildServer.agent.ruby.AgentRubyServices;
 import jetbrains.buildServer.agent.ruby.RubySdk;
+import jetbrains.buildServer.agent.ruby.RubySdkInfo;
 import jetbrains.buildServer.agent.ruby.RubyVersionManager;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -29,13 +30,15 @@ public class RubySdkImpl implements RubySdk {
   @NotNull
   private final String myRubyName;
 
-  private String myVersion = null;
-  private boolean myIsJRuby;
-  private String[] myGemPaths;
-  private String[] myLoadPaths;
-  private ExecResult myGemPathsLog;
-  private ExecResult myLoadPathsLog;
-  private boolean myIsSetupCompleted = false;
+  // facts are resolved lazily, when requested for the first time
+  @Nullable
+  private Map<String, String> mySetupEnv = null;
+  private final RubySdkInfo myInfo = new RubySdkInfo();
+  private final Map<RubySdkInfo.Section, ExecResult> myFetchLogs = new EnumMap<RubySdkInfo.Section, ExecResult>(RubySdkInfo.Section.class);
+  private boolean myIsStaticInfoChecked = false;
+  private boolean myIsCachedInfoChecked = false;
+  @Nullable
+  private RubyScriptRunner myScriptRunner = null;
 
   public RubySdkImpl(@SuppressWarnings("NullableProblems") @NotNull final File home,
                      @SuppressWarnings("NullableProblems") @Nullable final File executable) {
@@ -90,60 +93,51 @@ public class RubySdkImpl implements RubySdk {
   }
 
   @NotNull
-  public String[] getGemPaths() {
-    return myGemPaths;
+  public synchronized String[] getGemPaths() {
+    return getFacts(RubySdkInfo.Section.gem_paths).getGemPaths();
   }
 
   public boolean isRuby19() {
-    return myVersion != null && myVersion.contains("1.9.");
+    final String version = getVersion();
+    return version != null && version.contains("1.9.");
   }
 
-  public boolean isJRuby() {
-    return myIsJRuby;
+  public synchronized boolean isJRuby() {
+    return InternalRubySdkUtil.isJRubyInterpreter(this, null)
+           || InternalRubySdkUtil.isJRubyInterpreter(this, getFacts(RubySdkInfo.Section.platform).getPlatform());
   }
 
   @NotNull
   public ExecResult getGemPathsFetchLog() {
-    return myGemPathsLog;
+    return getFetchLog(RubySdkInfo.Section.gem_paths);
   }
 
   @NotNull
   public ExecResult getLoadPathsFetchLog() {
-    return myLoadPathsLog;
+    return getFetchLog(RubySdkInfo.Section.load_path);
   }
 
   @NotNull
-  public RubyScriptRunner getScriptRunner() {
-    return new ProcessBasedRubyScriptRunner(this);
+  public synchronized RubyScriptRunner getScriptRunner() {
+    if (myScriptRunner == null) {
+      myScriptRunner = RubyScriptDaemons.wrap(this, new ProcessBasedRubyScriptRunner(this));
+    }
+    return myScriptRunner;
   }
 
   @Nullable
-  public String getVersion() {
-    return myVersion;
-  }
-
-  @NotNull
-  public String[] getLoadPath() {
-    return myLoadPaths;
-  }
-
-  public void setVersion(final String version) {
-    myVersion = version;
-  }
-
-  public void setIsJRuby(final boolean isJRuby) {
-    myIsJRuby = isJRuby;
+  public synchronized String getVersion() {
+    return getFacts(RubySdkInfo.Section.version).getVersion();
   }
 
-  public void setGemPathsLog(final ExecResult gemPathsLog) {
-    myGemPathsLog = gemPathsLog;
-    myGemPaths = TextUtil.splitByLines(gemPathsLog.getStdout());
-
+  @Nullable
+  public synchronized String getPlatform() {
+    return getFacts(RubySdkInfo.Section.platform).getPlatform();
   }
 
-  public void setLoadPathsLog(final ExecResult loadPathsLog) {
-    myLoadPathsLog = loadPathsLog;
-    myLoadPaths = TextUtil.splitByLines(loadPathsLog.getStdout());
+  @NotNull
+  public synchronized String[] getLoadPath() {
+    return getFacts(RubySdkInfo.Section.load_path).getLoadPath();
   }
 
   @Nullable
@@ -175,24 +169,92 @@ public class RubySdkImpl implements RubySdk {
     return myHome != null ? myHome.getName() : myExecutablePath.getAbsolutePath();
   }
 
-  public void setup(@NotNull final Map<String, String> env) {
-    if (myIsSetupCompleted) {
+  public synchronized void setup(@NotNull final Map<String, String> env) {
+    if (mySetupEnv != null) {
       return;
     }
+    // nothing is launched here, facts are resolved on demand
+    mySetupEnv = new HashMap<String, String>(env);
+  }
 
-    // ruby version
-    setVersion(InternalRubySdkUtil.getRubyInterpreterVersion(this, env));
+  @NotNull
+  private synchronized ExecResult getFetchLog(@NotNull final RubySdkInfo.Section section) {
+    // log of failed probe is reported as is, fact itself is probed again on next request
+    ExecResult log = myFetchLogs.get(section);
+    if (log == null) {
+      getFacts(section);
+      log = myFetchLogs.get(section);
+    }
+    return log != null ? log : InternalRubySdkUtil.getSectionLog(null, myInfo, section);
+  }
 
-    // ruby / jruby
-    setIsJRuby(InternalRubySdkUtil.isJRubyInterpreter(this, env));
+  /**
+   * Resolves requested fact if it isn't known yet: from install tree, then from persistent cache, then by running interpreter.
+   * Interpreter run gathers other missing cheap facts too, but load path is gathered only when requested.
+   * SDK is shared by builds, so facts of failed run are left unknown and requested again.
+   */
+  @NotNull
+  private synchronized RubySdkInfo getFacts(@NotNull final RubySdkInfo.Section section) {
+    final Map<String, String> env = mySetupEnv;
+    if (myInfo.hasSection(section) || env == null) {
+      return myInfo;
+    }
 
-    // gem paths
-    setGemPathsLog(InternalRubySdkUtil.getGemPaths(this, env));
+    if (!myIsStaticInfoChecked) {
+      myIsStaticInfoChecked = true;
+      merge(StaticRubySdkIntrospector.introspect(this, env));
+      if (myInfo.hasSection(section)) {
+        return myInfo;
+      }
+    }
+
+    final RubySdkInfoCache cache = AgentRubyServices.getSdkInfoCache();
+    if (!myIsCachedInfoChecked && cache != null) {
+      myIsCachedInfoChecked = true;
+      merge(cache.get(this, env));
+      if (myInfo.hasSection(section)) {
+        return myInfo;
+      }
+    }
+
+    final Set<RubySdkInfo.Section> requested = EnumSet.of(section);
+    if (section != RubySdkInfo.Section.load_path) {
+      for (RubySdkInfo.Section s : RubySdkInfo.Section.values()) {
+        if (s != RubySdkInfo.Section.load_path && !myInfo.hasSection(s)) {
+          requested.add(s);
+        }
+      }
+    }
+
+    final ExecResult probeResult = InternalRubySdkUtil.getSdkInfo(this, env, requested);
+    final RubySdkInfo probed = RubySdkInfo.parse(probeResult.getStdout());
+    final boolean successful = isSuccessful(probeResult);
+    for (RubySdkInfo.Section s : requested) {
+      if (successful) {
+        myInfo.setSection(s, probed.getSection(s));
+      }
+      // fetch log keeps the error
+      myFetchLogs.put(s, InternalRubySdkUtil.getSectionLog(probeResult, probed, s));
+    }
+    if (cache != null && successful) {
+      cache.put(this, env, myInfo);
+    }
+    return myInfo;
+  }
 
-    // load path
-    setLoadPathsLog(InternalRubySdkUtil.getLoadPaths(this, env));
+  private void merge(@Nullable final RubySdkInfo info) {
+    if (info == null) {
+      return;
+    }
+    for (RubySdkInfo.Section section : RubySdkInfo.Section.values()) {
+      if (info.hasSection(section) && !myInfo.hasSection(section)) {
+        myInfo.setSection(section, info.getSection(section));
+      }
+    }
+  }
 
-    // Set setup completed
-    myIsSetupCompleted = true;
+  private static boolean isSuccessful(@NotNull final ExecResult result) {
+    //noinspection ThrowableResultOfMethodCallIgnored
+    return result.getExitCode() == 0 && result.getException() == null;
   }
-}
\ No newline at end of file
+}
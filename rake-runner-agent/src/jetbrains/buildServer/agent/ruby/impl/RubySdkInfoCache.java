@@ -0,0 +1,170 @@
+package jetbrains.buildServer.agent.ruby.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.*;
+import java.util.*;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.agent.rakerunner.utils.EnvUtil;
+import jetbrains.buildServer.agent.rakerunner.utils.InternalRubySdkUtil;
+import jetbrains.buildServer.agent.rakerunner.utils.TextUtil;
+import jetbrains.buildServer.agent.ruby.RubySdk;
+import jetbrains.buildServer.agent.ruby.RubySdkInfo;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Agent-local persistent cache of {@link RubySdkInfo}.
+ * Entry is keyed by interpreter fingerprint: canonical executable path, size and modification time,
+ * sdk name and gemset and environment variables affecting gem paths and load path.
+ * Broken or stale entries are ignored and removed.
+ */
+public class RubySdkInfoCache {
+  private static final Logger LOG = Logger.getInstance(RubySdkInfoCache.class.getName());
+
+  private static final String CACHE_DIRECTORY_NAME = "ruby.sdk.info";
+  private static final String KEY_PROPERTY = "key";
+  private static final String SECTION_PROPERTY_PREFIX = "section.";
+
+  @NotNull
+  private final File myCacheDirectory;
+
+  public RubySdkInfoCache(@NotNull final BuildAgentConfiguration configuration) {
+    this(configuration.getCacheDirectory(CACHE_DIRECTORY_NAME));
+  }
+
+  RubySdkInfoCache(@NotNull final File cacheDirectory) {
+    myCacheDirectory = cacheDirectory;
+  }
+
+  @Nullable
+  public RubySdkInfo get(@NotNull final RubySdk sdk, @NotNull final Map<String, String> env) {
+    final String key = getKey(sdk, env);
+    if (key == null) {
+      return null;
+    }
+    final File file = getEntryFile(key);
+    if (!file.isFile()) {
+      LOG.info("Ruby SDK info cache miss for " + sdk.getName());
+      return null;
+    }
+
+    final Properties properties = new Properties();
+    InputStream is = null;
+    try {
+      is = new BufferedInputStream(new FileInputStream(file));
+      properties.load(is);
+    } catch (Exception e) {
+      LOG.warn("Failed to read Ruby SDK info cache entry " + file + ", removing it: " + e.toString());
+      FileUtil.close(is);
+      is = null;
+      FileUtil.delete(file);
+      return null;
+    } finally {
+      FileUtil.close(is);
+    }
+
+    if (!key.equals(properties.getProperty(KEY_PROPERTY))) {
+      LOG.info("Ruby SDK info cache miss for " + sdk.getName() + ": entry doesn't match fingerprint");
+      return null;
+    }
+
+    final RubySdkInfo info = new RubySdkInfo();
+    for (RubySdkInfo.Section section : RubySdkInfo.Section.values()) {
+      final String value = properties.getProperty(SECTION_PROPERTY_PREFIX + section.name());
+      if (value != null) {
+        info.setSection(section, value.length() == 0
+                                 ? new ArrayList<String>()
+                                 : new ArrayList<String>(Arrays.asList(value.split("\n"))));
+      }
+    }
+    if (!hasAnySection(info)) {
+      LOG.warn("Ruby SDK info cache entry " + file + " is empty, removing it");
+      FileUtil.delete(file);
+      return null;
+    }
+
+    LOG.info("Ruby SDK info cache hit for " + sdk.getName());
+    return info;
+  }
+
+  public void put(@NotNull final RubySdk sdk, @NotNull final Map<String, String> env, @NotNull final RubySdkInfo info) {
+    final String key = getKey(sdk, env);
+    if (key == null) {
+      return;
+    }
+
+    final Properties properties = new Properties();
+    properties.setProperty(KEY_PROPERTY, key);
+    for (RubySdkInfo.Section section : RubySdkInfo.Section.values()) {
+      if (info.hasSection(section)) {
+        properties.setProperty(SECTION_PROPERTY_PREFIX + section.name(), StringUtil.join(info.getSection(section), "\n"));
+      }
+    }
+
+    // write to temp file and rename it, so concurrent readers never see partially written entry
+    final File file = getEntryFile(key);
+    OutputStream os = null;
+    File temp = null;
+    try {
+      //noinspection ResultOfMethodCallIgnored
+      myCacheDirectory.mkdirs();
+      temp = File.createTempFile(file.getName(), ".tmp", myCacheDirectory);
+      os = new BufferedOutputStream(new FileOutputStream(temp));
+      properties.store(os, "Ruby SDK info for " + sdk.getName());
+      os.close();
+      os = null;
+      if (!temp.renameTo(file)) {
+        FileUtil.delete(file);
+        if (!temp.renameTo(file)) {
+          LOG.warn("Failed to store Ruby SDK info cache entry " + file);
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to store Ruby SDK info cache entry " + file + ": " + e.toString());
+    } finally {
+      FileUtil.close(os);
+      if (temp != null && temp.exists()) {
+        FileUtil.delete(temp);
+      }
+    }
+  }
+
+  private static boolean hasAnySection(@NotNull final RubySdkInfo info) {
+    for (RubySdkInfo.Section section : RubySdkInfo.Section.values()) {
+      if (info.hasSection(section)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @NotNull
+  private File getEntryFile(@NotNull final String key) {
+    return new File(myCacheDirectory, TextUtil.sha1(key) + ".properties");
+  }
+
+  @Nullable
+  private static String getKey(@NotNull final RubySdk sdk, @NotNull final Map<String, String> env) {
+    final File executable = sdk.getRubyExecutable();
+    final String canonicalPath;
+    try {
+      canonicalPath = executable.getCanonicalPath();
+    } catch (IOException e) {
+      return null;
+    }
+    final File canonical = new File(canonicalPath);
+    if (!canonical.isFile()) {
+      return null;
+    }
+
+    final StringBuilder sb = new StringBuilder();
+    sb.append(canonicalPath).append('|').append(canonical.length()).append('|').append(canonical.lastModified());
+    sb.append('|').append(sdk.getName()).append('|').append(sdk.getGemset());
+    sb.append('|').append(TextUtil.sha1(EnvUtil.getRubyRelevantEnvMap(env).toString()));
+    // probe script changes must invalidate entries
+    sb.append('|').append(TextUtil.sha1(InternalRubySdkUtil.SDK_INFO_SCRIPT));
+    return sb.toString();
+  }
+}
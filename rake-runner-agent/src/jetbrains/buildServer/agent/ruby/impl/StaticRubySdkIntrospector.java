@@ -0,0 +1,331 @@
+package jetbrains.buildServer.agent.ruby.impl;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.jar.JarFile;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import jetbrains.buildServer.agent.ruby.RubySdk;
+import jetbrains.buildServer.agent.ruby.RubySdkInfo;
+import jetbrains.buildServer.agent.ruby.SdkUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.plugins.ruby.rvm.RVMPathsSettings;
+import org.jetbrains.plugins.ruby.rvm.RVMSupportUtil;
+
+/**
+ * Gathers {@link RubySdkInfo} of MRI installed with rbenv or RVM from install tree without launching interpreter:
+ * version and platform are read from 'lib/ruby/&lt;abi&gt;/&lt;arch&gt;/rbconfig.rb',
+ * gem paths and load path are computed the same way as rubygems and ruby do it.
+ * For JRuby version is read from 'lib/jruby.jar', so JVM isn't started at all.
+ */
+public class StaticRubySdkIntrospector {
+  private static final Logger LOG = Logger.getInstance(StaticRubySdkIntrospector.class.getName());
+
+  private static final Pattern ABI_DIR_PATTERN = Pattern.compile("\\d+\\.\\d+(\\.\\d+)?");
+  private static final Pattern CONFIG_VALUE_PATTERN = Pattern.compile("^\\s*CONFIG\\[\"(\\w+)\"\\]\\s*=\\s*\"([^\"$#]*)\"\\s*$");
+  private static final Pattern VERSION_CHECK_PATTERN = Pattern.compile("RUBY_VERSION\\s*==\\s*\"(\\d+\\.\\d+\\.\\d+)\"");
+  private static final Pattern API_VERSION_PATTERN = Pattern.compile("^#define\\s+RUBY_API_VERSION_(MAJOR|MINOR|TEENY)\\s+(\\d+)");
+  private static final String[] ENV_OVERRIDES = {"GEM_HOME", "GEM_PATH", "RUBYLIB", "RUBYOPT"};
+  private static final String JRUBY_JAR = "lib" + File.separator + "jruby.jar";
+  private static final String JRUBY_PROPERTIES = "org/jruby/jruby.properties";
+  private static final Pattern JRUBY_VERSION_PATTERN = Pattern.compile("(\\d+)\\.(\\d+)\\.\\d+.*");
+
+  /**
+   * @return sdk info or null if install layout is unknown or environment may affect gem paths or load path
+   */
+  @Nullable
+  public static RubySdkInfo introspect(@NotNull final RubySdk sdk, @NotNull final Map<String, String> env) {
+    final File home = sdk.getHome();
+    final File jrubyHome = findJRubyHome(sdk);
+    if (jrubyHome == null && (home == null || sdk.isSystem() || !(SdkUtil.isRbEnvSdk(sdk) || SdkUtil.isRvmSdk(sdk)))) {
+      return null;
+    }
+    for (String name : ENV_OVERRIDES) {
+      if (env.containsKey(name) && !(SdkUtil.isRvmSdk(sdk) && name.startsWith("GEM_"))) {
+        // rvm always sets its own gem paths
+        return null;
+      }
+    }
+    try {
+      if (jrubyHome != null) {
+        // JRUBY_OPTS may switch compatibility version, e.g. '--1.8'
+        return env.containsKey("JRUBY_OPTS") ? null : introspectJRuby(sdk, jrubyHome, env);
+      }
+      //noinspection ConstantConditions
+      return introspect(sdk, home, env);
+    } catch (IOException e) {
+      LOG.debug("Failed to introspect Ruby SDK " + sdk.getName() + " from files: " + e.toString());
+      return null;
+    }
+  }
+
+  @Nullable
+  private static RubySdkInfo introspect(@NotNull final RubySdk sdk,
+                                        @NotNull final File home,
+                                        @NotNull final Map<String, String> env) throws IOException {
+    final File libRuby = new File(home, "lib" + File.separator + "ruby");
+    final File rbconfig = findRbConfig(libRuby);
+    if (rbconfig == null) {
+      return null;
+    }
+    final List<String> rbconfigLines = readLines(rbconfig);
+    final Map<String, String> config = parseRbConfig(rbconfigLines);
+    final String abi = rbconfig.getParentFile().getParentFile().getName();
+    final String arch = config.get("arch");
+    if (!"ruby".equals(config.get("ruby_install_name")) || arch == null || !abi.equals(config.get("ruby_version"))) {
+      // not MRI or unexpected layout
+      return null;
+    }
+    final String version = getVersion(config, rbconfigLines, findVersionHeader(home, abi));
+    if (version == null) {
+      return null;
+    }
+
+    final RubySdkInfo info = new RubySdkInfo();
+    info.setSection(RubySdkInfo.Section.version, Collections.singletonList(version));
+    info.setSection(RubySdkInfo.Section.platform, Collections.singletonList(arch));
+    info.setSection(RubySdkInfo.Section.gem_paths, getGemPaths(sdk, home, abi, env));
+    info.setSection(RubySdkInfo.Section.load_path, getLoadPath(libRuby, abi, arch));
+
+    final List<String> rbConfig = new ArrayList<String>();
+    rbConfig.add("ruby_version=" + abi);
+    rbConfig.add("arch=" + arch);
+    rbConfig.add("prefix=" + home.getAbsolutePath());
+    rbConfig.add("bindir=" + new File(home, "bin").getAbsolutePath());
+    rbConfig.add("rubylibdir=" + new File(libRuby, abi).getAbsolutePath());
+    rbConfig.add("ruby_install_name=ruby");
+    info.setSection(RubySdkInfo.Section.rbconfig, rbConfig);
+    return info;
+  }
+
+  /**
+   * @return JRuby install folder (containing 'lib/jruby.jar') or null if sdk isn't JRuby
+   */
+  @Nullable
+  public static File findJRubyHome(@NotNull final RubySdk sdk) {
+    File home = sdk.getHome();
+    if (home == null) {
+      final File executable = sdk.getRubyExecutable();
+      if (!executable.getName().startsWith("jruby")) {
+        return null;
+      }
+      try {
+        // executable is often a symlink to 'bin/jruby' in install folder
+        final File bin = executable.getCanonicalFile().getParentFile();
+        home = bin != null ? bin.getParentFile() : null;
+      } catch (IOException e) {
+        return null;
+      }
+    }
+    return home != null && new File(home, JRUBY_JAR).isFile() ? home : null;
+  }
+
+  @Nullable
+  private static RubySdkInfo introspectJRuby(@NotNull final RubySdk sdk,
+                                             @NotNull final File home,
+                                             @NotNull final Map<String, String> env) throws IOException {
+    final Properties properties = readJRubyProperties(new File(home, JRUBY_JAR));
+    if (properties == null) {
+      return null;
+    }
+    // JRuby 9k has single ruby version, JRuby 1.7 runs in 1.9 mode by default
+    final boolean is9k = properties.getProperty("version.ruby") != null;
+    final String version = is9k ? properties.getProperty("version.ruby") : properties.getProperty("version.ruby1_9");
+    final Matcher matcher = version != null ? JRUBY_VERSION_PATTERN.matcher(version) : null;
+    if (matcher == null || !matcher.matches()) {
+      return null;
+    }
+    final String abi = matcher.group(1) + "." + matcher.group(2) + (is9k ? ".0" : "");
+
+    final RubySdkInfo info = new RubySdkInfo();
+    info.setSection(RubySdkInfo.Section.version, Collections.singletonList(version));
+    info.setSection(RubySdkInfo.Section.platform, Collections.singletonList("java"));
+
+    final File libRuby = new File(home, "lib" + File.separator + "ruby");
+    final List<String> gemPaths = new ArrayList<String>();
+    if (SdkUtil.isRvmSdk(sdk)) {
+      gemPaths.addAll(getGemPaths(sdk, home, abi, env));
+    } else {
+      // rubygems defaults: user dir and shared dir of JRuby
+      final String userHome = env.containsKey("HOME") ? env.get("HOME") : System.getProperty("user.home");
+      gemPaths.add(new File(userHome, ".gem" + File.separator + "jruby" + File.separator + abi).getAbsolutePath());
+      gemPaths.add(new File(libRuby, "gems" + File.separator + "shared").getAbsolutePath());
+    }
+    info.setSection(RubySdkInfo.Section.gem_paths, gemPaths);
+
+    final File stdlib = new File(libRuby, "stdlib");
+    if (is9k && stdlib.isDirectory()) {
+      // JRuby 1.7 load path depends on compatibility mode, it's requested from interpreter if needed
+      final List<String> loadPath = new ArrayList<String>();
+      loadPath.add(new File(libRuby, matcher.group(1) + "." + matcher.group(2) + File.separator + "site_ruby").getAbsolutePath());
+      loadPath.add(stdlib.getAbsolutePath());
+      info.setSection(RubySdkInfo.Section.load_path, loadPath);
+    }
+
+    final List<String> rbConfig = new ArrayList<String>();
+    rbConfig.add("ruby_version=" + abi);
+    rbConfig.add("arch=java");
+    rbConfig.add("prefix=" + home.getAbsolutePath());
+    rbConfig.add("bindir=" + new File(home, "bin").getAbsolutePath());
+    rbConfig.add("ruby_install_name=jruby");
+    info.setSection(RubySdkInfo.Section.rbconfig, rbConfig);
+    return info;
+  }
+
+  @Nullable
+  private static Properties readJRubyProperties(@NotNull final File jar) throws IOException {
+    final JarFile jarFile = new JarFile(jar);
+    try {
+      final ZipEntry entry = jarFile.getEntry(JRUBY_PROPERTIES);
+      if (entry == null) {
+        return null;
+      }
+      final InputStream is = jarFile.getInputStream(entry);
+      try {
+        final Properties properties = new Properties();
+        properties.load(is);
+        return properties;
+      } finally {
+        is.close();
+      }
+    } finally {
+      jarFile.close();
+    }
+  }
+
+  @Nullable
+  private static File findRbConfig(@NotNull final File libRuby) {
+    final File[] abiDirs = libRuby.listFiles();
+    if (abiDirs == null) {
+      return null;
+    }
+    File found = null;
+    for (File abiDir : abiDirs) {
+      if (!abiDir.isDirectory() || !ABI_DIR_PATTERN.matcher(abiDir.getName()).matches()) {
+        continue;
+      }
+      final File[] archDirs = abiDir.listFiles();
+      if (archDirs == null) {
+        continue;
+      }
+      for (File archDir : archDirs) {
+        final File rbconfig = new File(archDir, "rbconfig.rb");
+        if (rbconfig.isFile()) {
+          if (found != null) {
+            // several abi or arch dirs, cannot choose
+            return null;
+          }
+          found = rbconfig;
+        }
+      }
+    }
+    return found;
+  }
+
+  @Nullable
+  private static File findVersionHeader(@NotNull final File home, @NotNull final String abi) {
+    final File header = new File(home, "include" + File.separator + "ruby-" + abi + File.separator + "ruby" + File.separator + "version.h");
+    return header.isFile() ? header : null;
+  }
+
+  @NotNull
+  static Map<String, String> parseRbConfig(@NotNull final List<String> lines) {
+    final Map<String, String> config = new HashMap<String, String>();
+    for (String line : lines) {
+      final Matcher matcher = CONFIG_VALUE_PATTERN.matcher(line);
+      if (matcher.matches() && !config.containsKey(matcher.group(1))) {
+        config.put(matcher.group(1), matcher.group(2));
+      }
+    }
+    return config;
+  }
+
+  @Nullable
+  static String getVersion(@NotNull final Map<String, String> config,
+                           @NotNull final List<String> rbconfigLines,
+                           @Nullable final File versionHeader) throws IOException {
+    final String major = config.get("MAJOR");
+    final String minor = config.get("MINOR");
+    final String teeny = config.get("TEENY");
+    final String version;
+    if (major != null && minor != null && teeny != null) {
+      version = major + "." + minor + "." + teeny;
+    } else {
+      // old rbconfig.rb files check RUBY_VERSION instead
+      String checked = null;
+      for (String line : rbconfigLines) {
+        final Matcher matcher = VERSION_CHECK_PATTERN.matcher(line);
+        if (matcher.find()) {
+          checked = matcher.group(1);
+          break;
+        }
+      }
+      version = checked;
+    }
+    if (version == null || versionHeader == null) {
+      return version;
+    }
+
+    // installed headers must belong to the same major and minor version
+    final Map<String, String> api = new HashMap<String, String>();
+    for (String line : readLines(versionHeader)) {
+      final Matcher matcher = API_VERSION_PATTERN.matcher(line);
+      if (matcher.find()) {
+        api.put(matcher.group(1), matcher.group(2));
+      }
+    }
+    if (api.containsKey("MAJOR") && api.containsKey("MINOR") && !version.startsWith(api.get("MAJOR") + "." + api.get("MINOR") + ".")) {
+      return null;
+    }
+    return version;
+  }
+
+  @NotNull
+  private static List<String> getGemPaths(@NotNull final RubySdk sdk,
+                                          @NotNull final File home,
+                                          @NotNull final String abi,
+                                          @NotNull final Map<String, String> env) {
+    final List<String> paths = new ArrayList<String>();
+    if (SdkUtil.isRvmSdk(sdk)) {
+      // rvm sets GEM_HOME to sdk gemset folder and GEM_PATH to gemset and global gemset folders
+      final File gems = new File(RVMPathsSettings.getRVMNullSafe().getPath(), "gems");
+      final String name = home.getName();
+      final String separator = RVMSupportUtil.getGemsetSeparator();
+      final String gemset = sdk.getGemset();
+      paths.add(new File(gems, gemset == null ? name : name + separator + gemset).getAbsolutePath());
+      paths.add(new File(gems, name + separator + "global").getAbsolutePath());
+    } else {
+      // rubygems defaults: user dir and default dir
+      final String userHome = env.containsKey("HOME") ? env.get("HOME") : System.getProperty("user.home");
+      paths.add(new File(userHome, ".gem" + File.separator + "ruby" + File.separator + abi).getAbsolutePath());
+      paths.add(new File(home, "lib" + File.separator + "ruby" + File.separator + "gems" + File.separator + abi).getAbsolutePath());
+    }
+    return paths;
+  }
+
+  @NotNull
+  private static List<String> getLoadPath(@NotNull final File libRuby, @NotNull final String abi, @NotNull final String arch) {
+    final List<String> paths = new ArrayList<String>();
+    for (String dir : new String[]{"site_ruby", "vendor_ruby"}) {
+      final File base = new File(libRuby, dir);
+      paths.add(new File(base, abi).getAbsolutePath());
+      paths.add(new File(base, abi + File.separator + arch).getAbsolutePath());
+      paths.add(base.getAbsolutePath());
+    }
+    paths.add(new File(libRuby, abi).getAbsolutePath());
+    paths.add(new File(libRuby, abi + File.separator + arch).getAbsolutePath());
+    return paths;
+  }
+
+  @NotNull
+  private static List<String> readLines(@NotNull final File file) throws IOException {
+    return Files.readAllLines(file.toPath(), Charset.forName("ISO-8859-1"));
+  }
+}
@@ -8,6 +8,7 @@ import java.util.Collection;
 import java.util.List;
 import jetbrains.buildServer.ExecResult;
 import jetbrains.buildServer.agent.rakerunner.utils.EnvironmentPatchableMap;
+import jetbrains.buildServer.agent.rakerunner.utils.OSUtil;
 import jetbrains.buildServer.agent.rakerunner.utils.RunnerUtil;
 import jetbrains.buildServer.agent.ruby.RubyVersionManager;
 import jetbrains.buildServer.util.StringUtil;
@@ -29,6 +30,20 @@ public class InstalledRbEnv extends RubyVersionManager {
     @Nullable
     @Override
     protected File createValue() {
+      // explicit root wins, as in 'rbenv root'
+      final String rootVariable = System.getenv(Constants.RBENV_ROOT_ENV_VARIABLE);
+      if (!StringUtil.isEmpty(rootVariable)) {
+        return new File(rootVariable);
+      }
+      // rbenv installed with git keeps versions in its home
+      if (new File(myHome, "versions").isDirectory()) {
+        return myHome;
+      }
+      // otherwise same default as 'rbenv root' uses
+      final String home = OSUtil.getUserHomeFolder();
+      if (home != null) {
+        return new File(home, ".rbenv");
+      }
       final String root = executeCommandLine(getExecutablePath(), "root");
       final List<String> split = StringUtil.split(root, true, '\n', '\r');
       final File file = new File(split.iterator().next());
@@ -82,6 +97,10 @@ public class InstalledRbEnv extends RubyVersionManager {
 
   @NotNull
   public Collection<String> getInstalledVersions() {
+    final File versions = getRubiesFolder();
+    if (versions != null) {
+      return RbEnvVersionsIndex.getInstance(versions).getVersions();
+    }
     final String stdout = executeCommandLine(getExecutablePath(), "versions", "--bare");
     return StringUtil.split(stdout, true, '\n');
   }
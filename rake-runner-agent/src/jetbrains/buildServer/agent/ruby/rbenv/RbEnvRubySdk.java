@@ -3,9 +3,8 @@
 package jetbrains.buildServer.agent.ruby.rbenv;
 
 import java.io.File;
-import jetbrains.buildServer.agent.rakerunner.scripting.RubyScriptRunner;
-import jetbrains.buildServer.agent.rakerunner.scripting.ShellBasedRubyScriptRunner;
 import jetbrains.buildServer.agent.rakerunner.utils.EnvironmentPatchableMap;
+import jetbrains.buildServer.agent.rakerunner.utils.OSUtil;
 import jetbrains.buildServer.agent.ruby.RubyVersionManager;
 import jetbrains.buildServer.agent.ruby.impl.RubySdkImpl;
 import org.jetbrains.annotations.NotNull;
@@ -17,7 +16,6 @@ public class RbEnvRubySdk extends RubySdkImpl {
 
   @NotNull private final String myName;
   @NotNull private final InstalledRbEnv myRbEnv;
-  @NotNull private final ShellBasedRubyScriptRunner myRubyScriptRunner;
 
   public RbEnvRubySdk(@NotNull final File home,
                       @NotNull final String name,
@@ -25,16 +23,19 @@ public class RbEnvRubySdk extends RubySdkImpl {
     super(home, null);
     myName = name;
     myRbEnv = rbEnv;
-    myRubyScriptRunner = new ShellBasedRubyScriptRunner(new RbEnvShellRunner(rbEnv) {
-      @Override
-      public String getVersion() {
-        return myName;
-      }
-    });
   }
 
+  /**
+   * Sets environment the way 'rbenv exec' does, so interpreter and gem executables are run directly, bypassing shims
+   */
   public void patchEnvironment(EnvironmentPatchableMap env) {
     env.put(Constants.RBENV_VERSION_ENV_VARIABLE, myName);
+    env.put(Constants.RBENV_ROOT_ENV_VARIABLE, myRbEnv.getRoot().getAbsolutePath());
+    final File bin = getRubyExecutable().getParentFile();
+    final String path = OSUtil.getPATHEnvVariable(env);
+    if (bin != null && (path == null || !path.startsWith(bin.getAbsolutePath() + File.pathSeparator))) {
+      OSUtil.prependToPATHEnvVariable(bin.getAbsolutePath(), env);
+    }
   }
 
   @NotNull
@@ -48,10 +49,4 @@ public class RbEnvRubySdk extends RubySdkImpl {
   public String getName() {
     return myName;
   }
-
-  @NotNull
-  @Override
-  public RubyScriptRunner getScriptRunner() {
-    return myRubyScriptRunner;
-  }
 }
\ No newline at end of file
@@ -0,0 +1,67 @@
+package jetbrains.buildServer.agent.ruby.rbenv;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import jetbrains.buildServer.agent.rakerunner.utils.DirectoryWatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Agent-lifetime index of rbenv versions read from '$RBENV_ROOT/versions' folder like 'rbenv versions --bare' does.
+ * Index is shared by all {@link InstalledRbEnv} instances with the same root and is refreshed when folder changes.
+ */
+public class RbEnvVersionsIndex {
+  private static final ConcurrentMap<File, RbEnvVersionsIndex> ourIndexes = new ConcurrentHashMap<File, RbEnvVersionsIndex>();
+
+  @NotNull
+  private final File myVersionsFolder;
+  @NotNull
+  private final DirectoryWatcher.Key myVersionsKey;
+  @Nullable
+  private SortedSet<String> myVersions;
+
+  private RbEnvVersionsIndex(@NotNull final File versionsFolder) {
+    myVersionsFolder = versionsFolder;
+    myVersionsKey = DirectoryWatcher.getInstance().watch(versionsFolder);
+  }
+
+  @NotNull
+  public static RbEnvVersionsIndex getInstance(@NotNull final File versionsFolder) {
+    RbEnvVersionsIndex index = ourIndexes.get(versionsFolder);
+    if (index == null) {
+      final RbEnvVersionsIndex created = new RbEnvVersionsIndex(versionsFolder);
+      index = ourIndexes.putIfAbsent(versionsFolder, created);
+      if (index == null) {
+        index = created;
+      }
+    }
+    return index;
+  }
+
+  @NotNull
+  public synchronized SortedSet<String> getVersions() {
+    if (myVersions == null || myVersionsKey.pollChanged()) {
+      myVersions = readVersions();
+    }
+    return myVersions;
+  }
+
+  @NotNull
+  private SortedSet<String> readVersions() {
+    final SortedSet<String> versions = new TreeSet<String>();
+    final File[] files = myVersionsFolder.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        // symlinks to other versions are reported by rbenv too
+        if (file.isDirectory() && !file.getName().startsWith(".")) {
+          versions.add(file.getName());
+        }
+      }
+    }
+    return Collections.unmodifiableSortedSet(versions);
+  }
+}
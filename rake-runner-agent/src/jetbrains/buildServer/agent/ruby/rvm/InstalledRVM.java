@@ -3,10 +3,12 @@
 package jetbrains.buildServer.agent.ruby.rvm;
 
 import com.intellij.openapi.diagnostic.Logger;
-import com.intellij.openapi.util.Condition;
+import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.SystemInfo;
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 import jetbrains.buildServer.ExecResult;
 import jetbrains.buildServer.agent.rakerunner.utils.FileUtil2;
@@ -32,6 +34,8 @@ import static org.jetbrains.plugins.ruby.rvm.SharedRVMUtil.Constants.RVM_RUBIES_
 public class InstalledRVM extends RubyVersionManager {
   public static final String NAME = "rvm";
   private static final Logger LOG = Logger.getInstance(InstalledRVM.class.getName());
+  private static final Map<String, Pair<Long, Map<String, String>>> ourKnownNamesIndexes =
+    new ConcurrentHashMap<String, Pair<Long, Map<String, String>>>();
   @NotNull
   private final String myPath;
   @NotNull
@@ -116,37 +120,8 @@ public class InstalledRVM extends RubyVersionManager {
       return SharedRVMUtil.RubyDistToGemsetTable.emptyTable();
     }
 
-    final File rubyGemsFolder = new File(rubyGemsFolderPath);
-    final File rubySdksRoot = new File(rubySdksRootPath);
-
-    final HashSet<String> distSet = new HashSet<String>(Arrays.asList(rubySdksRoot.list()));
-    if (distSet.isEmpty()) {
-      return SharedRVMUtil.RubyDistToGemsetTable.emptyTable();
-    }
-
-    final Condition<String> isRVMDistCond = new Condition<String>() {
-      public boolean value(final String distName) {
-        return distSet.contains(distName);
-      }
-    };
-
-    final SharedRVMUtil.RubyDistToGemsetTable rubyDist2Gemset = new SharedRVMUtil.RubyDistToGemsetTable();
-
-    // 1. scan .rvm/gems directory and find all existing (sdk, gemset) pairs
-    final File[] files = rubyGemsFolder.listFiles();
-    if (files != null) {
-      for (File folder : files) {
-        // ignore ordinary files
-        if (!folder.isDirectory()) {
-          continue;
-        }
-
-        // 2. Register if folder is a valid gempath for some sdk
-        SharedRVMUtil.registerGemset(folder.getName(), isRVMDistCond, rubyDist2Gemset);
-      }
-    }
-
-    return rubyDist2Gemset;
+    final RVMInstallationIndex index = getInstallationIndex();
+    return index.getGemsetsTable();
   }
 
   private String getSdksRootPath() {
@@ -161,12 +136,19 @@ public class InstalledRVM extends RubyVersionManager {
 
   @NotNull
   public SortedSet<String> getInstalledRubies() {
-    return myInstalledRubies.getValue();
+    final RVMInstallationIndex index = getInstallationIndex();
+    return index.isAvailable() ? index.getInstalledRubies() : myInstalledRubies.getValue();
   }
 
   @Nullable
   public String getDefaultInterpreter() {
-    return myDefaultInterpreter.getValue();
+    final RVMInstallationIndex index = getInstallationIndex();
+    return index.isAvailable() ? index.getDefaultInterpreter() : myDefaultInterpreter.getValue();
+  }
+
+  @NotNull
+  private RVMInstallationIndex getInstallationIndex() {
+    return RVMInstallationIndex.getInstance(myPath);
   }
 
   private final Lazy<SortedSet<String>> myInstalledRubies = new Lazy<SortedSet<String>>() {
@@ -214,36 +196,78 @@ public class InstalledRVM extends RubyVersionManager {
     }
   };
 
-  private final Lazy<Map<Pattern, String>> myNamesResolvingReference = new Lazy<Map<Pattern, String>>() {
-    @Nullable
-    @Override
-    protected Map<Pattern, String> createValue() {
-      final Map<Pattern, String> map = new LinkedHashMap<Pattern, String>();
-      // References from all known repositories ('rvm list known')
-      {
-        final String stdout = executeCommandLine(getExecutablePath(), "list", "known");
-        map.putAll(RVMUtil.convertListKnownIntoResolvingMap(stdout));
-      }
+  @Nullable
+  private Map<String, String> myNamesResolvingReference;
+  @Nullable
+  private Map<String, String> myNamesResolvingReferenceKnown;
+  private int myNamesResolvingReferenceCount = -1;
 
-      // Reference for default one ('rvm list default string')
-      {
-        final String value = getDefaultInterpreter();
-        if (value != null) {
-          map.put(Pattern.compile(Pattern.quote("default")), value);
-        }
+  /**
+   * Names reference is rebuilt when known rubies, installed rubies or default interpreter change
+   */
+  @NotNull
+  private synchronized Map<String, String> getNamesResolvingReference() {
+    final Map<String, String> known = getKnownNamesIndex();
+    final RVMInstallationIndex index = getInstallationIndex();
+    final int count = index.isAvailable() ? index.getModificationCount() : -1;
+    if (myNamesResolvingReference != null && known == myNamesResolvingReferenceKnown && count == myNamesResolvingReferenceCount) {
+      return myNamesResolvingReference;
+    }
+
+    // References from all known repositories ('rvm list known')
+    final Map<String, String> map = new HashMap<String, String>(known);
+
+    // Reference for default one ('rvm list default string')
+    {
+      final String value = getDefaultInterpreter();
+      if (value != null && !map.containsKey("default")) {
+        map.put("default", value);
       }
+    }
 
-      // Ensure there are references for installed interpreters (at least add them in full form)
-      {
-        final SortedSet<String> installed = getInstalledRubies();
-        for (String s : installed) {
-          map.put(Pattern.compile(Pattern.quote(s)), s);
+    // Ensure there are references for installed interpreters (at least add them in full form)
+    {
+      final SortedSet<String> installed = getInstalledRubies();
+      for (String s : installed) {
+        if (!map.containsKey(s)) {
+          map.put(s, s);
         }
       }
+    }
 
-      return map;
+    myNamesResolvingReference = map;
+    myNamesResolvingReferenceKnown = known;
+    myNamesResolvingReferenceCount = count;
+    return map;
+  }
+
+  /**
+   * Known names index is built from '$rvm_path/config/known' (the same 'rvm list known' prints)
+   * and shared between instances, so it isn't rebuilt after rvm re-detection until file changes.
+   */
+  @NotNull
+  private Map<String, String> getKnownNamesIndex() {
+    final File known = new File(getPath(), "config" + File.separator + "known");
+    final long stamp = known.lastModified();
+    final Pair<Long, Map<String, String>> cached = ourKnownNamesIndexes.get(myPath);
+    if (cached != null && cached.first == stamp) {
+      return cached.second;
     }
-  };
+    String content = null;
+    if (known.isFile()) {
+      try {
+        content = FileUtil.readText(known);
+      } catch (IOException e) {
+        LOG.warn("Failed to read " + known + ": " + e.toString());
+      }
+    }
+    if (content == null) {
+      content = executeCommandLine(getExecutablePath(), "list", "known");
+    }
+    final Map<String, String> index = RVMUtil.convertListKnownIntoNamesIndex(content);
+    ourKnownNamesIndexes.put(myPath, new Pair<Long, Map<String, String>>(stamp, index));
+    return index;
+  }
 
   /**
    * @param name
@@ -251,8 +275,7 @@ public class InstalledRVM extends RubyVersionManager {
    */
   @Nullable
   public String getDistrForName(@NotNull final String name) {
-    final Map<Pattern, String> map = myNamesResolvingReference.getValue();
-    return getDistrForNameFromMap(name, map);
+    return getNamesResolvingReference().get(name);
   }
 
   public static String getDistrForNameFromMap(final String name, final Map<Pattern, String> map) {
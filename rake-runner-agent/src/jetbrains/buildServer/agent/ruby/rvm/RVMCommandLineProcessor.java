@@ -5,17 +5,20 @@ package jetbrains.buildServer.agent.ruby.rvm;
 import com.intellij.openapi.util.SystemInfo;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
 import java.util.*;
 import jetbrains.buildServer.RunBuildException;
 import jetbrains.buildServer.agent.AgentBuildFeature;
 import jetbrains.buildServer.agent.AgentRunningBuild;
 import jetbrains.buildServer.agent.BuildRunnerContext;
 import jetbrains.buildServer.agent.feature.RubyEnvConfiguratorService;
+import jetbrains.buildServer.agent.rakerunner.utils.TextUtil;
 import jetbrains.buildServer.agent.runner.BuildCommandLineProcessor;
 import jetbrains.buildServer.agent.runner.ProgramCommandLine;
 import jetbrains.buildServer.feature.RubyEnvConfiguratorConfiguration;
 import jetbrains.buildServer.feature.RubyEnvConfiguratorConstants;
-import jetbrains.buildServer.log.Loggers;
 import jetbrains.buildServer.messages.serviceMessages.MapSerializerUtil;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.PasswordReplacer;
@@ -29,7 +32,6 @@ import org.jetbrains.annotations.Nullable;
 public class RVMCommandLineProcessor implements BuildCommandLineProcessor {
 
   private static final String CUSTOM_EXECUTABLE = "/bin/sh";
-  private static final String SCRIPT_PERMISSIONS = "u+x";
 
   @NotNull
   public ProgramCommandLine process(@NotNull final BuildRunnerContext context, @NotNull final ProgramCommandLine origCommandLine)
@@ -94,8 +96,38 @@ public class RVMCommandLineProcessor implements BuildCommandLineProcessor {
       case RVM:
       case RVM_RUBY_VERSION:
       case RVMRC: {
+        // Environment is already patched, so shell is needed only to find executable using patched PATH
+        final String executable = findExecutable(origCommandLine.getExecutablePath(), environment);
+        if (executable != null) {
+          return new ProgramCommandLine() {
+            @NotNull
+            public String getExecutablePath() {
+              return executable;
+            }
+
+            @NotNull
+            public String getWorkingDirectory() throws RunBuildException {
+              return origCommandLine.getWorkingDirectory();
+            }
+
+            public String getCommandLineForLogging(PasswordReplacer passwordReplacer) throws RunBuildException {
+              return origCommandLine.getCommandLineForLogging(passwordReplacer);
+            }
+
+            @NotNull
+            public List<String> getArguments() throws RunBuildException {
+              return origCommandLine.getArguments();
+            }
+
+            @NotNull
+            public Map<String, String> getEnvironment() {
+              return environment;
+            }
+          };
+        }
+
         // Lets patch it!
-        final File script = createScriptFile(origCommandLine, build.getAgentTempDirectory());
+        final File script = getScriptFile(origCommandLine, build.getAgentTempDirectory());
 
         return new ProgramCommandLine() {
           @NotNull
@@ -124,30 +156,63 @@ public class RVMCommandLineProcessor implements BuildCommandLineProcessor {
     }
   }
 
-  private static File createScriptFile(@NotNull final ProgramCommandLine origCommandLine, @NotNull final File directory)
+  /**
+   * @return absolute path of executable the same way shell would find it or null if it's unknown
+   */
+  @Nullable
+  static String findExecutable(@NotNull final String executable, @NotNull final Map<String, String> environment) {
+    if (executable.contains("/")) {
+      final File file = new File(executable);
+      return file.isAbsolute() && file.isFile() && file.canExecute() ? executable : null;
+    }
+    final String path = environment.get("PATH");
+    if (path == null) {
+      return null;
+    }
+    for (String dir : path.split(File.pathSeparator, -1)) {
+      if (!new File(dir).isAbsolute()) {
+        // empty entry means current directory, shell resolves relative entries against working directory
+        return null;
+      }
+      final File file = new File(dir, executable);
+      if (file.isFile() && file.canExecute()) {
+        return file.getAbsolutePath();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Script is named after hash of its content, so steps with the same command line reuse it
+   */
+  private static File getScriptFile(@NotNull final ProgramCommandLine origCommandLine, @NotNull final File directory)
     throws RunBuildException {
-    final File script;
+    final StringBuilder content = new StringBuilder();
+    content.append("cd ").append(origCommandLine.getWorkingDirectory()).append("\n");
+    content.append(createOriginalCommandLine(origCommandLine));
+    final File script = new File(directory, "build-" + TextUtil.sha1(content.toString()) + ".sh");
+    if (script.isFile() && script.canExecute()) {
+      return script;
+    }
     try {
-      script = File.createTempFile("build", ".sh", directory);
-      StringBuilder content = new StringBuilder();
-      content.append("cd ").append(origCommandLine.getWorkingDirectory()).append("\n");
-      content.append(createOriginalCommandLine(origCommandLine));
-      FileUtil.writeFileAndReportErrors(script, content.toString());
-
-      setPermissions(script, SCRIPT_PERMISSIONS); // script needs to be made executable for all (chmod a+x)
+      final File tmp = File.createTempFile("build", ".sh", directory);
+      try {
+        FileUtil.writeFileAndReportErrors(tmp, content.toString());
+        setExecutable(tmp);
+        Files.move(tmp.toPath(), script.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        FileUtil.delete(tmp);
+      }
     } catch (IOException e) {
       throw new RunBuildException("Failed to create temp file, error: " + e.toString());
     }
     return script;
   }
 
-  private static void setPermissions(@NotNull final File script, @NotNull final String perms) throws IOException {
-    Process process = Runtime.getRuntime().exec(new String[]{"chmod", perms, script.getAbsolutePath()});
-    try {
-      process.waitFor();
-    } catch (InterruptedException e) {
-      Loggers.AGENT.warn("Failed to execute chmod " + perms + " " + script.getAbsolutePath() + ", error: " + e.toString());
-    }
+  private static void setExecutable(@NotNull final File script) throws IOException {
+    final Set<PosixFilePermission> permissions = new HashSet<PosixFilePermission>(Files.getPosixFilePermissions(script.toPath()));
+    permissions.add(PosixFilePermission.OWNER_EXECUTE);
+    Files.setPosixFilePermissions(script.toPath(), permissions);
   }
 
   private static String createOriginalCommandLine(@NotNull final ProgramCommandLine commandLine) throws RunBuildException {
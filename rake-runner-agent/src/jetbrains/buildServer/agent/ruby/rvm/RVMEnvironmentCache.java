@@ -0,0 +1,169 @@
+package jetbrains.buildServer.agent.ruby.rvm;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.util.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Agent-wide cache of environments produced by 'rvm-shell &lt;ruby string&gt; -c env'.
+ * Snapshot keeps only difference between input and produced environment,
+ * so it can be applied to another input environment if variables rvm depends on are the same.
+ * Snapshot is dropped when '$rvm_path/environments/&lt;ruby string&gt;' or '$rvm_path/config' changes.
+ */
+public class RVMEnvironmentCache {
+  private static final Logger LOG = Logger.getInstance(RVMEnvironmentCache.class.getName());
+  private static final int MAX_SIZE = 64;
+  private static final String RVM_VARIABLES_PREFIX = "rvm_";
+  private static final String[] INPUT_VARIABLES = {"PATH", "HOME"};
+
+  private static final RVMEnvironmentCache ourInstance = new RVMEnvironmentCache(MAX_SIZE);
+
+  private final Map<String, Snapshot> mySnapshots;
+
+  RVMEnvironmentCache(final int maxSize) {
+    mySnapshots = new LinkedHashMap<String, Snapshot>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, Snapshot> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  @NotNull
+  public static RVMEnvironmentCache getInstance() {
+    return ourInstance;
+  }
+
+  /**
+   * @return environment rvm-shell would produce for given input environment or null if it's unknown
+   */
+  @Nullable
+  public Map<String, String> get(@NotNull final String rvmPath,
+                                 @NotNull final String rubyString,
+                                 @NotNull final Map<String, String> env) {
+    final String key = getKey(rvmPath, rubyString);
+    final Snapshot snapshot;
+    synchronized (mySnapshots) {
+      snapshot = mySnapshots.get(key);
+      if (snapshot != null && !snapshot.isUpToDate()) {
+        LOG.info("RVM environment of " + rubyString + " was changed on disk");
+        mySnapshots.remove(key);
+        return null;
+      }
+    }
+    if (snapshot == null || !snapshot.isApplicable(env)) {
+      return null;
+    }
+    return snapshot.apply(env);
+  }
+
+  public void put(@NotNull final String rvmPath,
+                  @NotNull final String rubyString,
+                  @NotNull final Map<String, String> env,
+                  @NotNull final Map<String, String> produced) {
+    final Snapshot snapshot = new Snapshot(getWatchedFiles(rvmPath, rubyString), env, produced);
+    synchronized (mySnapshots) {
+      mySnapshots.put(getKey(rvmPath, rubyString), snapshot);
+    }
+  }
+
+  public void clear() {
+    synchronized (mySnapshots) {
+      mySnapshots.clear();
+    }
+  }
+
+  @NotNull
+  private static String getKey(@NotNull final String rvmPath, @NotNull final String rubyString) {
+    return rvmPath + '|' + rubyString;
+  }
+
+  @NotNull
+  private static List<File> getWatchedFiles(@NotNull final String rvmPath, @NotNull final String rubyString) {
+    final List<File> files = new ArrayList<File>();
+    files.add(new File(rvmPath, "environments" + File.separator + rubyString));
+    final File config = new File(rvmPath, "config");
+    files.add(config);
+    final File[] configFiles = config.listFiles();
+    if (configFiles != null) {
+      files.addAll(Arrays.asList(configFiles));
+    }
+    return files;
+  }
+
+  private static class Snapshot {
+    private final Map<File, Long> myStamps = new HashMap<File, Long>();
+    // values of variables produced environment depends on, null value means variable is absent
+    private final Map<String, String> myInputs = new HashMap<String, String>();
+    private final Map<String, String> myChanged = new HashMap<String, String>();
+    private final Set<String> myRemoved = new HashSet<String>();
+
+    private Snapshot(@NotNull final Collection<File> watched,
+                     @NotNull final Map<String, String> env,
+                     @NotNull final Map<String, String> produced) {
+      for (File file : watched) {
+        myStamps.put(file, file.lastModified());
+      }
+      for (Map.Entry<String, String> entry : produced.entrySet()) {
+        if (!entry.getValue().equals(env.get(entry.getKey()))) {
+          myChanged.put(entry.getKey(), entry.getValue());
+        }
+      }
+      for (String key : env.keySet()) {
+        if (!produced.containsKey(key)) {
+          myRemoved.add(key);
+        }
+      }
+      for (String key : getInputKeys(env)) {
+        myInputs.put(key, env.get(key));
+      }
+    }
+
+    @NotNull
+    private Set<String> getInputKeys(@NotNull final Map<String, String> env) {
+      final Set<String> keys = new HashSet<String>(Arrays.asList(INPUT_VARIABLES));
+      keys.addAll(myChanged.keySet());
+      keys.addAll(myRemoved);
+      for (String key : env.keySet()) {
+        if (key.startsWith(RVM_VARIABLES_PREFIX)) {
+          keys.add(key);
+        }
+      }
+      return keys;
+    }
+
+    private boolean isUpToDate() {
+      for (Map.Entry<File, Long> stamp : myStamps.entrySet()) {
+        if (stamp.getKey().lastModified() != stamp.getValue()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private boolean isApplicable(@NotNull final Map<String, String> env) {
+      final Set<String> keys = getInputKeys(env);
+      if (!keys.equals(myInputs.keySet())) {
+        // different set of rvm variables
+        return false;
+      }
+      for (String key : keys) {
+        final String value = env.get(key);
+        if (value == null ? myInputs.get(key) != null : !value.equals(myInputs.get(key))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @NotNull
+    private Map<String, String> apply(@NotNull final Map<String, String> env) {
+      final Map<String, String> result = new HashMap<String, String>(env);
+      result.keySet().removeAll(myRemoved);
+      result.putAll(myChanged);
+      return result;
+    }
+  }
+}
@@ -0,0 +1,283 @@
+package jetbrains.buildServer.agent.ruby.rvm;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Pattern;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Computes environment of RVM ruby string from '$rvm_path/environments/&lt;ruby string&gt;' file without launching shell.
+ * Only statements RVM writes into these files are supported: 'export', 'unset' and assignments
+ * with single quoted, double quoted or unquoted values, '$VAR' and '${VAR}' expansions.
+ * If file contains anything else, resolver gives up and 'rvm-shell' should be used instead.
+ */
+public class RVMEnvironmentFileResolver {
+  private static final Logger LOG = Logger.getInstance(RVMEnvironmentFileResolver.class.getName());
+  private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+  /**
+   * @return environment 'rvm-shell &lt;ruby string&gt; -c env' would produce or null if it cannot be computed
+   */
+  @Nullable
+  public static Map<String, String> resolve(@NotNull final String rvmPath,
+                                            @NotNull final String rubyString,
+                                            @NotNull final Map<String, String> env) {
+    final File file = new File(rvmPath, "environments" + File.separator + rubyString);
+    if (!file.isFile()) {
+      return null;
+    }
+    final String content;
+    try {
+      content = new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8"));
+    } catch (IOException e) {
+      LOG.debug("Failed to read RVM environment file " + file + ": " + e.toString());
+      return null;
+    }
+    final Map<String, String> resolved = apply(content, rvmPath, env);
+    if (resolved == null) {
+      LOG.info("RVM environment file " + file + " contains unsupported statements, rvm-shell will be used");
+    }
+    return resolved;
+  }
+
+  /**
+   * @return environment after evaluating given environment file content or null if content isn't supported
+   */
+  @Nullable
+  static Map<String, String> apply(@NotNull final String content,
+                                   @NotNull final String rvmPath,
+                                   @NotNull final Map<String, String> env) {
+    final Map<String, String> variables = new HashMap<String, String>(env);
+    final Set<String> exported = new HashSet<String>(env.keySet());
+    // rvm removes paths of previously used rubies
+    removeRvmPaths(variables, rvmPath);
+
+    // statements are parsed one by one, so expansions see values assigned by previous statements
+    final Parser parser = new Parser(content, variables);
+    try {
+      List<String> words;
+      while ((words = parser.next()) != null) {
+        if (!evaluate(words, variables, exported)) {
+          return null;
+        }
+      }
+    } catch (UnsupportedSyntaxException e) {
+      LOG.debug("Unsupported RVM environment file syntax: " + e.getMessage());
+      return null;
+    }
+
+    final Map<String, String> result = new HashMap<String, String>();
+    for (String name : exported) {
+      final String value = variables.get(name);
+      if (value != null) {
+        result.put(name, value);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return false if statement isn't supported
+   */
+  private static boolean evaluate(@NotNull final List<String> words,
+                                  @NotNull final Map<String, String> variables,
+                                  @NotNull final Set<String> exported) {
+    final String command = words.get(0);
+    if ("export".equals(command)) {
+      for (String word : words.subList(1, words.size())) {
+        final String name = assign(word, variables);
+        if (name == null) {
+          if (!NAME_PATTERN.matcher(word).matches()) {
+            return false;
+          }
+          exported.add(word);
+        } else {
+          exported.add(name);
+        }
+      }
+    } else if ("unset".equals(command)) {
+      for (String word : words.subList(1, words.size())) {
+        variables.remove(word);
+        exported.remove(word);
+      }
+    } else {
+      for (String word : words) {
+        if (assign(word, variables) == null) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return name of assigned variable or null if word isn't an assignment
+   */
+  @Nullable
+  private static String assign(@NotNull final String word, @NotNull final Map<String, String> variables) {
+    final int i = word.indexOf('=');
+    if (i <= 0 || !NAME_PATTERN.matcher(word.substring(0, i)).matches()) {
+      return null;
+    }
+    final String name = word.substring(0, i);
+    variables.put(name, word.substring(i + 1));
+    return name;
+  }
+
+  private static void removeRvmPaths(@NotNull final Map<String, String> variables, @NotNull final String rvmPath) {
+    final String path = variables.get("PATH");
+    if (path == null) {
+      return;
+    }
+    final String rvmBin = new File(rvmPath, "bin").getPath();
+    final StringBuilder sb = new StringBuilder();
+    for (String entry : path.split(File.pathSeparator)) {
+      if (entry.startsWith(rvmPath + File.separator) && !entry.equals(rvmBin)) {
+        continue;
+      }
+      if (sb.length() > 0) {
+        sb.append(File.pathSeparatorChar);
+      }
+      sb.append(entry);
+    }
+    variables.put("PATH", sb.toString());
+  }
+
+  private static class Parser {
+    private final String myContent;
+    private final Map<String, String> myVariables;
+    private int myPos = 0;
+
+    private Parser(@NotNull final String content, @NotNull final Map<String, String> variables) {
+      myContent = content;
+      myVariables = variables;
+    }
+
+    /**
+     * @return next non-empty statement or null if there are no more statements
+     */
+    @Nullable
+    List<String> next() throws UnsupportedSyntaxException {
+      while (myPos < myContent.length()) {
+        final List<String> words = new ArrayList<String>();
+        StringBuilder word = null;
+        while (myPos < myContent.length()) {
+          final char c = myContent.charAt(myPos);
+          if (c == '\n' || c == ';') {
+            myPos++;
+            break;
+          } else if (c == ' ' || c == '\t' || c == '\r') {
+            myPos++;
+            if (word != null) {
+              words.add(word.toString());
+              word = null;
+            }
+          } else if (c == '#' && word == null) {
+            skipComment();
+          } else {
+            if (word == null) {
+              word = new StringBuilder();
+            }
+            readWordPart(word);
+          }
+        }
+        if (word != null) {
+          words.add(word.toString());
+        }
+        if (!words.isEmpty()) {
+          return words;
+        }
+      }
+      return null;
+    }
+
+    private void skipComment() {
+      while (myPos < myContent.length() && myContent.charAt(myPos) != '\n') {
+        myPos++;
+      }
+    }
+
+    private void readWordPart(@NotNull final StringBuilder word) throws UnsupportedSyntaxException {
+      final char c = myContent.charAt(myPos);
+      if (c == '\'') {
+        final int end = myContent.indexOf('\'', myPos + 1);
+        if (end < 0) {
+          throw new UnsupportedSyntaxException("Unterminated quote");
+        }
+        word.append(myContent, myPos + 1, end);
+        myPos = end + 1;
+      } else if (c == '"') {
+        myPos++;
+        while (true) {
+          if (myPos >= myContent.length()) {
+            throw new UnsupportedSyntaxException("Unterminated quote");
+          }
+          final char q = myContent.charAt(myPos);
+          if (q == '"') {
+            myPos++;
+            break;
+          } else if (q == '\\' && myPos + 1 < myContent.length() && "$`\"\\\n".indexOf(myContent.charAt(myPos + 1)) >= 0) {
+            word.append(myContent.charAt(myPos + 1));
+            myPos += 2;
+          } else if (q == '$') {
+            expand(word);
+          } else if (q == '`') {
+            throw new UnsupportedSyntaxException("Command substitution");
+          } else {
+            word.append(q);
+            myPos++;
+          }
+        }
+      } else if (c == '$') {
+        expand(word);
+      } else if (c == '\\' && myPos + 1 < myContent.length()) {
+        word.append(myContent.charAt(myPos + 1));
+        myPos += 2;
+      } else if ("`|&<>(){}".indexOf(c) >= 0) {
+        throw new UnsupportedSyntaxException("Unsupported character: " + c);
+      } else {
+        word.append(c);
+        myPos++;
+      }
+    }
+
+    private void expand(@NotNull final StringBuilder word) throws UnsupportedSyntaxException {
+      // at '$'
+      myPos++;
+      final String name;
+      if (myPos < myContent.length() && myContent.charAt(myPos) == '{') {
+        final int end = myContent.indexOf('}', myPos);
+        if (end < 0) {
+          throw new UnsupportedSyntaxException("Unterminated expansion");
+        }
+        name = myContent.substring(myPos + 1, end);
+        myPos = end + 1;
+      } else {
+        final int start = myPos;
+        while (myPos < myContent.length() && (Character.isLetterOrDigit(myContent.charAt(myPos)) || myContent.charAt(myPos) == '_')) {
+          myPos++;
+        }
+        name = myContent.substring(start, myPos);
+      }
+      if (!NAME_PATTERN.matcher(name).matches()) {
+        // e.g. '$(...)' or '${VAR:-default}'
+        throw new UnsupportedSyntaxException("Unsupported expansion: " + name);
+      }
+      final String value = myVariables.get(name);
+      if (value != null) {
+        word.append(value);
+      }
+    }
+  }
+
+  private static class UnsupportedSyntaxException extends Exception {
+    private UnsupportedSyntaxException(@NotNull final String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,205 @@
+package jetbrains.buildServer.agent.ruby.rvm;
+
+import com.intellij.openapi.diagnostic.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.plugins.ruby.rvm.SharedRVMUtil;
+
+/**
+ * Creates RVM gemset without loading RVM into bash.
+ * Gemset files are derived from files of interpreter default gemset the same way 'rvm gemset create' does it:
+ * '$rvm_path/gems/&lt;ruby&gt;@&lt;gemset&gt;' folders, '$rvm_path/environments/&lt;ruby&gt;@&lt;gemset&gt;' file
+ * and '$rvm_path/wrappers/&lt;ruby&gt;@&lt;gemset&gt;' scripts.
+ * Creation is guarded by file lock in '$rvm_path/tmp', so agents sharing RVM installation don't interfere.
+ * Lock file is never deleted: other agent may wait for lock of deleted file while third one locks new file.
+ */
+public class RVMGemsetCreator {
+  private static final Logger LOG = Logger.getInstance(RVMGemsetCreator.class.getName());
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final String ENVIRONMENTS_FOLDER_NAME = "environments";
+  private static final String WRAPPERS_FOLDER_NAME = "wrappers";
+  // one lock for all gemsets, creation is rare and short
+  private static final String LOCK_FILE_NAME = "teamcity-gemsets.lock";
+
+  /**
+   * @return false if gemset cannot be created directly and 'rvm use --create' should be used instead
+   */
+  public static boolean createGemset(@NotNull final InstalledRVM rvm,
+                                     @NotNull final String interpreter,
+                                     @NotNull final String gemset) {
+    final String name = interpreter + SharedRVMUtil.getGemsetSeparator() + gemset;
+    final File home = rvm.getHome();
+    final File lockFile = new File(home, "tmp" + File.separator + LOCK_FILE_NAME);
+    // file locks are held by JVM, so threads of one agent are serialized here
+    synchronized (RVMGemsetCreator.class) {
+      try {
+        FileUtil.createParentDirs(lockFile);
+        final RandomAccessFile file = new RandomAccessFile(lockFile, "rw");
+        try {
+          final FileChannel channel = file.getChannel();
+          final FileLock lock = channel.lock();
+          try {
+            if (!doCreateGemset(home, interpreter, name)) {
+              return false;
+            }
+          } finally {
+            lock.release();
+          }
+        } finally {
+          file.close();
+        }
+      } catch (IOException e) {
+        LOG.warn("Failed to create RVM gemset '" + name + "' directly: " + e.toString());
+        return false;
+      }
+    }
+    RVMInstallationIndex.getInstance(rvm.getPath()).gemsetCreated(interpreter, gemset);
+    return true;
+  }
+
+  private static boolean doCreateGemset(@NotNull final File home,
+                                        @NotNull final String interpreter,
+                                        @NotNull final String name) throws IOException {
+    final File gems = new File(home, SharedRVMUtil.Constants.RVM_GEMS_FOLDER_NAME);
+    final File target = new File(gems, name);
+    if (target.isDirectory()) {
+      // created by another agent
+      return true;
+    }
+    final File template = new File(gems, interpreter);
+    final File environment = new File(home, ENVIRONMENTS_FOLDER_NAME + File.separator + interpreter);
+    if (!template.isDirectory() || !environment.isFile()) {
+      LOG.info("Default gemset of RVM interpreter '" + interpreter + "' not found, RVM will be used to create gemset");
+      return false;
+    }
+
+    final Substitution substitution = new Substitution(gems, interpreter, name);
+    final String content = substitution.apply(new String(Files.readAllBytes(environment.toPath()), UTF8));
+    if (content == null) {
+      LOG.info("RVM environment file " + environment + " has unknown format, RVM will be used to create gemset");
+      return false;
+    }
+
+    final Map<File, String> wrappers = new LinkedHashMap<File, String>();
+    final File[] scripts = new File(home, WRAPPERS_FOLDER_NAME + File.separator + interpreter).listFiles();
+    if (scripts != null) {
+      for (File script : scripts) {
+        if (script.isFile()) {
+          final String patched = substitution.apply(new String(Files.readAllBytes(script.toPath()), UTF8));
+          if (patched == null) {
+            LOG.info("RVM wrapper " + script + " has unknown format, RVM will be used to create gemset");
+            return false;
+          }
+          wrappers.put(script, patched);
+        }
+      }
+    }
+
+    // environment and wrappers are written first, gemset becomes visible when its folder appears
+    writeFile(new File(home, ENVIRONMENTS_FOLDER_NAME + File.separator + name), content, environment);
+    final File targetWrappers = new File(home, WRAPPERS_FOLDER_NAME + File.separator + name);
+    for (Map.Entry<File, String> wrapper : wrappers.entrySet()) {
+      writeFile(new File(targetWrappers, wrapper.getKey().getName()), wrapper.getValue(), wrapper.getKey());
+    }
+
+    final File staging = new File(home, "tmp" + File.separator + "teamcity-gemset-" + name + "." + System.nanoTime());
+    try {
+      createGemsFolder(template, staging, name);
+      Files.move(staging.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      FileUtil.delete(staging);
+    }
+    LOG.info("RVM gemset '" + name + "' created");
+    return true;
+  }
+
+  private static void createGemsFolder(@NotNull final File template,
+                                       @NotNull final File folder,
+                                       @NotNull final String name) throws IOException {
+    if (!folder.mkdirs()) {
+      throw new IOException("Cannot create directory " + folder);
+    }
+    final File[] files = template.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      final Path path = file.toPath();
+      if (Files.isSymbolicLink(path)) {
+        // e.g. 'environment' and 'wrappers' links, RVM points them to files of gemset
+        final String link = Files.readSymbolicLink(path).toString();
+        final String patched = link.endsWith(File.separator + template.getName())
+                               ? link.substring(0, link.length() - template.getName().length()) + name
+                               : link;
+        Files.createSymbolicLink(new File(folder, file.getName()).toPath(), Paths.get(patched));
+      } else if (file.isDirectory()) {
+        // gemset starts without gems: 'bin', 'gems', 'specifications', etc. are empty
+        if (!new File(folder, file.getName()).mkdir()) {
+          throw new IOException("Cannot create directory " + new File(folder, file.getName()));
+        }
+      }
+    }
+  }
+
+  private static void writeFile(@NotNull final File file,
+                                @NotNull final String content,
+                                @NotNull final File permissionsSource) throws IOException {
+    FileUtil.createParentDirs(file);
+    final File tmp = new File(file.getParentFile(), "." + file.getName() + "." + System.nanoTime());
+    try {
+      Files.write(tmp.toPath(), content.getBytes(UTF8));
+      if (permissionsSource.canExecute()) {
+        //noinspection ResultOfMethodCallIgnored
+        tmp.setExecutable(true, false);
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      FileUtil.delete(tmp);
+    }
+  }
+
+  /**
+   * Replaces references to default gemset of interpreter with references to new gemset.
+   * Paths of interpreter itself and of other gemsets (e.g. 'global') are preserved.
+   */
+  static class Substitution {
+    private final Pattern myGemsPathPattern;
+    private final Pattern myEnvStringPattern;
+    private final String myGemsPathReplacement;
+    private final String myEnvStringReplacement;
+
+    Substitution(@NotNull final File gems, @NotNull final String interpreter, @NotNull final String name) {
+      final String gemsPath = gems.getPath() + File.separator;
+      myGemsPathPattern = Pattern.compile(Pattern.quote(gemsPath + interpreter) + "(?=[/:'\"\\s;]|$)", Pattern.MULTILINE);
+      myGemsPathReplacement = Matcher.quoteReplacement(gemsPath + name);
+      myEnvStringPattern = Pattern.compile("(rvm_env_string=['\"]?)" + Pattern.quote(interpreter) + "(?=['\"\\s;]|$)", Pattern.MULTILINE);
+      myEnvStringReplacement = "$1" + Matcher.quoteReplacement(name);
+    }
+
+    /**
+     * @return patched text or null if text doesn't reference default gemset
+     */
+    @Nullable
+    String apply(@NotNull final String text) {
+      final Matcher matcher = myGemsPathPattern.matcher(text);
+      if (!matcher.find()) {
+        return null;
+      }
+      final String patched = matcher.replaceAll(myGemsPathReplacement);
+      return myEnvStringPattern.matcher(patched).replaceAll(myEnvStringReplacement);
+    }
+  }
+}
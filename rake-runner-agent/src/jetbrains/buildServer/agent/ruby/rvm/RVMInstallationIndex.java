@@ -0,0 +1,220 @@
+package jetbrains.buildServer.agent.ruby.rvm;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.Condition;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import jetbrains.buildServer.agent.rakerunner.utils.DirectoryWatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.plugins.ruby.rvm.SharedRVMUtil;
+
+/**
+ * Agent-lifetime index of RVM installation read from disk: installed rubies are folders of '$rvm_path/rubies',
+ * default interpreter is 'default' alias from '$rvm_path/config/alias', gemsets are folders of '$rvm_path/gems'.
+ * Index is shared by all {@link InstalledRVM} instances with the same path and is refreshed when watched folders change.
+ */
+public class RVMInstallationIndex {
+  private static final Logger LOG = Logger.getInstance(RVMInstallationIndex.class.getName());
+  private static final String DEFAULT_ALIAS = "default";
+
+  private static final ConcurrentMap<String, RVMInstallationIndex> ourIndexes = new ConcurrentHashMap<String, RVMInstallationIndex>();
+
+  @NotNull
+  private final File myRubiesFolder;
+  @NotNull
+  private final File myGemsFolder;
+  @NotNull
+  private final File myAliasFile;
+  @NotNull
+  private final DirectoryWatcher.Key myRubiesKey;
+  @NotNull
+  private final DirectoryWatcher.Key myConfigKey;
+  @NotNull
+  private final DirectoryWatcher.Key myGemsKey;
+
+  @Nullable
+  private SortedSet<String> myInstalledRubies;
+  @Nullable
+  private String myDefaultInterpreter;
+  private int myModificationCount = 0;
+  @Nullable
+  private SharedRVMUtil.RubyDistToGemsetTable myGemsets;
+  // rubies gemsets table was built for
+  @Nullable
+  private Set<String> myGemsetsRubies;
+
+  private RVMInstallationIndex(@NotNull final String rvmPath) {
+    final File home = new File(rvmPath);
+    myRubiesFolder = new File(home, SharedRVMUtil.Constants.RVM_RUBIES_FOLDER_NAME);
+    final File config = new File(home, "config");
+    myGemsFolder = new File(home, SharedRVMUtil.Constants.RVM_GEMS_FOLDER_NAME);
+    myAliasFile = new File(config, "alias");
+    myRubiesKey = DirectoryWatcher.getInstance().watch(myRubiesFolder);
+    myConfigKey = DirectoryWatcher.getInstance().watch(config);
+    myGemsKey = DirectoryWatcher.getInstance().watch(myGemsFolder);
+  }
+
+  @NotNull
+  public static RVMInstallationIndex getInstance(@NotNull final String rvmPath) {
+    RVMInstallationIndex index = ourIndexes.get(rvmPath);
+    if (index == null) {
+      final RVMInstallationIndex created = new RVMInstallationIndex(rvmPath);
+      index = ourIndexes.putIfAbsent(rvmPath, created);
+      if (index == null) {
+        index = created;
+      }
+    }
+    return index;
+  }
+
+  /**
+   * @return false if RVM installation has unusual layout, so rvm should be asked instead
+   */
+  public boolean isAvailable() {
+    return myRubiesFolder.isDirectory();
+  }
+
+  /**
+   * @return installed rubies like 'rvm list strings' prints them
+   */
+  @NotNull
+  public synchronized SortedSet<String> getInstalledRubies() {
+    refresh();
+    //noinspection ConstantConditions
+    return myInstalledRubies;
+  }
+
+  /**
+   * @return default interpreter like 'rvm list default string' prints it or null if there is no default
+   */
+  @Nullable
+  public synchronized String getDefaultInterpreter() {
+    refresh();
+    return myDefaultInterpreter;
+  }
+
+  /**
+   * @return number which changes each time index is refreshed
+   */
+  public synchronized int getModificationCount() {
+    refresh();
+    return myModificationCount;
+  }
+
+  /**
+   * @return live table of gemsets of installed rubies, it's updated only for changed folders of '$rvm_path/gems'
+   */
+  @NotNull
+  public synchronized SharedRVMUtil.RubyDistToGemsetTable getGemsetsTable() {
+    refresh();
+    final Set<String> changed = myGemsKey.pollChangedEntries();
+    final Set<String> rubies = myInstalledRubies;
+    //noinspection ConstantConditions
+    if (myGemsets == null || myGemsetsRubies != rubies || changed == null) {
+      myGemsets = readGemsets(rubies);
+      myGemsetsRubies = rubies;
+    } else {
+      for (String name : changed) {
+        updateGemset(myGemsets, name, rubies);
+      }
+    }
+    return myGemsets;
+  }
+
+  /**
+   * Registers gemset created by agent, so it's visible before directory event is processed
+   */
+  public synchronized void gemsetCreated(@NotNull final String interpreter, @NotNull final String gemset) {
+    if (myGemsets != null) {
+      myGemsets.putGemset(gemset, interpreter);
+    }
+  }
+
+  private void refresh() {
+    final boolean rubiesChanged = myRubiesKey.pollChanged();
+    final boolean configChanged = myConfigKey.pollChanged();
+    if (myInstalledRubies == null || rubiesChanged) {
+      myInstalledRubies = readInstalledRubies();
+      myModificationCount++;
+    }
+    if (rubiesChanged || configChanged) {
+      myDefaultInterpreter = readDefaultInterpreter();
+      myModificationCount++;
+    }
+  }
+
+  @NotNull
+  private SortedSet<String> readInstalledRubies() {
+    final SortedSet<String> rubies = new TreeSet<String>();
+    final File[] files = myRubiesFolder.listFiles();
+    if (files == null) {
+      return rubies;
+    }
+    for (File file : files) {
+      final String name = file.getName();
+      // 'default' is a symlink to default interpreter
+      if (file.isDirectory() && !DEFAULT_ALIAS.equals(name) && !name.contains(" ")) {
+        rubies.add(name);
+      }
+    }
+    return Collections.unmodifiableSortedSet(rubies);
+  }
+
+  @NotNull
+  private SharedRVMUtil.RubyDistToGemsetTable readGemsets(@NotNull final Set<String> rubies) {
+    final SharedRVMUtil.RubyDistToGemsetTable table = new SharedRVMUtil.RubyDistToGemsetTable();
+    final String[] names = myGemsFolder.list();
+    if (names != null) {
+      for (String name : names) {
+        updateGemset(table, name, rubies);
+      }
+    }
+    return table;
+  }
+
+  private void updateGemset(@NotNull final SharedRVMUtil.RubyDistToGemsetTable table,
+                            @NotNull final String name,
+                            @NotNull final Set<String> rubies) {
+    // ignore ordinary files
+    if (new File(myGemsFolder, name).isDirectory()) {
+      SharedRVMUtil.registerGemset(name, new Condition<String>() {
+        public boolean value(final String distName) {
+          return rubies.contains(distName);
+        }
+      }, table);
+    } else {
+      SharedRVMUtil.unregisterGemset(name, table);
+    }
+  }
+
+  @Nullable
+  private String readDefaultInterpreter() {
+    if (!myAliasFile.isFile()) {
+      return null;
+    }
+    try {
+      for (String line : Files.readAllLines(myAliasFile.toPath(), Charset.forName("UTF-8"))) {
+        final int i = line.indexOf('=');
+        if (i > 0 && DEFAULT_ALIAS.equals(line.substring(0, i).trim())) {
+          final String value = line.substring(i + 1).trim();
+          // alias may point to gemset, interpreter is needed here
+          final int gemset = value.indexOf(SharedRVMUtil.getGemsetSeparator());
+          final String interpreter = gemset >= 0 ? value.substring(0, gemset) : value;
+          return interpreter.length() > 0 ? interpreter : null;
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Failed to read RVM aliases from " + myAliasFile + ": " + e.toString());
+    }
+    return null;
+  }
+}
@@ -2,8 +2,13 @@
 
 package jetbrains.buildServer.agent.ruby.rvm.detector;
 
+import com.intellij.openapi.diagnostic.Logger;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import jetbrains.buildServer.ExtensionHolder;
 import jetbrains.buildServer.agent.*;
 import jetbrains.buildServer.agent.config.AgentParametersSupplier;
@@ -14,12 +19,26 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 /**
+ * Detects RVM on agent start and after builds.
+ * After build detection is performed in background and only if RVM locations were changed.
+ *
  * @author Vladislav.Rassokhin
  */
 public class AgentRVMDetector {
+  private static final Logger LOG = Logger.getInstance(AgentRVMDetector.class.getName());
 
   @NotNull
   private final RVMDetector myDetector;
+  @NotNull
+  private final ExecutorService myExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(@NotNull final Runnable r) {
+      final Thread thread = new Thread(r, "RVM detector");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+  @Nullable
+  private volatile String myLocationsState;
 
   private static AgentRVMDetector ourInstance;
 
@@ -41,7 +60,34 @@ public class AgentRVMDetector {
     @Override
     public void buildFinished(@NotNull final AgentRunningBuild build, @NotNull final BuildFinishedStatus buildStatus) {
       final BuildAgentConfiguration buildAgentConfiguration = build.getAgentConfiguration();
-      @Nullable InstalledRVM rvm = myDetector.detect(buildAgentConfiguration.getBuildParameters().getEnvironmentVariables());
+      try {
+        myExecutor.submit(new Runnable() {
+          public void run() {
+            try {
+              redetect(buildAgentConfiguration);
+            } catch (Exception e) {
+              LOG.warn("Failed to detect RVM: " + e.toString(), e);
+            }
+          }
+        });
+      } catch (RejectedExecutionException ignored) {
+        // agent is shutting down
+      }
+    }
+
+    @Override
+    public void agentShutdown() {
+      myExecutor.shutdownNow();
+    }
+
+    private void redetect(@NotNull final BuildAgentConfiguration buildAgentConfiguration) {
+      final Map<String, String> env = buildAgentConfiguration.getBuildParameters().getEnvironmentVariables();
+      final String state = myDetector.getLocationsState(env);
+      if (state != null && state.equals(myLocationsState)) {
+        LOG.debug("RVM locations weren't changed, detection skipped");
+        return;
+      }
+      @Nullable InstalledRVM rvm = myDetector.detect(env);
       myDetector.patchBuildAgentConfiguration(new ConfigurationApplier() {
         @Override
         public void addEnvironmentVariable(String key, String value) {
@@ -53,6 +99,8 @@ public class AgentRVMDetector {
           buildAgentConfiguration.addConfigurationParameter(key, value);
         }
       }, rvm);
+      // recorded only after successful detection, so failed detection is retried after next build
+      myLocationsState = state;
     }
   }
 
@@ -66,7 +114,9 @@ public class AgentRVMDetector {
     public Map<String, String> getParameters() {
       final Map<String, String> parameters = new HashMap<>();
 
-      @Nullable InstalledRVM rvm = myDetector.detect(myBuildAgentConfiguration.getBuildParameters().getEnvironmentVariables());
+      final Map<String, String> env = myBuildAgentConfiguration.getBuildParameters().getEnvironmentVariables();
+      final String state = myDetector.getLocationsState(env);
+      @Nullable InstalledRVM rvm = myDetector.detect(env);
       myDetector.patchBuildAgentConfiguration(new ConfigurationApplier() {
         @Override
         public void addEnvironmentVariable(String key, String value) {
@@ -78,6 +128,7 @@ public class AgentRVMDetector {
           parameters.put(key, value);
         }
       }, rvm);
+      myLocationsState = state;
 
       return parameters;
     }
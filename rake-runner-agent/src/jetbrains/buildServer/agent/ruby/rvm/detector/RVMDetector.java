@@ -30,6 +30,18 @@ public abstract class RVMDetector {
   @Nullable
   public abstract InstalledRVM detect(@NotNull final Map<String, String> environmentParams);
 
+  /**
+   * Describes state of file system locations {@link #detect(Map)} depends on.
+   * If state is the same as in previous call, detection result is the same too.
+   *
+   * @param environmentParams environment variables map
+   * @return state of locations or null if it cannot be determined and detection should be performed anyway
+   */
+  @Nullable
+  public String getLocationsState(@NotNull final Map<String, String> environmentParams) {
+    return null;
+  }
+
   public void patchBuildAgentConfiguration(@NotNull final ConfigurationApplier configuration, @Nullable final InstalledRVM rvm) {
     if (rvm == null) {
       return;
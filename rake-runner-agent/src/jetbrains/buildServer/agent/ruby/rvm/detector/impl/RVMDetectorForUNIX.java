@@ -2,6 +2,13 @@
 
 package jetbrains.buildServer.agent.ruby.rvm.detector.impl;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import jetbrains.buildServer.ExecResult;
 import jetbrains.buildServer.agent.rakerunner.utils.FileUtil2;
@@ -52,6 +59,41 @@ public class RVMDetectorForUNIX extends RVMDetector {
     }
   }
 
+  @NotNull
+  @Override
+  public String getLocationsState(@NotNull final Map<String, String> env) {
+    final List<String> paths = new ArrayList<String>(Arrays.asList(KNOW_GLOBAL_RVM_HOME_PATHS));
+    final String home = OSUtil.getUserHomeFolder();
+    if (home != null) {
+      paths.add(home + "/" + SharedRVMUtil.Constants.LOCAL_RVM_HOME_FOLDER_NAME);
+    }
+    final String specialPath = determinePathUsingEnvVariable(env);
+    if (specialPath != null) {
+      paths.add(specialPath);
+    }
+
+    final StringBuilder sb = new StringBuilder();
+    for (String path : paths) {
+      sb.append(path).append('=');
+      appendFileState(sb, new File(path));
+      appendFileState(sb, new File(path + RVM_BIN_FOLDER_RELATIVE_PATH + "/rvm"));
+      // list of installed rubies is reported too
+      appendFileState(sb, new File(path, SharedRVMUtil.Constants.RVM_RUBIES_FOLDER_NAME));
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
+  private static void appendFileState(@NotNull final StringBuilder sb, @NotNull final File file) {
+    try {
+      final BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+      // file key is inode on unix, so replaced installation is noticed even if modification time is preserved
+      sb.append(attributes.fileKey()).append(':').append(attributes.lastModifiedTime().toMillis()).append(';');
+    } catch (IOException e) {
+      sb.append("-;");
+    }
+  }
+
   @Nullable
   public static String determinePathUsingEnvVariable(@NotNull final Map<String, String> env) {
     // custom path defined by env variable
@@ -4,14 +4,15 @@ package jetbrains.buildServer.agent.ruby.rvm.impl;
 
 import com.intellij.openapi.diagnostic.Logger;
 import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 import jetbrains.buildServer.ExecResult;
 import jetbrains.buildServer.agent.rakerunner.RakeTasksBuildService;
 import jetbrains.buildServer.agent.rakerunner.scripting.*;
-import jetbrains.buildServer.agent.rakerunner.utils.EnvUtil;
 import jetbrains.buildServer.agent.ruby.RubySdk;
+import jetbrains.buildServer.agent.ruby.RubySdkRegistry;
 import jetbrains.buildServer.agent.ruby.rvm.RVMInfo;
 import jetbrains.buildServer.agent.ruby.rvm.util.RVMInfoUtil;
 import org.jetbrains.annotations.NotNull;
@@ -26,29 +27,33 @@ public class RVMRCBasedRubySdkImpl extends RVMRubySdkImpl {
 
   private static final String TEST_RVM_SHELL_SCRIPT = ". $rvm_path/scripts/rvm && cd %s && rvm current";
   private static final Logger LOG = Logger.getInstance(RVMRCBasedRubySdkImpl.class.getName());
-  private static final Map<SdkDescriptor, RubySdk> ourCache = new HashMap<SdkDescriptor, RubySdk>();
+  private static final String REGISTRY_KIND = "rvmrc";
 
   @NotNull
   private final String myPathToRVMRCFolder;
   private final ShellBasedRubyScriptRunner myShellBasedRubyScriptRunner;
 
   public static void cache(final RubySdk sdk, final Map<String, String> env, final String pathToRVMRCFolder) {
-    ourCache.put(new SdkDescriptor(pathToRVMRCFolder, env), sdk);
-  }
-
-  public static void clearCache() {
-    ourCache.clear();
+    RubySdkRegistry.getInstance().register(REGISTRY_KIND, pathToRVMRCFolder, env, getWatchedFiles(pathToRVMRCFolder), sdk);
   }
 
   public static RubySdk getOrCreate(@NotNull final String pathToRVMRCFolder, @NotNull final Map<String, String> env)
     throws RakeTasksBuildService.MyBuildFailureException {
-    final RubySdk cached = ourCache.get(new SdkDescriptor(pathToRVMRCFolder, env));
-    if (cached != null) {
-      return cached;
-    }
-    final RubySdk sdk = createAndSetup(pathToRVMRCFolder, Collections.unmodifiableMap(env));
-    cache(sdk, env, pathToRVMRCFolder);
-    return sdk;
+    return RubySdkRegistry.getInstance().getOrCreate(
+      REGISTRY_KIND, pathToRVMRCFolder, env, getWatchedFiles(pathToRVMRCFolder),
+      new RubySdkRegistry.SdkFactory() {
+        @NotNull
+        public RubySdk createSdk() throws RakeTasksBuildService.MyBuildFailureException {
+          return createAndSetup(pathToRVMRCFolder, Collections.unmodifiableMap(env));
+        }
+      });
+  }
+
+  @NotNull
+  private static Collection<File> getWatchedFiles(@NotNull final String pathToRVMRCFolder) {
+    return Arrays.asList(new File(pathToRVMRCFolder, ".rvmrc"),
+                         new File(pathToRVMRCFolder, ".ruby-version"),
+                         new File(pathToRVMRCFolder, ".ruby-gemset"));
   }
 
   private static RubySdk createAndSetup(@NotNull final String pathToRVMRCFolder, @NotNull final Map<String, String> env)
@@ -118,35 +123,6 @@ public class RVMRCBasedRubySdkImpl extends RVMRubySdkImpl {
     return myShellBasedRubyScriptRunner;
   }
 
-  private static final class SdkDescriptor {
-    private final String myPathToRVMRCFolder;
-    private final Map<String, String> myEnv;
-
-    private SdkDescriptor(@NotNull final String pathToRVMRCFolder, @NotNull final Map<String, String> env) {
-      myPathToRVMRCFolder = pathToRVMRCFolder;
-      myEnv = EnvUtil.getCompactEnvMap(env);
-    }
-
-    @Override
-    public boolean equals(final Object o) {
-      if (this == o) {
-        return true;
-      }
-      if (o == null || getClass() != o.getClass()) {
-        return false;
-      }
-
-      final SdkDescriptor that = (SdkDescriptor)o;
-
-      return myPathToRVMRCFolder.equals(that.myPathToRVMRCFolder) && myEnv.equals(that.myEnv);
-    }
-
-    @Override
-    public int hashCode() {
-      return 31 * myPathToRVMRCFolder.hashCode() + myEnv.hashCode();
-    }
-  }
-
   private class MyRvmShellRunner extends RvmShellRunner {
     public MyRvmShellRunner() {
       super(RVMPathsSettings.getRVMNullSafe());
@@ -3,9 +3,6 @@
 package jetbrains.buildServer.agent.ruby.rvm.impl;
 
 import java.io.File;
-import jetbrains.buildServer.agent.rakerunner.scripting.RubyScriptRunner;
-import jetbrains.buildServer.agent.rakerunner.scripting.RvmShellRunner;
-import jetbrains.buildServer.agent.rakerunner.scripting.ShellBasedRubyScriptRunner;
 import jetbrains.buildServer.agent.ruby.RubyVersionManager;
 import jetbrains.buildServer.agent.ruby.impl.RubySdkImpl;
 import jetbrains.buildServer.agent.ruby.rvm.RVMRubySdk;
@@ -23,37 +20,16 @@ public class RVMRubySdkImpl extends RubySdkImpl implements RVMRubySdk {
   private final String myGemset;
   @NotNull
   private final String myName;
-  @NotNull
-  private final ShellBasedRubyScriptRunner myRubyScriptRunner;
-
 
   public RVMRubySdkImpl(@NotNull final File home, @NotNull final String name, @Nullable final String gemset) {
     super(home, null);
     myName = name;
     myGemset = gemset;
-    myRubyScriptRunner = new ShellBasedRubyScriptRunner(new RvmShellRunner(RVMPathsSettings.getRVMNullSafe()) {
-      @NotNull
-      @Override
-      protected String[] createProcessArguments(@NotNull final String rvmShellEx,
-                                                @NotNull final String workingDirectory,
-                                                @NotNull final File scriptFile) {
-        return new String[]{rvmShellEx, getName(), scriptFile.getAbsolutePath()};
-      }
-    });
   }
   public RVMRubySdkImpl(@NotNull final File executable) {
     super(executable, true);
     myName = RVMSupportUtil.RVM_SYSTEM_INTERPRETER;
     myGemset = null;
-    myRubyScriptRunner = new ShellBasedRubyScriptRunner(new RvmShellRunner(RVMPathsSettings.getRVMNullSafe()) {
-      @NotNull
-      @Override
-      protected String[] createProcessArguments(@NotNull final String rvmShellEx,
-                                                @NotNull final String workingDirectory,
-                                                @NotNull final File scriptFile) {
-        return new String[]{rvmShellEx, getName(), scriptFile.getAbsolutePath()};
-      }
-    });
   }
 
   @NotNull
@@ -76,10 +52,4 @@ public class RVMRubySdkImpl extends RubySdkImpl implements RVMRubySdk {
            : myName + RVMSupportUtil.getGemsetSeparator() + myGemset;
   }
 
-  @NotNull
-  @Override
-  public RubyScriptRunner getScriptRunner() {
-    return myRubyScriptRunner;
-  }
-
 }
\ No newline at end of file
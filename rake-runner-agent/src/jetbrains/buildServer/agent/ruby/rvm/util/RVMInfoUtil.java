@@ -1,14 +1,12 @@
-
-
 package jetbrains.buildServer.agent.ruby.rvm.util;
 
 import java.util.HashMap;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import jetbrains.buildServer.ExecResult;
 import jetbrains.buildServer.agent.rakerunner.scripting.ScriptingRunnersProvider;
 import jetbrains.buildServer.agent.rakerunner.scripting.ShellScriptRunner;
+import jetbrains.buildServer.agent.rakerunner.utils.TextUtil;
 import jetbrains.buildServer.agent.ruby.rvm.RVMInfo;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -20,25 +18,71 @@ public class RVMInfoUtil {
 
   public static final Pattern INFO_LINE_PATTERN = Pattern.compile("^[ \\t]*(\\w+):[ \\t]*\"(.*)\"[ \\t]*$");
 
+  /**
+   * Output of {@link #INFO_SCRIPT} consists of sections, each section starts with line {@link #SECTION_PREFIX}&lt;section name&gt;
+   */
+  public static final String SECTION_PREFIX = "##rvm.";
+  private static final String CURRENT_SECTION = "current";
+
+  /**
+   * Gathers 'rvm current' and all 'rvm info' sections in one shell run
+   */
+  public static final String INFO_SCRIPT = createInfoScript();
+
   @NotNull
   public static RVMInfo gatherInfoUnderRvmShell(@NotNull final String directoryWithRvmrcFile,
                                                 @Nullable final Map<String, String> envVariables) {
     final ShellScriptRunner shellScriptRunner = ScriptingRunnersProvider.getRVMDefault().getShellScriptRunner();
-    RVMInfo info = new RVMInfo(shellScriptRunner.run("rvm current", directoryWithRvmrcFile, envVariables).getStdout().trim());
-    for (RVMInfo.Section section : RVMInfo.Section.values()) {
-      final ExecResult output = shellScriptRunner.run("rvm info " + section.name(), directoryWithRvmrcFile, envVariables);
-      final String stdout = output.getStdout();
-      Map<String, String> ret = new HashMap<String, String>();
-      for (String line : stdout.split("\n")) {
+    return parseInfo(shellScriptRunner.run(INFO_SCRIPT, directoryWithRvmrcFile, envVariables).getStdout());
+  }
+
+  @NotNull
+  public static RVMInfo parseInfo(@NotNull final String output) {
+    String current = "";
+    final Map<RVMInfo.Section, Map<String, String>> sections = new HashMap<RVMInfo.Section, Map<String, String>>();
+    Map<String, String> values = null;
+    boolean isCurrentSection = false;
+    for (String line : TextUtil.splitByLines(output)) {
+      if (line.startsWith(SECTION_PREFIX)) {
+        final String name = line.substring(SECTION_PREFIX.length()).trim();
+        isCurrentSection = CURRENT_SECTION.equals(name);
+        values = null;
+        for (RVMInfo.Section section : RVMInfo.Section.values()) {
+          if (section.name().equals(name)) {
+            values = new HashMap<String, String>();
+            sections.put(section, values);
+            break;
+          }
+        }
+      } else if (isCurrentSection) {
+        if (current.length() == 0 && line.trim().length() > 0) {
+          current = line.trim();
+        }
+      } else if (values != null) {
         final Matcher matcher = INFO_LINE_PATTERN.matcher(line);
-        if (!matcher.find()) {
-          continue;
+        if (matcher.find()) {
+          values.put(matcher.group(1), matcher.group(2));
         }
-        ret.put(matcher.group(1), matcher.group(2));
       }
-      info.setSection(section, ret);
+    }
+
+    final RVMInfo info = new RVMInfo(current);
+    for (RVMInfo.Section section : RVMInfo.Section.values()) {
+      final Map<String, String> sectionValues = sections.get(section);
+      info.setSection(section, sectionValues != null ? sectionValues : new HashMap<String, String>());
     }
     return info;
   }
 
-}
\ No newline at end of file
+  @NotNull
+  private static String createInfoScript() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append("echo '").append(SECTION_PREFIX).append(CURRENT_SECTION).append("'\n");
+    sb.append("rvm current\n");
+    for (RVMInfo.Section section : RVMInfo.Section.values()) {
+      sb.append("echo '").append(SECTION_PREFIX).append(section.name()).append("'\n");
+      sb.append("rvm info ").append(section.name()).append('\n');
+    }
+    return sb.toString();
+  }
+}
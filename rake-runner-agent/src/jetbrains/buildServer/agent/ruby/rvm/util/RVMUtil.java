@@ -8,6 +8,7 @@ import java.util.regex.Pattern;
 import jetbrains.buildServer.util.CollectionsUtil;
 import jetbrains.buildServer.util.Converter;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * @author Vladislav.Rassokhin
@@ -16,7 +17,77 @@ import org.jetbrains.annotations.NotNull;
 public class RVMUtil {
   @NotNull
   public static Map<Pattern, String> convertListKnownIntoResolvingMap(@NotNull final String stdout) {
-    final List<String> list = CollectionsUtil.convertAndFilterNulls(Arrays.asList(stdout.split("\n")), new Converter<String, String>() {
+    final HashMap<Pattern, String> map = new LinkedHashMap<Pattern, String>();
+    for (final String line : parseListKnown(stdout)) {
+      final Pair<String, String> pair = convertRVMRegexToRegexAndFullName(line);
+
+      map.put(Pattern.compile(pair.first), pair.second);
+    }
+    return map;
+  }
+
+  /**
+   * Same as {@link #convertListKnownIntoResolvingMap(String)}, but all names matched by each pattern are precomputed,
+   * so name is resolved with one lookup. If name is matched by several patterns, first one wins.
+   */
+  @NotNull
+  public static Map<String, String> convertListKnownIntoNamesIndex(@NotNull final String stdout) {
+    final Map<String, String> index = new HashMap<String, String>();
+    for (final String line : parseListKnown(stdout)) {
+      final List<String> names = expandRVMRegex(line);
+      if (names == null) {
+        continue;
+      }
+      final String fullName = convertRVMRegexToRegexAndFullName(line).second;
+      for (String name : names) {
+        if (!index.containsKey(name)) {
+          index.put(name, fullName);
+        }
+      }
+    }
+    return index;
+  }
+
+  /**
+   * @return all names matched by rvm name pattern with optional '[...]' parts or null if pattern is malformed
+   */
+  @Nullable
+  public static List<String> expandRVMRegex(@NotNull final String line) {
+    final List<List<String>> stack = new ArrayList<List<String>>();
+    List<String> current = Collections.singletonList("");
+    for (final StringTokenizer tokenizer = new StringTokenizer(line, "[]", true); tokenizer.hasMoreTokens(); ) {
+      final String tok = tokenizer.nextToken();
+      if (tok.equals("[")) {
+        stack.add(current);
+        current = Collections.singletonList("");
+      } else if (tok.equals("]")) {
+        if (stack.isEmpty()) {
+          return null;
+        }
+        // optional part: either skipped or present
+        final List<String> outer = stack.remove(stack.size() - 1);
+        final List<String> expanded = new ArrayList<String>();
+        for (String prefix : outer) {
+          expanded.add(prefix);
+          for (String part : current) {
+            expanded.add(prefix + part);
+          }
+        }
+        current = expanded;
+      } else {
+        final List<String> appended = new ArrayList<String>(current.size());
+        for (String prefix : current) {
+          appended.add(prefix + tok);
+        }
+        current = appended;
+      }
+    }
+    return stack.isEmpty() ? current : null;
+  }
+
+  @NotNull
+  private static List<String> parseListKnown(@NotNull final String stdout) {
+    return CollectionsUtil.convertAndFilterNulls(Arrays.asList(stdout.split("\n")), new Converter<String, String>() {
       public String createFrom(@NotNull final String source) {
         String trim = source.trim();
         final int comment = trim.indexOf('#');
@@ -25,14 +96,44 @@ public class RVMUtil {
         return !trim.isEmpty() && !trim.startsWith("#") && !trim.contains(" ") ? trim : null;
       }
     });
+  }
 
-    final HashMap<Pattern, String> map = new LinkedHashMap<Pattern, String>();
-    for (final String line : list) {
-      final Pair<String, String> pair = convertRVMRegexToRegexAndFullName(line);
+  /**
+   * Parses project files the way RVM does: '.ruby-version' may contain gemset after '@',
+   * '.ruby-gemset' overrides it.
+   *
+   * @param rubyVersion content of '.ruby-version'
+   * @param rubyGemset  content of '.ruby-gemset' if it exists
+   * @return (ruby, gemset) pair, gemset is null for default gemset, or null if ruby isn't specified
+   */
+  @Nullable
+  public static Pair<String, String> parseRubyVersionFiles(@NotNull final String rubyVersion, @Nullable final String rubyGemset) {
+    final String version = getFirstSignificantLine(rubyVersion);
+    if (version == null) {
+      return null;
+    }
+    final int separator = version.indexOf('@');
+    final String ruby = separator >= 0 ? version.substring(0, separator) : version;
+    if (ruby.isEmpty()) {
+      return null;
+    }
+    String gemset = separator >= 0 ? version.substring(separator + 1) : null;
+    final String gemsetOverride = rubyGemset != null ? getFirstSignificantLine(rubyGemset) : null;
+    if (gemsetOverride != null) {
+      gemset = gemsetOverride;
+    }
+    return Pair.create(ruby, gemset == null || gemset.isEmpty() ? null : gemset);
+  }
 
-      map.put(Pattern.compile(pair.first), pair.second);
+  @Nullable
+  private static String getFirstSignificantLine(@NotNull final String content) {
+    for (String line : content.split("\n")) {
+      final String trim = line.trim();
+      if (!trim.isEmpty() && !trim.startsWith("#")) {
+        return trim;
+      }
     }
-    return map;
+    return null;
   }
 
   @NotNull
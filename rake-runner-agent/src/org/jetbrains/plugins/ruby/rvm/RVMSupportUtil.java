@@ -13,6 +13,8 @@ import jetbrains.buildServer.agent.rakerunner.utils.EnvironmentPatchableMap;
 import jetbrains.buildServer.agent.rakerunner.utils.RunnerUtil;
 import jetbrains.buildServer.agent.ruby.RubySdk;
 import jetbrains.buildServer.agent.ruby.SdkUtil;
+import jetbrains.buildServer.agent.ruby.rvm.RVMEnvironmentCache;
+import jetbrains.buildServer.agent.ruby.rvm.RVMEnvironmentFileResolver;
 import jetbrains.buildServer.agent.ruby.rvm.InstalledRVM;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -66,12 +68,20 @@ public class RVMSupportUtil {
         restricted.add(res);
       }
     }
-    final ExecResult env1 = RunnerUtil.run(null, env, rvm.getPath() + "/bin/rvm-shell", rvmRubyString, "-c", "env");
-    //noinspection ThrowableResultOfMethodCallIgnored
-    if (env1.getExitCode() != 0 || env1.getException() != null) {
-      throw new RuntimeException("Cannot fetch sdk environment: rvm-shell failed with output" + env1.getStderr());
+    final RVMEnvironmentCache cache = RVMEnvironmentCache.getInstance();
+    Map<String, String> modified = cache.get(rvm.getPath(), rvmRubyString, env);
+    if (modified == null) {
+      modified = RVMEnvironmentFileResolver.resolve(rvm.getPath(), rvmRubyString, env);
+      if (modified == null) {
+        final ExecResult env1 = RunnerUtil.run(null, env, rvm.getPath() + "/bin/rvm-shell", rvmRubyString, "-c", "env");
+        //noinspection ThrowableResultOfMethodCallIgnored
+        if (env1.getExitCode() != 0 || env1.getException() != null) {
+          throw new RuntimeException("Cannot fetch sdk environment: rvm-shell failed with output" + env1.getStderr());
+        }
+        modified = EnvUtil.parse(env1.getStdout());
+      }
+      cache.put(rvm.getPath(), rvmRubyString, env, modified);
     }
-    final Map<String, String> modified = EnvUtil.parse(env1.getStdout());
     return EnvUtil.mergeIntoNewEnv(modified, env, restricted);
   }
 
@@ -6,6 +6,7 @@ import com.intellij.openapi.util.Condition;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.SystemInfo;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import jetbrains.buildServer.agent.ruby.rvm.InstalledRVM;
@@ -64,12 +65,7 @@ public class SharedRVMUtil {
     final Set<String> installed = rvm.getInstalledRubies();
     if (installed.contains(resolved)) {
       // check gemsets
-      for (String gemset : distName2GemsetsTable.getGemsets(resolved)) {
-        if (areGemsetsEqual(rvmrcGemset, gemset)) {
-          return Pair.create(resolved, gemset);
-        }
-      }
-      return Pair.create(resolved, null);
+      return Pair.create(resolved, distName2GemsetsTable.hasGemset(rvmrcGemset, resolved) ? rvmrcGemset : null);
     } else {
       // RVM cannot resolve such name into interpreter name
       // May be caused by RVM update (when installed 'ruby-1.8.7-pX' and requested '1.8.7' resolved into 'ruby-1.8.7-pY' by RVM)
@@ -83,15 +79,11 @@ public class SharedRVMUtil {
           return sdkRefMatchesManual(rvmrcSdkRef, data);
         }
       });
-      // First try more suitable interpreter
-      for (String dist : possible) {
+      // Use more suitable interpreter
+      if (!possible.isEmpty()) {
+        final String dist = possible.get(0);
         // check gemsets
-        for (String gemset : distName2GemsetsTable.getGemsets(dist)) {
-          if (areGemsetsEqual(rvmrcGemset, gemset)) {
-            return Pair.create(dist, gemset);
-          }
-        }
-        return Pair.create(dist, null);
+        return Pair.create(dist, distName2GemsetsTable.hasGemset(rvmrcGemset, dist) ? rvmrcGemset : null);
       }
     }
     return Pair.create(null,null);
@@ -149,11 +141,7 @@ public class SharedRVMUtil {
   public static void registerGemset(@NotNull final String rvmGemsSubFolder,
                                     @NotNull final Condition<String> isRVMDistCondition,
                                     @NotNull final RubyDistToGemsetTable rubyDist2Gemset) {
-    final int separatorIndex = rvmGemsSubFolder.indexOf(getGemsetSeparator());
-
-    // 1. [dist][@][gemset] or just [dist] with default gemset
-    final String distName = separatorIndex == -1 ? rvmGemsSubFolder : rvmGemsSubFolder.substring(0, separatorIndex);
-    final String gemset = separatorIndex == -1 ? null : rvmGemsSubFolder.substring(separatorIndex + 1);
+    final Pair<String, String> distAndGemset = parseGemsFolderName(rvmGemsSubFolder);
 
     // 2. after invoking rvm command with illegal arguments rvm creates tons of garbage
     // for such not existing sdks and gemsets
@@ -161,14 +149,30 @@ public class SharedRVMUtil {
     // such rake ruby sdks will not be registered in ~/.rvm/rubies
     //
     // so let's do initial spam-check:
-    if (!isRVMDistCondition.value(distName)) {
+    if (!isRVMDistCondition.value(distAndGemset.first)) {
       // garbage detected!
       return;
     }
 
     // 3. add gem to table. We won't ignore "global" gempath just to allow user install gems in
     // "shared" gem path from RubyMine
-    rubyDist2Gemset.putGemset(StringUtil.isEmpty(gemset) ? null : gemset, distName);
+    rubyDist2Gemset.putGemset(distAndGemset.second, distAndGemset.first);
+  }
+
+  public static void unregisterGemset(@NotNull final String rvmGemsSubFolder,
+                                      @NotNull final RubyDistToGemsetTable rubyDist2Gemset) {
+    final Pair<String, String> distAndGemset = parseGemsFolderName(rvmGemsSubFolder);
+    rubyDist2Gemset.removeGemset(distAndGemset.second, distAndGemset.first);
+  }
+
+  @NotNull
+  private static Pair<String, String> parseGemsFolderName(@NotNull final String rvmGemsSubFolder) {
+    final int separatorIndex = rvmGemsSubFolder.indexOf(getGemsetSeparator());
+
+    // 1. [dist][@][gemset] or just [dist] with default gemset
+    final String distName = separatorIndex == -1 ? rvmGemsSubFolder : rvmGemsSubFolder.substring(0, separatorIndex);
+    final String gemset = separatorIndex == -1 ? null : rvmGemsSubFolder.substring(separatorIndex + 1);
+    return Pair.create(distName, StringUtil.isEmpty(gemset) ? null : gemset);
   }
 
   public static boolean areGemsetsEqual(@Nullable final String gemset1,
@@ -201,42 +205,63 @@ public class SharedRVMUtil {
     return false;
   }
 
+  /**
+   * Table of gemsets for each ruby dist, default gemset is represented by null.
+   * Table is safe for concurrent use: gemsets of each dist are replaced on modification, so readers always see consistent sets.
+   */
   public static class RubyDistToGemsetTable {
-    private final Map<String, List<String>> myRubyDist2Gemset;
+    private final Map<String, Set<String>> myRubyDist2Gemset = new ConcurrentHashMap<String, Set<String>>();
 
     public RubyDistToGemsetTable() {
-      this(new HashMap<String, List<String>>());
     }
 
     public static RubyDistToGemsetTable emptyTable() {
-      return new RubyDistToGemsetTable(Collections.<String, List<String>>emptyMap());
+      return new RubyDistToGemsetTable();
     }
 
-    private RubyDistToGemsetTable(Map<String, List<String>> tableImpl) {
-      myRubyDist2Gemset = new HashMap<String, List<String>>();
+    public synchronized void putGemset(@Nullable final String gemsetName,
+                                       @NotNull final String distName) {
+      final Set<String> gemsets = myRubyDist2Gemset.get(distName);
+      if (gemsets != null && gemsets.contains(gemsetName)) {
+        return;
+      }
+      final Set<String> updated = gemsets == null ? new HashSet<String>(2) : new HashSet<String>(gemsets);
+      // put gemset
+      updated.add(gemsetName);
+      myRubyDist2Gemset.put(distName, Collections.unmodifiableSet(updated));
     }
 
-    public void putGemset(final String gemsetName,
-                          final String distName) {
-      List<String> gemsets = myRubyDist2Gemset.get(distName);
-      if (gemsets == null) {
-        gemsets = new ArrayList<String>(1);
-        myRubyDist2Gemset.put(distName, gemsets);
+    public synchronized void removeGemset(@Nullable final String gemsetName,
+                                          @NotNull final String distName) {
+      final Set<String> gemsets = myRubyDist2Gemset.get(distName);
+      if (gemsets == null || !gemsets.contains(gemsetName)) {
+        return;
       }
-      // put gemset
-      gemsets.add(gemsetName);
+      if (gemsets.size() == 1) {
+        myRubyDist2Gemset.remove(distName);
+        return;
+      }
+      final Set<String> updated = new HashSet<String>(gemsets);
+      updated.remove(gemsetName);
+      myRubyDist2Gemset.put(distName, Collections.unmodifiableSet(updated));
     }
 
     public boolean isEmpty() {
       return myRubyDist2Gemset.isEmpty();
     }
 
-    public List<String> getGemsets(final String distName) {
-      return myRubyDist2Gemset.get(distName);
+    @NotNull
+    public Set<String> getGemsets(final String distName) {
+      final Set<String> gemsets = myRubyDist2Gemset.get(distName);
+      return gemsets != null ? gemsets : Collections.<String>emptySet();
+    }
+
+    public boolean hasGemset(@Nullable final String gemsetName, final String distName) {
+      return getGemsets(distName).contains(gemsetName);
     }
 
     public Set<String> getDists() {
-      return myRubyDist2Gemset.keySet();
+      return Collections.unmodifiableSet(myRubyDist2Gemset.keySet());
     }
   }
-}
\ No newline at end of file
+}
@@ -87,6 +87,8 @@ public interface RakeRunnerConstants {
   @NonNls String CUSTOM_GEMFILE_RELATIVE_PATH = "system.teamcity.rake.runner.custom.gemfile";
   @NonNls String CUSTOM_BUNDLE_FOLDER_PATH = "system.teamcity.rake.runner.custom.bundle.path";
   @NonNls String GEMFILE_RESOLVE_IN_CHECKOUT_DIRECTORY = "system.teamcity.rake.runner.bundle.resolve.in.checkout.dir";
+  @NonNls String BUNDLER_STANDALONE_SETUP_PROPERTY = "system.teamcity.rake.runner.bundle.standalone.setup";
+  @NonNls String BUNDLE_CACHE_PROPERTY = "system.teamcity.rake.runner.bundle.cache";
 
   // Rake
   @NonNls String RAKE_CMDLINE_OPTIONS_RAKEFILE = "--rakefile";
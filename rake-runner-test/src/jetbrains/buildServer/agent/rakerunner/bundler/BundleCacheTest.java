@@ -0,0 +1,74 @@
+package jetbrains.buildServer.agent.rakerunner.bundler;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test(groups = "unix")
+public class BundleCacheTest {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private File myRoot;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myRoot = Files.createTempDirectory("bundle").toFile();
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    FileUtil.delete(myRoot);
+  }
+
+  @Test
+  public void testCopyTree() throws Exception {
+    final File from = new File(myRoot, "from");
+    final File gem = new File(from, "ruby/2.4.0/gems/rake-12.0.0/lib");
+    gem.mkdirs();
+    Files.write(new File(gem, "rake.rb").toPath(), "module Rake; end".getBytes(UTF8));
+    Files.write(new File(from, BundleCache.KEY_FILE_NAME).toPath(), "key".getBytes(UTF8));
+    Files.createSymbolicLink(new File(from, "ruby/2.4.0/gems/rake").toPath(), new File("rake-12.0.0").toPath());
+
+    final File to = new File(myRoot, "to");
+    BundleCache.copyTree(from.toPath(), to.toPath());
+
+    final File copy = new File(to, "ruby/2.4.0/gems/rake-12.0.0/lib/rake.rb");
+    assertTrue(copy.isFile());
+    // store and workspace must not share files
+    assertEquals(Files.getAttribute(copy.toPath(), "unix:nlink"), 1);
+    Files.write(copy.toPath(), "changed".getBytes(UTF8));
+    assertEquals(new String(Files.readAllBytes(new File(gem, "rake.rb").toPath()), UTF8), "module Rake; end");
+    assertEquals(Files.readSymbolicLink(new File(to, "ruby/2.4.0/gems/rake").toPath()).toString(), "rake-12.0.0");
+    // key describes folder, not its content
+    assertFalse(new File(to, BundleCache.KEY_FILE_NAME).exists());
+  }
+
+  @Test
+  public void testEvict() throws Exception {
+    final File cache = new File(myRoot, "cache");
+    final File oldest = createEntry(cache, "a", 3000);
+    final File middle = createEntry(cache, "b", 2000);
+    final File newest = createEntry(cache, "c", 1000);
+    final File interrupted = new File(cache, "d/bundle.tmp-1");
+    assertTrue(interrupted.mkdirs());
+
+    BundleCache.evict(cache, 2);
+
+    assertFalse(oldest.exists());
+    assertTrue(middle.isDirectory());
+    assertTrue(newest.isDirectory());
+    assertFalse(interrupted.getParentFile().exists());
+  }
+
+  private static File createEntry(final File cache, final String key, final long age) {
+    final File entry = new File(cache, key);
+    assertTrue(new File(entry, "bundle").mkdirs());
+    assertTrue(entry.setLastModified(System.currentTimeMillis() - age));
+    return entry;
+  }
+}
@@ -0,0 +1,71 @@
+package jetbrains.buildServer.agent.rakerunner.bundler;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class BundlerSetupCacheTest {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private File myRoot;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myRoot = Files.createTempDirectory("bundler").toFile();
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    FileUtil.delete(myRoot);
+  }
+
+  @Test
+  public void testToRubyString() throws Exception {
+    assertEquals(BundlerSetupCache.toRubyString("/gems/rake-12.0.0/lib"), "'/gems/rake-12.0.0/lib'");
+    assertEquals(BundlerSetupCache.toRubyString("/it's/#{here}"), "'/it\\'s/#{here}'");
+    assertEquals(BundlerSetupCache.toRubyString("C:\\gems\\"), "'C:\\\\gems\\\\'");
+  }
+
+  @Test
+  public void testWrite() throws Exception {
+    final File lib = new File(myRoot, "gems/rake-12.0.0/lib");
+    assertTrue(lib.mkdirs());
+    final File folder = new File(myRoot, "cache");
+    BundlerSetupCache.write(folder, Collections.singletonList(lib.getPath()), new File(myRoot, "Gemfile"));
+
+    assertTrue(BundlerSetupCache.isValid(folder));
+    final String script = new String(Files.readAllBytes(new File(folder, BundlerSetupCache.SETUP_SCRIPT_NAME + ".rb").toPath()), UTF8);
+    assertTrue(script.contains("  " + BundlerSetupCache.toRubyString(lib.getPath()) + ",\n"), script);
+    assertTrue(script.contains("ENV['BUNDLE_GEMFILE'] ||= " + BundlerSetupCache.toRubyString(new File(myRoot, "Gemfile").getAbsolutePath())), script);
+  }
+
+  @Test
+  public void testInvalidWhenGemRemoved() throws Exception {
+    final File rake = new File(myRoot, "gems/rake-12.0.0/lib");
+    final File rspec = new File(myRoot, "gems/rspec-3.6.0/lib");
+    assertTrue(rake.mkdirs());
+    assertTrue(rspec.mkdirs());
+    final File folder = new File(myRoot, "cache");
+    BundlerSetupCache.write(folder, Arrays.asList(rake.getPath(), rspec.getPath()), new File(myRoot, "Gemfile"));
+    assertTrue(BundlerSetupCache.isValid(folder));
+
+    FileUtil.delete(rspec);
+    assertFalse(BundlerSetupCache.isValid(folder));
+  }
+
+  @Test
+  public void testInvalidWhenLoadPathIsEmpty() throws Exception {
+    final File folder = new File(myRoot, "cache");
+    BundlerSetupCache.write(folder, Collections.<String>emptyList(), new File(myRoot, "Gemfile"));
+    assertFalse(BundlerSetupCache.isValid(folder));
+    assertFalse(BundlerSetupCache.isValid(new File(myRoot, "missing")));
+  }
+}
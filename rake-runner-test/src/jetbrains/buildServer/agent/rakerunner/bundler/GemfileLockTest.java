@@ -0,0 +1,73 @@
+package jetbrains.buildServer.agent.rakerunner.bundler;
+
+import java.util.List;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class GemfileLockTest {
+  private static final String LOCK =
+    "GIT\n" +
+    "  remote: https://github.com/rails/rails.git\n" +
+    "  revision: 5d2a9d3b1c0f4e6a7b8c9d0e1f2a3b4c5d6e7f80\n" +
+    "  branch: main\n" +
+    "  specs:\n" +
+    "    activesupport (6.1.0.alpha)\n" +
+    "      concurrent-ruby (~> 1.0, >= 1.0.2)\n" +
+    "\n" +
+    "PATH\n" +
+    "  remote: .\n" +
+    "  specs:\n" +
+    "    myapp (0.1.0)\n" +
+    "\n" +
+    "GEM\n" +
+    "  remote: https://rubygems.org/\n" +
+    "  specs:\n" +
+    "    concurrent-ruby (1.1.5)\n" +
+    "    nokogiri (1.10.4-x86_64-linux)\n" +
+    "      mini_portile2 (~> 2.4.0)\n" +
+    "    rake (12.3.3)\n" +
+    "\n" +
+    "PLATFORMS\n" +
+    "  ruby\n" +
+    "\n" +
+    "DEPENDENCIES\n" +
+    "  activesupport!\n" +
+    "  rake (~> 12.0)\n" +
+    "\n" +
+    "BUNDLED WITH\n" +
+    "   1.17.3\n";
+
+  @Test
+  public void testParse() throws Exception {
+    final List<GemfileLock.Spec> specs = GemfileLock.parse(LOCK);
+    assertEquals(specs.toString(), "[activesupport-6.1.0.alpha, concurrent-ruby-1.1.5, nokogiri-1.10.4-x86_64-linux, rake-12.3.3]");
+    assertEquals(specs.get(0).getGitFolderName(), "rails-5d2a9d3b1c0f");
+    assertNull(specs.get(1).getGitFolderName());
+    assertEquals(specs.get(2).getName(), "nokogiri");
+    assertEquals(specs.get(2).getVersion(), "1.10.4-x86_64-linux");
+    assertEquals(specs.get(2).getBaseVersion(), "1.10.4");
+    assertEquals(specs.get(2).getPlatform(), "x86_64-linux");
+    assertNull(specs.get(3).getPlatform());
+  }
+
+  @Test
+  public void testParseWindowsLineSeparators() throws Exception {
+    assertEquals(GemfileLock.parse(LOCK.replace("\n", "\r\n")).size(), 4);
+  }
+
+  @Test
+  public void testPlatformMatched() throws Exception {
+    assertTrue(GemfileLock.isPlatformMatched("x86_64-linux", "x86_64-linux"));
+    assertTrue(GemfileLock.isPlatformMatched("x86_64-linux", "x86_64-linux-gnu"));
+    assertTrue(GemfileLock.isPlatformMatched("x86_64-darwin", "x86_64-darwin19"));
+    assertTrue(GemfileLock.isPlatformMatched("universal-darwin", "arm64-darwin21"));
+    assertTrue(GemfileLock.isPlatformMatched("x86-mingw32", "i386-mingw32"));
+    assertTrue(GemfileLock.isPlatformMatched("java", "universal-java-1.8"));
+    assertFalse(GemfileLock.isPlatformMatched("x86_64-darwin", "arm64-darwin21"));
+    assertFalse(GemfileLock.isPlatformMatched("x64-mingw32", "x64-mingw-ucrt"));
+    assertFalse(GemfileLock.isPlatformMatched("java", "x86_64-linux"));
+    assertFalse(GemfileLock.isPlatformMatched("x86_64-linux", "universal-java-1.8"));
+  }
+}
@@ -0,0 +1,170 @@
+package jetbrains.buildServer.agent.rakerunner.scripting;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.agent.ruby.impl.RubySdkImpl;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class DaemonRubyScriptRunnerTest {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private File myRoot;
+  private int myRegistered;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myRoot = Files.createTempDirectory("daemon").toFile();
+    myRegistered = 0;
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    FileUtil.delete(myRoot);
+  }
+
+  @Test
+  public void testWriteRequest() throws Exception {
+    final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    DaemonRubyScriptRunner.writeRequest(stream, "puts '\u00fc'", "/tmp");
+    assertEquals(stream.toString("UTF-8"), "4 9\n/tmpputs '\u00fc'");
+  }
+
+  @Test
+  public void testReadResponse() throws Exception {
+    final InputStream stream = new ByteArrayInputStream("3 6 4\n\u00fc\u00f6x\nerr!0 0 0\n".getBytes(UTF8));
+    final ExecResult first = DaemonRubyScriptRunner.readResponse(stream);
+    assertEquals(first.getExitCode(), 3);
+    assertEquals(first.getStdout(), "\u00fc\u00f6x\n");
+    assertEquals(first.getStderr(), "err!");
+    // next response starts right after previous one
+    final ExecResult second = DaemonRubyScriptRunner.readResponse(stream);
+    assertEquals(second.getExitCode(), 0);
+    assertEquals(second.getStdout(), "");
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testReadMalformedResponse() throws Exception {
+    DaemonRubyScriptRunner.readResponse(new ByteArrayInputStream("ready\n".getBytes(UTF8)));
+  }
+
+  @Test(expectedExceptions = EOFException.class)
+  public void testReadTruncatedResponse() throws Exception {
+    DaemonRubyScriptRunner.readResponse(new ByteArrayInputStream("0 10 0\nshort".getBytes(UTF8)));
+  }
+
+  @Test
+  public void testReadTimeout() throws Exception {
+    final PipedOutputStream output = new PipedOutputStream();
+    final PipedInputStream input = new PipedInputStream(output);
+    final long start = System.currentTimeMillis();
+    try {
+      DaemonRubyScriptRunner.withTimeout(new Callable<String>() {
+        public String call() throws Exception {
+          return DaemonRubyScriptRunner.readLine(input);
+        }
+      }, 200);
+      fail("Timeout expected");
+    } catch (IOException ignored) {
+    } finally {
+      output.close();
+    }
+    assertTrue(System.currentTimeMillis() - start < 5000);
+  }
+
+  @Test
+  public void testFallbackWhenDaemonCannotStart() throws Exception {
+    final DaemonRubyScriptRunner runner = createRunner(new File(myRoot, "missing-ruby"));
+    assertEquals(runner.run("puts 1", myRoot.getPath(), null).getStdout(), "fallback");
+    assertEquals(myRegistered, 0);
+  }
+
+  @Test(groups = "unix")
+  public void testFallbackWhenForkUnsupported() throws Exception {
+    final DaemonRubyScriptRunner runner = createRunner(createStub("echo " + DaemonRubyScriptRunner.UNSUPPORTED));
+    assertEquals(runner.run("puts 1", myRoot.getPath(), null).getStdout(), "fallback");
+    assertEquals(runner.run("puts 1", myRoot.getPath(), null).getStdout(), "fallback");
+    assertEquals(myRegistered, 0);
+  }
+
+  @Test(groups = "unix")
+  public void testEvaluate() throws Exception {
+    final DaemonRubyScriptRunner runner = createRunner(createStub("echo " + DaemonRubyScriptRunner.READY,
+                                                                  "read header",
+                                                                  "printf '0 3 0\\nok\\n'",
+                                                                  "exec sleep 30"));
+    try {
+      final ExecResult result = runner.run("puts 'ok'", myRoot.getPath(), null);
+      assertEquals(result.getExitCode(), 0);
+      assertEquals(result.getStdout(), "ok\n");
+      assertEquals(myRegistered, 1);
+    } finally {
+      runner.stop();
+    }
+    assertEquals(myRegistered, 0);
+  }
+
+  @Test(groups = "unix")
+  public void testFallbackOnTimeout() throws Exception {
+    final DaemonRubyScriptRunner runner = createRunner(createStub("echo " + DaemonRubyScriptRunner.READY, "exec sleep 30"));
+    final long start = System.currentTimeMillis();
+    assertEquals(runner.run("sleep", myRoot.getPath(), null).getStdout(), "fallback");
+    assertTrue(System.currentTimeMillis() - start < 10000);
+    // hung daemon is killed
+    assertEquals(myRegistered, 0);
+  }
+
+  @NotNull
+  private DaemonRubyScriptRunner createRunner(@NotNull final File executable) {
+    final RubyScriptRunner fallback = new RubyScriptRunner() {
+      @NotNull
+      public ExecResult run(@NotNull final String script,
+                            @NotNull final String workingDirectory,
+                            @Nullable final Map<String, String> environment,
+                            @NotNull final String... rubyArgs) {
+        final ExecResult result = new ExecResult();
+        result.setStdout("fallback");
+        return result;
+      }
+    };
+    return new DaemonRubyScriptRunner(new RubySdkImpl(executable, false), fallback, new DaemonRubyScriptRunner.Manager() {
+      public int getIdleTimeoutSeconds() {
+        return 300;
+      }
+
+      public int getEvaluationTimeoutSeconds() {
+        return 1;
+      }
+
+      public void register(@NotNull final DaemonRubyScriptRunner runner) {
+        myRegistered++;
+      }
+
+      public void unregister(@NotNull final DaemonRubyScriptRunner runner) {
+        myRegistered--;
+      }
+    });
+  }
+
+  @NotNull
+  private File createStub(@NotNull final String... lines) throws IOException {
+    final File stub = new File(myRoot, "ruby");
+    final StringBuilder sb = new StringBuilder("#!/bin/sh\n");
+    for (String line : lines) {
+      sb.append(line).append('\n');
+    }
+    Files.write(stub.toPath(), sb.toString().getBytes(UTF8));
+    assertTrue(stub.setExecutable(true));
+    return stub;
+  }
+}
@@ -3,8 +3,15 @@
 package jetbrains.buildServer.agent.rakerunner.utils;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import jetbrains.buildServer.agent.rakerunner.RakeTasksBuildService;
+import jetbrains.buildServer.agent.rakerunner.bundler.GemfileLock;
+import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.TestFor;
 import jetbrains.slow.plugins.rakerunner.RakeRunnerTestUtil;
 import org.testng.annotations.Test;
@@ -40,5 +47,64 @@ public class BundlerUtilTest {
     params.clear();
   }
 
+  @Test
+  public void testCountMissingGems() throws Exception {
+    final File root = Files.createTempDirectory("gems").toFile();
+    try {
+      final File bundle = new File(root, "bundle/ruby/2.4.0");
+      final File sdk = new File(root, "sdk");
+      new File(bundle, "gems/rake-12.3.3").mkdirs();
+      new File(bundle, "bundler/gems/rails-5d2a9d3b1c0f").mkdirs();
+      new File(sdk, "gems/rspec-3.6.0").mkdirs();
+      new File(sdk, "specifications/default").mkdirs();
+      new File(sdk, "specifications/default/json-2.0.4.gemspec").createNewFile();
 
-}
\ No newline at end of file
+      final List<GemfileLock.Spec> specs = Arrays.asList(new GemfileLock.Spec("rake", "12.3.3", null),
+                                                         new GemfileLock.Spec("activesupport", "6.1.0.alpha", "rails-5d2a9d3b1c0f"),
+                                                         new GemfileLock.Spec("json", "2.0.4", null),
+                                                         new GemfileLock.Spec("nokogiri", "1.10.4", null));
+      final List<File> none = Collections.emptyList();
+      then(countMissingGems(specs, Arrays.asList(bundle, sdk), none)).isEqualTo(1);
+      then(countMissingGems(specs.subList(0, 3), Arrays.asList(bundle, sdk), none)).isEqualTo(0);
+      then(countMissingGems(specs, Arrays.asList(sdk), none)).isEqualTo(3);
+
+      // with configured bundle path only default gems of sdk are used
+      final List<GemfileLock.Spec> rspec = Arrays.asList(new GemfileLock.Spec("rspec", "3.6.0", null),
+                                                         new GemfileLock.Spec("json", "2.0.4", null));
+      then(countMissingGems(rspec, Arrays.asList(sdk), none)).isEqualTo(0);
+      then(countMissingGems(rspec, Arrays.asList(bundle), Arrays.asList(sdk))).isEqualTo(1);
+    } finally {
+      FileUtil.delete(root);
+    }
+  }
+
+  @Test
+  public void testCountMissingPlatformGems() throws Exception {
+    final File root = Files.createTempDirectory("gems").toFile();
+    try {
+      new File(root, "gems/nokogiri-1.10.4-x86_64-linux").mkdirs();
+      new File(root, "gems/ffi-1.11.1").mkdirs();
+
+      final List<GemfileLock.Spec> specs = Arrays.asList(new GemfileLock.Spec("nokogiri", "1.10.4", null),
+                                                         new GemfileLock.Spec("nokogiri", "1.10.4-x86_64-linux", null),
+                                                         new GemfileLock.Spec("nokogiri", "1.10.4-x64-mingw32", null),
+                                                         new GemfileLock.Spec("ffi", "1.11.1", null),
+                                                         new GemfileLock.Spec("ffi", "1.11.1-x64-mingw32", null),
+                                                         new GemfileLock.Spec("wdm", "0.1.1-x64-mingw32", null));
+      final Collection<List<GemfileLock.Spec>> gems = BundlerUtil.groupPlatformVariants(specs);
+      then(gems).hasSize(3);
+      final List<File> gemPaths = Collections.singletonList(root);
+      final List<File> none = Collections.emptyList();
+      then(BundlerUtil.countMissingGems(gems, gemPaths, none, "x86_64-linux")).isEqualTo(0);
+      // ruby variant of nokogiri isn't installed
+      then(BundlerUtil.countMissingGems(gems, gemPaths, none, null)).isEqualTo(1);
+      then(BundlerUtil.countMissingGems(gems, gemPaths, none, "x64-mingw32")).isEqualTo(2);
+    } finally {
+      FileUtil.delete(root);
+    }
+  }
+
+  private static int countMissingGems(final List<GemfileLock.Spec> specs, final List<File> gemPaths, final List<File> defaultGemPaths) {
+    return BundlerUtil.countMissingGems(BundlerUtil.groupPlatformVariants(specs), gemPaths, defaultGemPaths, null);
+  }
+}
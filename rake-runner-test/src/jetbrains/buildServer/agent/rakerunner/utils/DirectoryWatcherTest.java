@@ -0,0 +1,98 @@
+package jetbrains.buildServer.agent.rakerunner.utils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class DirectoryWatcherTest {
+  private static final long TIMEOUT = 10000;
+  private File myRoot;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myRoot = Files.createTempDirectory("watcher").toFile();
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    FileUtil.delete(myRoot);
+  }
+
+  @Test
+  public void testFirstCheckRequiresRescan() throws Exception {
+    final DirectoryWatcher.Key key = DirectoryWatcher.getInstance().watch(myRoot);
+    assertNull(key.pollChangedEntries());
+    assertEquals(key.pollChangedEntries().size(), 0);
+    assertFalse(key.pollChanged());
+  }
+
+  @Test
+  public void testChangedEntries() throws Exception {
+    final DirectoryWatcher.Key key = DirectoryWatcher.getInstance().watch(myRoot);
+    assertNull(key.pollChangedEntries());
+
+    assertTrue(new File(myRoot, "ruby-2.4.1").mkdir());
+    assertTrue(new File(myRoot, "ruby-2.5.0").mkdir());
+    assertEquals(waitForEntries(key, 2), setOf("ruby-2.4.1", "ruby-2.5.0"));
+
+    assertTrue(new File(myRoot, "ruby-2.4.1").delete());
+    assertEquals(waitForEntries(key, 1), setOf("ruby-2.4.1"));
+  }
+
+  @Test
+  public void testMissingDirectory() throws Exception {
+    final File directory = new File(myRoot, "rubies");
+    final DirectoryWatcher.Key key = DirectoryWatcher.getInstance().watch(directory);
+    assertNull(key.pollChangedEntries());
+    assertFalse(key.pollChanged());
+
+    // appeared directory is rescanned and watched since then
+    assertTrue(directory.mkdir());
+    assertNull(key.pollChangedEntries());
+    assertTrue(new File(directory, "ruby-2.4.1").mkdir());
+    assertEquals(waitForEntries(key, 1), setOf("ruby-2.4.1"));
+  }
+
+  @Test
+  public void testRemovedDirectory() throws Exception {
+    final File directory = new File(myRoot, "rubies");
+    assertTrue(directory.mkdir());
+    final DirectoryWatcher.Key key = DirectoryWatcher.getInstance().watch(directory);
+    assertNull(key.pollChangedEntries());
+
+    assertTrue(directory.delete());
+    final long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (key.pollChangedEntries() != null) {
+      assertTrue(System.currentTimeMillis() < deadline, "Directory removal wasn't noticed");
+      Thread.sleep(50);
+    }
+  }
+
+  private static Set<String> waitForEntries(final DirectoryWatcher.Key key, final int count) throws InterruptedException {
+    final Set<String> entries = new HashSet<String>();
+    final long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (entries.size() < count && System.currentTimeMillis() < deadline) {
+      final Set<String> changed = key.pollChangedEntries();
+      assertNotNull(changed, "Incremental changes expected");
+      entries.addAll(changed);
+      Thread.sleep(50);
+    }
+    return entries;
+  }
+
+  private static Set<String> setOf(final String... names) {
+    final Set<String> set = new HashSet<String>();
+    for (String name : names) {
+      set.add(name);
+    }
+    return set;
+  }
+}
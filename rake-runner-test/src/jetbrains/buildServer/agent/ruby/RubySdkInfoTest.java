@@ -0,0 +1,50 @@
+package jetbrains.buildServer.agent.ruby;
+
+import java.util.Map;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+public class RubySdkInfoTest {
+  @Test
+  public void testParse() throws Exception {
+    final RubySdkInfo info = RubySdkInfo.parse("##sdk.version\n" +
+                                               "2.4.1\n" +
+                                               "##sdk.platform\n" +
+                                               "x86_64-linux\n" +
+                                               "##sdk.gem_paths\n" +
+                                               "/home/user/.gem/ruby/2.4.0\n" +
+                                               "/opt/ruby/lib/ruby/gems/2.4.0\n" +
+                                               "##sdk.load_path\n" +
+                                               "/opt/ruby/lib/ruby/site_ruby/2.4.0\n" +
+                                               "/opt/ruby/lib/ruby/2.4.0\n" +
+                                               "##sdk.rbconfig\n" +
+                                               "ruby_version=2.4.0\n" +
+                                               "arch=x86_64-linux\n" +
+                                               "bindir=\n");
+    assertEquals(info.getVersion(), "2.4.1");
+    assertEquals(info.getPlatform(), "x86_64-linux");
+    assertEquals(info.getGemPaths(), new String[]{"/home/user/.gem/ruby/2.4.0", "/opt/ruby/lib/ruby/gems/2.4.0"});
+    assertEquals(info.getLoadPath(), new String[]{"/opt/ruby/lib/ruby/site_ruby/2.4.0", "/opt/ruby/lib/ruby/2.4.0"});
+    final Map<String, String> config = info.getRbConfig();
+    assertEquals(config.get("ruby_version"), "2.4.0");
+    assertEquals(config.get("arch"), "x86_64-linux");
+    assertEquals(config.get("bindir"), "");
+  }
+
+  @Test
+  public void testParseIgnoresNoiseAndEmptySections() throws Exception {
+    final RubySdkInfo info = RubySdkInfo.parse("warning: something\n" +
+                                               "##sdk.version\r\n" +
+                                               "1.9.3\r\n" +
+                                               "##sdk.unknown\n" +
+                                               "value\n" +
+                                               "##sdk.gem_paths\n");
+    assertEquals(info.getVersion(), "1.9.3");
+    assertTrue(info.hasSection(RubySdkInfo.Section.gem_paths));
+    assertEquals(info.getGemPaths().length, 0);
+    assertFalse(info.hasSection(RubySdkInfo.Section.load_path));
+    assertNull(info.getPlatform());
+    assertTrue(info.getRbConfig().isEmpty());
+  }
+}
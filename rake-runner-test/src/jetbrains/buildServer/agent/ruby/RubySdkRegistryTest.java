@@ -0,0 +1,170 @@
+package jetbrains.buildServer.agent.ruby;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.agent.rakerunner.RakeTasksBuildService;
+import jetbrains.buildServer.agent.ruby.impl.RubySdkImpl;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class RubySdkRegistryTest {
+  private static final Map<String, String> ENV = Collections.emptyMap();
+  private static final Collection<File> NO_FILES = Collections.emptyList();
+  private File myRoot;
+  private File myExecutable;
+  private ExecutorService myExecutor;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myRoot = Files.createTempDirectory("registry").toFile();
+    myExecutable = new File(myRoot, "ruby");
+    Files.write(myExecutable.toPath(), "#!/bin/sh\n".getBytes("UTF-8"));
+    myExecutor = Executors.newCachedThreadPool();
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    myExecutor.shutdownNow();
+    FileUtil.delete(myRoot);
+  }
+
+  @Test
+  public void testCreatedOnce() throws Exception {
+    final RubySdkRegistry registry = new RubySdkRegistry(4);
+    final CountingFactory factory = new CountingFactory();
+    final RubySdk first = registry.getOrCreate("rvm", "ruby-2.4.1", ENV, NO_FILES, factory);
+    assertSame(registry.getOrCreate("rvm", "ruby-2.4.1", ENV, NO_FILES, factory), first);
+    assertEquals(factory.myCount.get(), 1);
+
+    // variables affecting sdk are part of key
+    registry.getOrCreate("rvm", "ruby-2.4.1", Collections.singletonMap("GEM_HOME", "/gems"), NO_FILES, factory);
+    assertEquals(factory.myCount.get(), 2);
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    final RubySdkRegistry registry = new RubySdkRegistry(2);
+    final CountingFactory factory = new CountingFactory();
+    registry.getOrCreate("rvm", "a", ENV, NO_FILES, factory);
+    registry.getOrCreate("rvm", "b", ENV, NO_FILES, factory);
+    // 'a' becomes most recently used, so 'b' is evicted
+    registry.getOrCreate("rvm", "a", ENV, NO_FILES, factory);
+    registry.getOrCreate("rvm", "c", ENV, NO_FILES, factory);
+    assertEquals(factory.myCount.get(), 3);
+
+    registry.getOrCreate("rvm", "a", ENV, NO_FILES, factory);
+    assertEquals(factory.myCount.get(), 3);
+    registry.getOrCreate("rvm", "b", ENV, NO_FILES, factory);
+    assertEquals(factory.myCount.get(), 4);
+  }
+
+  @Test
+  public void testInvalidatedByWatchedFile() throws Exception {
+    final RubySdkRegistry registry = new RubySdkRegistry(4);
+    final CountingFactory factory = new CountingFactory();
+    final File rvmrc = new File(myRoot, ".rvmrc");
+    Files.write(rvmrc.toPath(), "rvm use 2.4.1".getBytes("UTF-8"));
+    final Collection<File> watched = Collections.singletonList(rvmrc);
+
+    registry.getOrCreate("rvmrc", rvmrc.getPath(), ENV, watched, factory);
+    registry.getOrCreate("rvmrc", rvmrc.getPath(), ENV, watched, factory);
+    assertEquals(factory.myCount.get(), 1);
+
+    assertTrue(rvmrc.setLastModified(rvmrc.lastModified() - 10000));
+    registry.getOrCreate("rvmrc", rvmrc.getPath(), ENV, watched, factory);
+    assertEquals(factory.myCount.get(), 2);
+
+    // interpreter is always watched
+    assertTrue(myExecutable.setLastModified(myExecutable.lastModified() - 10000));
+    registry.getOrCreate("rvmrc", rvmrc.getPath(), ENV, watched, factory);
+    assertEquals(factory.myCount.get(), 3);
+  }
+
+  @Test
+  public void testConcurrentRequestsOfSameSdk() throws Exception {
+    final RubySdkRegistry registry = new RubySdkRegistry(4);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final BlockingFactory factory = new BlockingFactory(started, release);
+
+    final Future<RubySdk> first = myExecutor.submit(createRequest(registry, "a", factory));
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    final Future<RubySdk> second = myExecutor.submit(createRequest(registry, "a", factory));
+    release.countDown();
+
+    assertSame(second.get(10, TimeUnit.SECONDS), first.get(10, TimeUnit.SECONDS));
+    assertEquals(factory.myCount.get(), 1);
+  }
+
+  @Test
+  public void testDifferentSdksAreNotSerialized() throws Exception {
+    final RubySdkRegistry registry = new RubySdkRegistry(4);
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final Future<RubySdk> slow = myExecutor.submit(createRequest(registry, "a", new BlockingFactory(started, release)));
+    try {
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+      // created while 'a' is still being created
+      final Future<RubySdk> fast = myExecutor.submit(createRequest(registry, "b", new CountingFactory()));
+      assertNotNull(fast.get(10, TimeUnit.SECONDS));
+      assertFalse(slow.isDone());
+    } finally {
+      release.countDown();
+    }
+    assertNotNull(slow.get(10, TimeUnit.SECONDS));
+  }
+
+  @NotNull
+  private static Callable<RubySdk> createRequest(@NotNull final RubySdkRegistry registry,
+                                                 @NotNull final String id,
+                                                 @NotNull final RubySdkRegistry.SdkFactory factory) {
+    return new Callable<RubySdk>() {
+      public RubySdk call() throws Exception {
+        return registry.getOrCreate("rvm", id, ENV, NO_FILES, factory);
+      }
+    };
+  }
+
+  private class CountingFactory implements RubySdkRegistry.SdkFactory {
+    final AtomicInteger myCount = new AtomicInteger();
+
+    @NotNull
+    public RubySdk createSdk() throws RakeTasksBuildService.MyBuildFailureException {
+      myCount.incrementAndGet();
+      return new RubySdkImpl(myExecutable, false);
+    }
+  }
+
+  private class BlockingFactory extends CountingFactory {
+    private final CountDownLatch myStarted;
+    private final CountDownLatch myRelease;
+
+    private BlockingFactory(@NotNull final CountDownLatch started, @NotNull final CountDownLatch release) {
+      myStarted = started;
+      myRelease = release;
+    }
+
+    @NotNull
+    @Override
+    public RubySdk createSdk() throws RakeTasksBuildService.MyBuildFailureException {
+      myStarted.countDown();
+      try {
+        myRelease.await();
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+      return super.createSdk();
+    }
+  }
+}
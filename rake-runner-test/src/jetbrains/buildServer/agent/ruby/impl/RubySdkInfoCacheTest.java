@@ -0,0 +1,115 @@
+package jetbrains.buildServer.agent.ruby.impl;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.agent.ruby.RubySdk;
+import jetbrains.buildServer.agent.ruby.RubySdkInfo;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class RubySdkInfoCacheTest {
+  private File myRoot;
+  private File myCacheDirectory;
+  private File myExecutable;
+  private RubySdk mySdk;
+  private RubySdkInfoCache myCache;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myRoot = Files.createTempDirectory("sdkinfo").toFile();
+    myCacheDirectory = new File(myRoot, "cache");
+    myExecutable = new File(myRoot, "bin/ruby");
+    assertTrue(myExecutable.getParentFile().mkdirs());
+    Files.write(myExecutable.toPath(), "#!/bin/sh\n".getBytes("UTF-8"));
+    mySdk = new RubySdkImpl(myExecutable, false);
+    myCache = new RubySdkInfoCache(myCacheDirectory);
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    FileUtil.delete(myRoot);
+  }
+
+  @Test
+  public void testHit() throws Exception {
+    final Map<String, String> env = createEnv();
+    myCache.put(mySdk, env, createInfo());
+
+    final RubySdkInfo info = myCache.get(mySdk, env);
+    assertNotNull(info);
+    assertEquals(info.getVersion(), "2.4.1");
+    assertEquals(info.getSection(RubySdkInfo.Section.gem_paths), Arrays.asList("/gems/a", "/gems/b"));
+    // empty section is preserved, absent one isn't invented
+    assertTrue(info.hasSection(RubySdkInfo.Section.load_path));
+    assertEquals(info.getSection(RubySdkInfo.Section.load_path).size(), 0);
+    assertFalse(info.hasSection(RubySdkInfo.Section.rbconfig));
+
+    // variables not affecting sdk are ignored
+    final Map<String, String> other = createEnv();
+    other.put("BUILD_NUMBER", "2");
+    assertNotNull(myCache.get(mySdk, other));
+  }
+
+  @Test
+  public void testMiss() throws Exception {
+    assertNull(myCache.get(mySdk, createEnv()));
+    // missing interpreter can't be fingerprinted
+    final RubySdk missing = new RubySdkImpl(new File(myRoot, "bin/jruby"), false);
+    myCache.put(missing, createEnv(), createInfo());
+    assertNull(myCache.get(missing, createEnv()));
+  }
+
+  @Test
+  public void testKeyChange() throws Exception {
+    myCache.put(mySdk, createEnv(), createInfo());
+
+    final Map<String, String> env = createEnv();
+    env.put("GEM_HOME", "/other/gems");
+    assertNull(myCache.get(mySdk, env));
+
+    // reinstalled interpreter
+    assertTrue(myExecutable.setLastModified(myExecutable.lastModified() - 10000));
+    assertNull(myCache.get(mySdk, createEnv()));
+  }
+
+  @Test
+  public void testCorruptedEntry() throws Exception {
+    myCache.put(mySdk, createEnv(), createInfo());
+    final File[] entries = myCacheDirectory.listFiles();
+    assertNotNull(entries);
+    assertEquals(entries.length, 1);
+
+    Files.write(entries[0].toPath(), "key=\\u00zz\n".getBytes("UTF-8"));
+    assertNull(myCache.get(mySdk, createEnv()));
+    assertFalse(entries[0].exists());
+
+    // entry without sections is dropped too
+    myCache.put(mySdk, createEnv(), new RubySdkInfo());
+    assertNull(myCache.get(mySdk, createEnv()));
+    assertEquals(myCacheDirectory.list().length, 0);
+  }
+
+  private static Map<String, String> createEnv() {
+    final Map<String, String> env = new HashMap<String, String>();
+    env.put("GEM_HOME", "/gems/a");
+    env.put("BUILD_NUMBER", "1");
+    return env;
+  }
+
+  private static RubySdkInfo createInfo() {
+    final RubySdkInfo info = new RubySdkInfo();
+    info.setSection(RubySdkInfo.Section.version, Collections.singletonList("2.4.1"));
+    info.setSection(RubySdkInfo.Section.gem_paths, Arrays.asList("/gems/a", "/gems/b"));
+    info.setSection(RubySdkInfo.Section.load_path, Collections.<String>emptyList());
+    return info;
+  }
+}
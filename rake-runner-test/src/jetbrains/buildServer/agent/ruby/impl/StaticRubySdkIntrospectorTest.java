@@ -0,0 +1,161 @@
+package jetbrains.buildServer.agent.ruby.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import jetbrains.buildServer.agent.ruby.RubySdkInfo;
+import jetbrains.buildServer.agent.ruby.rbenv.InstalledRbEnv;
+import jetbrains.buildServer.agent.ruby.rbenv.RbEnvRubySdk;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test(groups = "unix")
+public class StaticRubySdkIntrospectorTest {
+  private File myRoot;
+  private File myHome;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myRoot = Files.createTempDirectory("rbenv").toFile();
+    myHome = new File(myRoot, "versions/2.4.1");
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    FileUtil.delete(myRoot);
+  }
+
+  @Test
+  public void testIntrospectRbEnvMri() throws Exception {
+    createRbConfig("2.4.0", "x86_64-linux",
+                   "  CONFIG[\"MAJOR\"] = \"2\"",
+                   "  CONFIG[\"MINOR\"] = \"4\"",
+                   "  CONFIG[\"TEENY\"] = \"1\"",
+                   "  CONFIG[\"ruby_version\"] = \"2.4.0\"",
+                   "  CONFIG[\"arch\"] = \"x86_64-linux\"",
+                   "  CONFIG[\"ruby_install_name\"] = \"ruby\"",
+                   "  CONFIG[\"rubylibdir\"] = \"$(rubylibprefix)/$(ruby_version)\"");
+    createFile(new File(myHome, "include/ruby-2.4.0/ruby/version.h"),
+               "#define RUBY_API_VERSION_MAJOR 2",
+               "#define RUBY_API_VERSION_MINOR 4",
+               "#define RUBY_API_VERSION_TEENY 0");
+
+    final Map<String, String> env = Collections.singletonMap("HOME", "/home/user");
+    final RubySdkInfo info = StaticRubySdkIntrospector.introspect(createSdk(), env);
+    assertNotNull(info);
+    assertEquals(info.getVersion(), "2.4.1");
+    assertEquals(info.getPlatform(), "x86_64-linux");
+    assertEquals(info.getGemPaths(), new String[]{
+      new File("/home/user/.gem/ruby/2.4.0").getAbsolutePath(),
+      new File(myHome, "lib/ruby/gems/2.4.0").getAbsolutePath()
+    });
+    assertTrue(Arrays.asList(info.getLoadPath()).contains(new File(myHome, "lib/ruby/2.4.0").getAbsolutePath()));
+    assertEquals(info.getRbConfig().get("ruby_version"), "2.4.0");
+  }
+
+  @Test
+  public void testOldRbConfig() throws Exception {
+    createRbConfig("1.8", "i686-linux",
+                   "raise \"ruby lib version (1.8.7) doesn't match executable version (#{RUBY_VERSION})\" unless RUBY_VERSION == \"1.8.7\"",
+                   "  CONFIG[\"ruby_version\"] = \"1.8\"",
+                   "  CONFIG[\"arch\"] = \"i686-linux\"",
+                   "  CONFIG[\"ruby_install_name\"] = \"ruby\"");
+    final RubySdkInfo info = StaticRubySdkIntrospector.introspect(createSdk(), Collections.<String, String>emptyMap());
+    assertNotNull(info);
+    assertEquals(info.getVersion(), "1.8.7");
+  }
+
+  @Test
+  public void testFallbackWhenEnvOverridesGemPaths() throws Exception {
+    createRbConfig("2.4.0", "x86_64-linux",
+                   "  CONFIG[\"MAJOR\"] = \"2\"",
+                   "  CONFIG[\"MINOR\"] = \"4\"",
+                   "  CONFIG[\"TEENY\"] = \"1\"",
+                   "  CONFIG[\"ruby_version\"] = \"2.4.0\"",
+                   "  CONFIG[\"arch\"] = \"x86_64-linux\"",
+                   "  CONFIG[\"ruby_install_name\"] = \"ruby\"");
+    final Map<String, String> env = new HashMap<String, String>();
+    env.put("GEM_HOME", "/tmp/gems");
+    assertNull(StaticRubySdkIntrospector.introspect(createSdk(), env));
+  }
+
+  @Test
+  public void testFallbackForUnknownLayout() throws Exception {
+    createRbConfig("2.3.0", "java",
+                   "  CONFIG[\"ruby_version\"] = \"2.3.0\"",
+                   "  CONFIG[\"arch\"] = \"universal-java1.8\"",
+                   "  CONFIG[\"ruby_install_name\"] = \"jruby\"");
+    assertNull(StaticRubySdkIntrospector.introspect(createSdk(), Collections.<String, String>emptyMap()));
+  }
+
+  @Test
+  public void testIntrospectJRuby() throws Exception {
+    myHome = new File(myRoot, "versions/jruby-9.1.8.0");
+    createJRubyJar("version.jruby=9.1.8.0", "version.ruby=2.3.3");
+    //noinspection ResultOfMethodCallIgnored
+    new File(myHome, "lib/ruby/stdlib").mkdirs();
+
+    final Map<String, String> env = Collections.singletonMap("HOME", "/home/user");
+    final RubySdkInfo info = StaticRubySdkIntrospector.introspect(createSdk(), env);
+    assertNotNull(info);
+    assertEquals(info.getVersion(), "2.3.3");
+    assertEquals(info.getPlatform(), "java");
+    assertEquals(info.getGemPaths(), new String[]{
+      new File("/home/user/.gem/jruby/2.3.0").getAbsolutePath(),
+      new File(myHome, "lib/ruby/gems/shared").getAbsolutePath()
+    });
+    assertEquals(info.getLoadPath(), new String[]{
+      new File(myHome, "lib/ruby/2.3/site_ruby").getAbsolutePath(),
+      new File(myHome, "lib/ruby/stdlib").getAbsolutePath()
+    });
+  }
+
+  @Test
+  public void testJRubyOptsDisableIntrospection() throws Exception {
+    myHome = new File(myRoot, "versions/jruby-1.7.27");
+    createJRubyJar("version.jruby=1.7.27", "version.ruby1_8=1.8.7", "version.ruby1_9=1.9.3");
+    assertEquals(StaticRubySdkIntrospector.introspect(createSdk(), Collections.<String, String>emptyMap()).getVersion(), "1.9.3");
+    assertNull(StaticRubySdkIntrospector.introspect(createSdk(), Collections.singletonMap("JRUBY_OPTS", "--1.8")));
+  }
+
+  private RbEnvRubySdk createSdk() {
+    return new RbEnvRubySdk(myHome, myHome.getName(), new InstalledRbEnv(myRoot.getAbsolutePath(), InstalledRbEnv.Type.Special));
+  }
+
+  private void createRbConfig(final String abi, final String arch, final String... lines) throws IOException {
+    createFile(new File(myHome, "lib/ruby/" + abi + "/" + arch + "/rbconfig.rb"), lines);
+  }
+
+  private void createJRubyJar(final String... properties) throws IOException {
+    final File jar = new File(myHome, "lib/jruby.jar");
+    //noinspection ResultOfMethodCallIgnored
+    jar.getParentFile().mkdirs();
+    final JarOutputStream os = new JarOutputStream(new FileOutputStream(jar));
+    try {
+      os.putNextEntry(new JarEntry("org/jruby/jruby.properties"));
+      for (String property : properties) {
+        os.write((property + "\n").getBytes("ISO-8859-1"));
+      }
+      os.closeEntry();
+    } finally {
+      os.close();
+    }
+  }
+
+  private static void createFile(final File file, final String... lines) throws IOException {
+    //noinspection ResultOfMethodCallIgnored
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), Arrays.asList(lines));
+  }
+}
@@ -0,0 +1,73 @@
+package jetbrains.buildServer.agent.ruby.rbenv;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.SortedSet;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test(groups = "unix")
+public class RbEnvVersionsIndexTest {
+  private static final long TIMEOUT = 10000;
+  private File myRoot;
+  private File myVersions;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myRoot = Files.createTempDirectory("rbenv").toFile();
+    myVersions = new File(myRoot, "versions");
+    assertTrue(new File(myVersions, "2.4.1").mkdirs());
+    assertTrue(new File(myVersions, ".hidden").mkdirs());
+    Files.write(new File(myVersions, "README").toPath(), new byte[0]);
+    Files.createSymbolicLink(new File(myVersions, "2.4").toPath(), new File("2.4.1").toPath());
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    FileUtil.delete(myRoot);
+  }
+
+  @Test
+  public void testVersions() throws Exception {
+    final RbEnvVersionsIndex index = RbEnvVersionsIndex.getInstance(myVersions);
+    assertSame(RbEnvVersionsIndex.getInstance(myVersions), index);
+    assertEquals(index.getVersions().toString(), "[2.4, 2.4.1]");
+    // not reread while folder is unchanged
+    assertSame(index.getVersions(), index.getVersions());
+  }
+
+  @Test
+  public void testRefreshOnChange() throws Exception {
+    final RbEnvVersionsIndex index = RbEnvVersionsIndex.getInstance(myVersions);
+    assertEquals(index.getVersions().toString(), "[2.4, 2.4.1]");
+
+    assertTrue(new File(myVersions, "2.5.0").mkdir());
+    waitForVersions(index, "[2.4, 2.4.1, 2.5.0]");
+
+    FileUtil.delete(new File(myVersions, "2.4"));
+    waitForVersions(index, "[2.4.1, 2.5.0]");
+  }
+
+  @Test
+  public void testFolderAppears() throws Exception {
+    final File versions = new File(myRoot, "other/versions");
+    final RbEnvVersionsIndex index = RbEnvVersionsIndex.getInstance(versions);
+    assertTrue(index.getVersions().isEmpty());
+
+    assertTrue(new File(versions, "2.5.0").mkdirs());
+    waitForVersions(index, "[2.5.0]");
+  }
+
+  private static void waitForVersions(final RbEnvVersionsIndex index, final String expected) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + TIMEOUT;
+    SortedSet<String> versions;
+    while (!(versions = index.getVersions()).toString().equals(expected)) {
+      assertTrue(System.currentTimeMillis() < deadline, "Expected " + expected + " but was " + versions);
+      Thread.sleep(50);
+    }
+  }
+}
@@ -28,13 +28,16 @@ import static jetbrains.buildServer.agent.ruby.rvm.InstalledRVM.getDistrForNameF
 public class InstalledRVMTest {
 
   private Map<Pattern, String> myMap;
+  private Map<String, String> myIndex;
 
   private final Map<String, String> myCustomContents = new HashMap<String, String>();
   private InstalledRVM myMockedRVM;
 
   @BeforeClass
   public void beforeClass() throws Exception {
-    myMap = RVMUtil.convertListKnownIntoResolvingMap(FileUtil.readText(RakeRunnerTestUtil.getTestDataItemPath("rvm_list_known.txt")));
+    final String listKnown = FileUtil.readText(RakeRunnerTestUtil.getTestDataItemPath("rvm_list_known.txt"));
+    myMap = RVMUtil.convertListKnownIntoResolvingMap(listKnown);
+    myIndex = RVMUtil.convertListKnownIntoNamesIndex(listKnown);
   }
 
   @BeforeMethod
@@ -58,6 +61,7 @@ public class InstalledRVMTest {
   public void testResolving(final String from, final String to) throws Exception {
     Assert.assertNotNull(myMap, "Map should be initialized before this test");
     Assert.assertEquals(getDistrForNameFromMap(from, myMap), to);
+    Assert.assertEquals(myIndex.get(from), to);
   }
 
   @Test(dataProvider = "defaults")
@@ -2,10 +2,14 @@
 
 package jetbrains.buildServer.agent.ruby.rvm;
 
+import java.io.File;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
 import org.testng.annotations.Test;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
 
 public class RVMCommandLineProcessorTest {
   @Test
@@ -28,6 +32,25 @@ public class RVMCommandLineProcessorTest {
     doEscapeShellArgumentTest("\n", "\\\n");
   }
 
+  @Test
+  public void testFindExecutable() throws Exception {
+    final File sh = new File("/bin/sh");
+    if (!sh.canExecute()) {
+      return;
+    }
+    final Map<String, String> env = Collections.singletonMap("PATH", "/nonexistent:/bin");
+    assertEquals(RVMCommandLineProcessor.findExecutable("sh", env), "/bin/sh");
+    assertEquals(RVMCommandLineProcessor.findExecutable("/bin/sh", env), "/bin/sh");
+    assertNull(RVMCommandLineProcessor.findExecutable("./sh", env));
+    assertNull(RVMCommandLineProcessor.findExecutable("nonexistent-executable", env));
+    assertNull(RVMCommandLineProcessor.findExecutable("sh", Collections.<String, String>emptyMap()));
+    // current directory is searched before /bin
+    assertNull(RVMCommandLineProcessor.findExecutable("sh", Collections.singletonMap("PATH", ":/bin")));
+    assertNull(RVMCommandLineProcessor.findExecutable("sh", Collections.singletonMap("PATH", "bin:/bin")));
+    assertNull(RVMCommandLineProcessor.findExecutable("nonexistent-executable", Collections.singletonMap("PATH", "/bin:")));
+    assertEquals(RVMCommandLineProcessor.findExecutable("sh", Collections.singletonMap("PATH", "/bin::")), "/bin/sh");
+  }
+
   private void doFormatShellArgumentsTest(final String expected, final String... input) {
     StringBuilder builder = new StringBuilder();
     RVMCommandLineProcessor.doFormatShellArguments(builder, Arrays.asList(input));
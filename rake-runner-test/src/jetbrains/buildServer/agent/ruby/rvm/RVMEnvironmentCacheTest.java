@@ -0,0 +1,134 @@
+package jetbrains.buildServer.agent.ruby.rvm;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test
+public class RVMEnvironmentCacheTest {
+  private static final String RUBY = "ruby-2.4.1@rails";
+  private File myRvm;
+  private File myEnvironment;
+  private File myConfig;
+  private String myRvmPath;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myRvm = Files.createTempDirectory("rvm").toFile();
+    myRvmPath = myRvm.getPath();
+    myEnvironment = new File(myRvm, "environments/" + RUBY);
+    myConfig = new File(myRvm, "config/db");
+    write(myEnvironment, "export GEM_HOME='/rvm/gems/" + RUBY + "'\n");
+    write(myConfig, "niceness=0\n");
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    FileUtil.delete(myRvm);
+  }
+
+  @Test
+  public void testMiss() throws Exception {
+    final RVMEnvironmentCache cache = new RVMEnvironmentCache(4);
+    assertNull(cache.get(myRvmPath, RUBY, createInput("/usr/bin")));
+  }
+
+  @Test
+  public void testHitAppliesDifference() throws Exception {
+    final RVMEnvironmentCache cache = new RVMEnvironmentCache(4);
+    final Map<String, String> input = createInput("/usr/bin");
+    input.put("BUILD_NUMBER", "1");
+    input.put("MAGLEV_HOME", "/opt/maglev");
+    cache.put(myRvmPath, RUBY, input, createProduced(input));
+
+    // variables rvm doesn't depend on may differ
+    final Map<String, String> other = createInput("/usr/bin");
+    other.put("BUILD_NUMBER", "2");
+    other.put("MAGLEV_HOME", "/opt/maglev");
+    final Map<String, String> result = cache.get(myRvmPath, RUBY, other);
+
+    assertNotNull(result);
+    assertEquals(result.get("BUILD_NUMBER"), "2");
+    assertEquals(result.get("PATH"), "/rvm/gems/" + RUBY + "/bin:/usr/bin");
+    assertEquals(result.get("GEM_HOME"), "/rvm/gems/" + RUBY);
+    assertFalse(result.containsKey("MAGLEV_HOME"));
+    // input isn't modified
+    assertEquals(other.get("PATH"), "/usr/bin");
+  }
+
+  @Test
+  public void testNotApplicableToDifferentInput() throws Exception {
+    final RVMEnvironmentCache cache = new RVMEnvironmentCache(4);
+    final Map<String, String> input = createInput("/usr/bin");
+    cache.put(myRvmPath, RUBY, input, createProduced(input));
+
+    assertNull(cache.get(myRvmPath, RUBY, createInput("/usr/local/bin:/usr/bin")));
+    assertNull(cache.get(myRvmPath, "ruby-2.4.1", input));
+    final Map<String, String> withRvmVariable = createInput("/usr/bin");
+    withRvmVariable.put("rvm_path", myRvmPath);
+    assertNull(cache.get(myRvmPath, RUBY, withRvmVariable));
+    // original input is still served
+    assertNotNull(cache.get(myRvmPath, RUBY, input));
+  }
+
+  @Test
+  public void testEnvironmentFileChangeInvalidates() throws Exception {
+    final RVMEnvironmentCache cache = new RVMEnvironmentCache(4);
+    final Map<String, String> input = createInput("/usr/bin");
+    cache.put(myRvmPath, RUBY, input, createProduced(input));
+
+    assertTrue(myEnvironment.setLastModified(myEnvironment.lastModified() - 10000));
+    assertNull(cache.get(myRvmPath, RUBY, input));
+    // snapshot is dropped
+    assertTrue(myEnvironment.setLastModified(myEnvironment.lastModified() + 10000));
+    assertNull(cache.get(myRvmPath, RUBY, input));
+  }
+
+  @Test
+  public void testConfigChangeInvalidates() throws Exception {
+    final RVMEnvironmentCache cache = new RVMEnvironmentCache(4);
+    final Map<String, String> input = createInput("/usr/bin");
+    cache.put(myRvmPath, RUBY, input, createProduced(input));
+
+    assertTrue(myConfig.setLastModified(myConfig.lastModified() - 10000));
+    assertNull(cache.get(myRvmPath, RUBY, input));
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    final RVMEnvironmentCache cache = new RVMEnvironmentCache(1);
+    final Map<String, String> input = createInput("/usr/bin");
+    cache.put(myRvmPath, RUBY, input, createProduced(input));
+    cache.put(myRvmPath, "ruby-2.4.1", input, createProduced(input));
+
+    assertNull(cache.get(myRvmPath, RUBY, input));
+    assertNotNull(cache.get(myRvmPath, "ruby-2.4.1", input));
+  }
+
+  private static void write(final File file, final String text) throws Exception {
+    assertTrue(file.getParentFile().mkdirs());
+    Files.write(file.toPath(), text.getBytes("UTF-8"));
+  }
+
+  private static Map<String, String> createInput(final String path) {
+    final Map<String, String> env = new HashMap<String, String>();
+    env.put("PATH", path);
+    env.put("HOME", "/home/user");
+    return env;
+  }
+
+  private static Map<String, String> createProduced(final Map<String, String> input) {
+    final Map<String, String> env = new HashMap<String, String>(input);
+    env.put("PATH", "/rvm/gems/" + RUBY + "/bin:" + input.get("PATH"));
+    env.put("GEM_HOME", "/rvm/gems/" + RUBY);
+    env.remove("MAGLEV_HOME");
+    return env;
+  }
+}
@@ -0,0 +1,51 @@
+package jetbrains.buildServer.agent.ruby.rvm;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test(groups = "unix")
+public class RVMEnvironmentFileResolverTest {
+  private static final String RVM_PATH = "/home/user/.rvm";
+
+  @Test
+  public void testEnvironmentFile() throws Exception {
+    final Map<String, String> env = new HashMap<String, String>();
+    env.put("PATH", "/home/user/.rvm/gems/ruby-1.9.3-p551/bin:/home/user/.rvm/bin:/usr/bin");
+    env.put("HOME", "/home/user");
+    env.put("MAGLEV_HOME", "/opt/maglev");
+
+    final Map<String, String> result = RVMEnvironmentFileResolver.apply(
+      "export PATH ; PATH=\"/home/user/.rvm/gems/ruby-2.4.1@rails/bin:/home/user/.rvm/rubies/ruby-2.4.1/bin:$PATH\"\n" +
+      "export GEM_HOME ; GEM_HOME='/home/user/.rvm/gems/ruby-2.4.1@rails'\n" +
+      "export GEM_PATH ; GEM_PATH=\"${GEM_HOME}:/home/user/.rvm/gems/ruby-2.4.1@global\"\n" +
+      "export MY_RUBY_HOME=/home/user/.rvm/rubies/ruby-2.4.1\n" +
+      "# comment\n" +
+      "unset MAGLEV_HOME\n" +
+      "rvm_env_string='ruby-2.4.1@rails'\n" +
+      "export RUBY_VERSION ; RUBY_VERSION=\"$rvm_env_string\"\n",
+      RVM_PATH, env);
+
+    assertNotNull(result);
+    assertEquals(result.get("PATH"), "/home/user/.rvm/gems/ruby-2.4.1@rails/bin:/home/user/.rvm/rubies/ruby-2.4.1/bin:/home/user/.rvm/bin:/usr/bin");
+    assertEquals(result.get("GEM_HOME"), "/home/user/.rvm/gems/ruby-2.4.1@rails");
+    assertEquals(result.get("GEM_PATH"), "/home/user/.rvm/gems/ruby-2.4.1@rails:/home/user/.rvm/gems/ruby-2.4.1@global");
+    assertEquals(result.get("MY_RUBY_HOME"), "/home/user/.rvm/rubies/ruby-2.4.1");
+    assertEquals(result.get("RUBY_VERSION"), "ruby-2.4.1@rails");
+    assertEquals(result.get("HOME"), "/home/user");
+    assertFalse(result.containsKey("MAGLEV_HOME"));
+    // not exported
+    assertFalse(result.containsKey("rvm_env_string"));
+  }
+
+  @Test
+  public void testUnsupportedStatements() throws Exception {
+    final Map<String, String> env = new HashMap<String, String>();
+    assertNull(RVMEnvironmentFileResolver.apply("export GEM_HOME=`pwd`\n", RVM_PATH, env));
+    assertNull(RVMEnvironmentFileResolver.apply("export GEM_HOME=\"$(pwd)\"\n", RVM_PATH, env));
+    assertNull(RVMEnvironmentFileResolver.apply("export GEM_HOME=\"${HOME:-/tmp}\"\n", RVM_PATH, env));
+    assertNull(RVMEnvironmentFileResolver.apply("if [ -s x ]; then source x; fi\n", RVM_PATH, env));
+  }
+}
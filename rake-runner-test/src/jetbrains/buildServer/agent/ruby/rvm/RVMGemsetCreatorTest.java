@@ -0,0 +1,107 @@
+package jetbrains.buildServer.agent.ruby.rvm;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test(groups = "unix")
+public class RVMGemsetCreatorTest {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private File myHome;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myHome = Files.createTempDirectory("rvm").toFile();
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    FileUtil.delete(myHome);
+  }
+
+  @Test
+  public void testCreateGemset() throws Exception {
+    final String gems = myHome.getPath() + "/gems";
+    new File(myHome, "rubies/ruby-2.4.1/bin").mkdirs();
+    new File(gems, "ruby-2.4.1/gems").mkdirs();
+    new File(gems, "ruby-2.4.1/specifications").mkdirs();
+    new File(gems, "ruby-2.4.1/gems/rake-12.0.0").mkdirs();
+    new File(myHome, "environments").mkdirs();
+    new File(myHome, "wrappers/ruby-2.4.1").mkdirs();
+    write(new File(myHome, "environments/ruby-2.4.1"),
+          "export PATH ; PATH=\"" + gems + "/ruby-2.4.1/bin:" + gems + "/ruby-2.4.1@global/bin:" + myHome + "/rubies/ruby-2.4.1/bin:$PATH\"\n" +
+          "export GEM_HOME ; GEM_HOME='" + gems + "/ruby-2.4.1'\n" +
+          "export GEM_PATH ; GEM_PATH='" + gems + "/ruby-2.4.1:" + gems + "/ruby-2.4.1@global'\n" +
+          "export MY_RUBY_HOME ; MY_RUBY_HOME='" + myHome + "/rubies/ruby-2.4.1'\n" +
+          "rvm_env_string='ruby-2.4.1'\n" +
+          "export RUBY_VERSION ; RUBY_VERSION='ruby-2.4.1'\n");
+    write(new File(myHome, "wrappers/ruby-2.4.1/ruby"),
+          "#!/usr/bin/env bash\nsource \"" + gems + "/ruby-2.4.1/environment\"\nexec ruby \"$@\"\n");
+    Files.createSymbolicLink(new File(gems, "ruby-2.4.1/environment").toPath(), new File(myHome, "environments/ruby-2.4.1").toPath());
+
+    final InstalledRVM rvm = new InstalledRVM(myHome.getPath(), InstalledRVM.Type.Special);
+    assertTrue(RVMGemsetCreator.createGemset(rvm, "ruby-2.4.1", "rails"));
+
+    final File gemset = new File(gems, "ruby-2.4.1@rails");
+    assertTrue(new File(gemset, "gems").isDirectory());
+    assertTrue(new File(gemset, "specifications").isDirectory());
+    // gems aren't copied
+    assertEquals(new File(gemset, "gems").list().length, 0);
+    assertEquals(Files.readSymbolicLink(new File(gemset, "environment").toPath()).toString(),
+                 new File(myHome, "environments/ruby-2.4.1@rails").getPath());
+
+    final String environment = read(new File(myHome, "environments/ruby-2.4.1@rails"));
+    assertTrue(environment.contains("GEM_HOME='" + gems + "/ruby-2.4.1@rails'"), environment);
+    assertTrue(environment.contains("GEM_PATH='" + gems + "/ruby-2.4.1@rails:" + gems + "/ruby-2.4.1@global'"), environment);
+    assertTrue(environment.contains("PATH=\"" + gems + "/ruby-2.4.1@rails/bin:" + gems + "/ruby-2.4.1@global/bin:"), environment);
+    assertTrue(environment.contains("MY_RUBY_HOME='" + myHome + "/rubies/ruby-2.4.1'"), environment);
+    assertTrue(environment.contains("rvm_env_string='ruby-2.4.1@rails'"), environment);
+    assertTrue(environment.contains("RUBY_VERSION='ruby-2.4.1'"), environment);
+
+    assertTrue(read(new File(myHome, "wrappers/ruby-2.4.1@rails/ruby")).contains(gems + "/ruby-2.4.1@rails/environment"));
+    // lock file is kept, deleting it would make lock unsound
+    assertTrue(new File(myHome, "tmp/teamcity-gemsets.lock").isFile());
+
+    // already exists
+    assertTrue(RVMGemsetCreator.createGemset(rvm, "ruby-2.4.1", "rails"));
+  }
+
+  @Test
+  public void testNoDefaultGemset() throws Exception {
+    new File(myHome, "rubies/ruby-2.4.1").mkdirs();
+    final InstalledRVM rvm = new InstalledRVM(myHome.getPath(), InstalledRVM.Type.Special);
+    assertFalse(RVMGemsetCreator.createGemset(rvm, "ruby-2.4.1", "rails"));
+    assertFalse(new File(myHome, "gems/ruby-2.4.1@rails").exists());
+  }
+
+  @Test
+  public void testUnknownWrapperFormat() throws Exception {
+    final String gems = myHome.getPath() + "/gems";
+    new File(gems, "ruby-2.4.1/gems").mkdirs();
+    new File(myHome, "environments").mkdirs();
+    new File(myHome, "wrappers/ruby-2.4.1").mkdirs();
+    write(new File(myHome, "environments/ruby-2.4.1"), "export GEM_HOME ; GEM_HOME='" + gems + "/ruby-2.4.1'\n");
+    write(new File(myHome, "wrappers/ruby-2.4.1/ruby"), "#!/usr/bin/env bash\nsource \"$rvm_path/environments/default\"\n");
+
+    final InstalledRVM rvm = new InstalledRVM(myHome.getPath(), InstalledRVM.Type.Special);
+    assertFalse(RVMGemsetCreator.createGemset(rvm, "ruby-2.4.1", "rails"));
+    // nothing is written, so 'rvm use --create' starts from scratch
+    assertFalse(new File(myHome, "environments/ruby-2.4.1@rails").exists());
+    assertFalse(new File(myHome, "wrappers/ruby-2.4.1@rails").exists());
+    assertFalse(new File(gems, "ruby-2.4.1@rails").exists());
+  }
+
+  private static void write(final File file, final String content) throws Exception {
+    Files.write(file.toPath(), content.getBytes(UTF8));
+  }
+
+  private static String read(final File file) throws Exception {
+    return new String(Files.readAllBytes(file.toPath()), UTF8);
+  }
+}
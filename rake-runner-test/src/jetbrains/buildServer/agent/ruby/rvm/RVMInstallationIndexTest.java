@@ -0,0 +1,109 @@
+package jetbrains.buildServer.agent.ruby.rvm;
+
+import java.io.File;
+import java.nio.file.Files;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.plugins.ruby.rvm.SharedRVMUtil;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.*;
+
+@Test(groups = "unix")
+public class RVMInstallationIndexTest {
+  private static final long TIMEOUT = 10000;
+  private File myRvm;
+  private RVMInstallationIndex myIndex;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    myRvm = Files.createTempDirectory("rvm").toFile();
+    mkdir("rubies/ruby-2.4.1");
+    mkdir("gems/ruby-2.4.1");
+    mkdir("gems/ruby-2.4.1@global");
+    myIndex = RVMInstallationIndex.getInstance(myRvm.getPath());
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    FileUtil.delete(myRvm);
+  }
+
+  @Test
+  public void testInitialScan() throws Exception {
+    // not installed ruby
+    mkdir("gems/ruby-1.9.3@rails");
+
+    assertTrue(myIndex.isAvailable());
+    assertEquals(myIndex.getInstalledRubies().toString(), "[ruby-2.4.1]");
+    final SharedRVMUtil.RubyDistToGemsetTable table = myIndex.getGemsetsTable();
+    assertTrue(table.hasGemset(null, "ruby-2.4.1"));
+    assertTrue(table.hasGemset("global", "ruby-2.4.1"));
+    assertEquals(table.getDists().size(), 1);
+  }
+
+  @Test
+  public void testIncrementalUpdate() throws Exception {
+    final SharedRVMUtil.RubyDistToGemsetTable table = myIndex.getGemsetsTable();
+    final int modificationCount = myIndex.getModificationCount();
+
+    mkdir("gems/ruby-2.4.1@rails");
+    waitForGemset("rails", "ruby-2.4.1", true);
+    // same table is updated in place
+    assertSame(myIndex.getGemsetsTable(), table);
+
+    FileUtil.delete(new File(myRvm, "gems/ruby-2.4.1@global"));
+    waitForGemset("global", "ruby-2.4.1", false);
+    assertSame(myIndex.getGemsetsTable(), table);
+    assertTrue(table.hasGemset(null, "ruby-2.4.1"));
+    assertEquals(myIndex.getModificationCount(), modificationCount);
+  }
+
+  @Test
+  public void testRescanOnNewRuby() throws Exception {
+    final SharedRVMUtil.RubyDistToGemsetTable table = myIndex.getGemsetsTable();
+    final int modificationCount = myIndex.getModificationCount();
+
+    // gemset created before its ruby is picked up by rescan
+    mkdir("gems/ruby-2.5.0");
+    mkdir("rubies/ruby-2.5.0");
+    final long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (!myIndex.getInstalledRubies().contains("ruby-2.5.0")) {
+      assertTrue(System.currentTimeMillis() < deadline, "New ruby wasn't noticed");
+      Thread.sleep(50);
+    }
+
+    assertTrue(myIndex.getModificationCount() > modificationCount);
+    final SharedRVMUtil.RubyDistToGemsetTable rescanned = myIndex.getGemsetsTable();
+    assertNotSame(rescanned, table);
+    assertTrue(rescanned.hasGemset(null, "ruby-2.5.0"));
+    assertTrue(rescanned.hasGemset("global", "ruby-2.4.1"));
+  }
+
+  @Test
+  public void testDefaultInterpreter() throws Exception {
+    assertNull(myIndex.getDefaultInterpreter());
+
+    mkdir("config");
+    Files.write(new File(myRvm, "config/alias").toPath(), "default=ruby-2.4.1@global\n".getBytes("UTF-8"));
+    final long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (myIndex.getDefaultInterpreter() == null) {
+      assertTrue(System.currentTimeMillis() < deadline, "Alias wasn't noticed");
+      Thread.sleep(50);
+    }
+    assertEquals(myIndex.getDefaultInterpreter(), "ruby-2.4.1");
+  }
+
+  private void waitForGemset(final String gemset, final String ruby, final boolean exists) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (myIndex.getGemsetsTable().hasGemset(gemset, ruby) != exists) {
+      assertTrue(System.currentTimeMillis() < deadline, "Gemset change wasn't noticed");
+      Thread.sleep(50);
+    }
+  }
+
+  private void mkdir(final String path) {
+    assertTrue(new File(myRvm, path).mkdirs());
+  }
+}
@@ -8,11 +8,13 @@ import jetbrains.slow.plugins.rakerunner.RakeRunnerTestUtil;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.util.Arrays;
 import java.util.Map;
 import java.util.regex.Pattern;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
 /**
@@ -41,6 +43,15 @@ public class RVMUtilTest {
     assertTrue(pair.second.matches(pair.first));
   }
 
+  @Test
+  public void testExpandRVMRegex() throws Exception {
+    assertEquals(RVMUtil.expandRVMRegex("jruby-1.6.8"), Arrays.asList("jruby-1.6.8"));
+    assertEquals(RVMUtil.expandRVMRegex("[ruby-]1.9.3[-p448]"), Arrays.asList("1.9.3", "1.9.3-p448", "ruby-1.9.3", "ruby-1.9.3-p448"));
+    assertEquals(RVMUtil.expandRVMRegex("ree[-1.8.7[-2012.02]]"), Arrays.asList("ree", "ree-1.8.7", "ree-1.8.7-2012.02"));
+    assertNull(RVMUtil.expandRVMRegex("[ruby-1.9.3"));
+    assertNull(RVMUtil.expandRVMRegex("ruby]-1.9.3"));
+  }
+
   @DataProvider
   public static String[][] regex() {
     return new String[][]{
@@ -54,4 +65,16 @@ public class RVMUtilTest {
       {"jruby-1.6.8", "\\Qjruby-1.6.8\\E", "jruby-1.6.8"},
     };
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testParseRubyVersionFiles() throws Exception {
+    assertEquals(RVMUtil.parseRubyVersionFiles("2.4.1\n", null), Pair.create("2.4.1", (String)null));
+    assertEquals(RVMUtil.parseRubyVersionFiles("ruby-2.4.1", null), Pair.create("ruby-2.4.1", (String)null));
+    assertEquals(RVMUtil.parseRubyVersionFiles("\n  ruby-2.4.1@rails  \n", null), Pair.create("ruby-2.4.1", "rails"));
+    assertEquals(RVMUtil.parseRubyVersionFiles("ruby-2.4.1@rails", "project\n"), Pair.create("ruby-2.4.1", "project"));
+    assertEquals(RVMUtil.parseRubyVersionFiles("jruby-9.1.8.0", "# comment\nproject"), Pair.create("jruby-9.1.8.0", "project"));
+    assertEquals(RVMUtil.parseRubyVersionFiles("2.4.1@", ""), Pair.create("2.4.1", (String)null));
+    assertNull(RVMUtil.parseRubyVersionFiles("\n\n", "project"));
+    assertNull(RVMUtil.parseRubyVersionFiles("@rails", null));
+  }
+}
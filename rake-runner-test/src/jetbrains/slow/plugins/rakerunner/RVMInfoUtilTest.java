@@ -23,6 +23,7 @@ import java.util.Map;
 @TestFor(testForClass = {RVMInfoUtil.class})
 @Test(groups = {"unix"})
 public class RVMInfoUtilTest {
+  private int myRunsCount;
 
   @Test(groups = {"unix"})
   public void testParsingOk() throws Exception {
@@ -56,6 +57,7 @@ public class RVMInfoUtilTest {
                 "    RUBYOPT:      \"-rauto_gem\"\n" +
                 "    gemset:       \"rails\"\n");
     try {
+      myRunsCount = 0;
       setupScriptingFactory(myCurrentName, infoMap);
 
       final RVMInfo info = RVMInfoUtil.gatherInfoUnderRvmShell("any", null);
@@ -68,6 +70,24 @@ public class RVMInfoUtilTest {
     }
   }
 
+  @Test(groups = {"unix"})
+  public void testParseInfo() throws Exception {
+    final RVMInfo info = RVMInfoUtil.parseInfo("##rvm.current\n" +
+                                               "ruby-2.4.1@rails\n" +
+                                               "##rvm.ruby\n" +
+                                               "  ruby:\n" +
+                                               "    interpreter:  \"ruby\"\n" +
+                                               "    version:      \"2.4.1p111\"\n" +
+                                               "##rvm.homes\n" +
+                                               "    gem:          \"/home/user/.rvm/gems/ruby-2.4.1@rails\"\n" +
+                                               "##rvm.unknown\n" +
+                                               "    gem:          \"/tmp\"\n");
+    Assert.assertEquals(info.getInterpreterName(), "ruby-2.4.1");
+    Assert.assertEquals(info.getSection(RVMInfo.Section.ruby).get("version"), "2.4.1p111");
+    Assert.assertEquals(info.getSection(RVMInfo.Section.homes).get("gem"), "/home/user/.rvm/gems/ruby-2.4.1@rails");
+    Assert.assertTrue(info.getSection(RVMInfo.Section.binaries).isEmpty());
+  }
+
   private void setupScriptingFactory(@NotNull final String currentOutput, @NotNull final Map<String, String> infoMap) {
     ScriptingRunnersProvider.setRVMDefault(new ScriptingRunnersProvider() {
 
@@ -85,27 +105,32 @@ public class RVMInfoUtilTest {
           public ExecResult run(@NotNull final String script,
                                 @NotNull final String workingDirectory,
                                 @Nullable final Map<String, String> environment) {
-            final String[] strings = script.split(" ");
-            Assert.assertTrue(strings.length >= 2);
-            Assert.assertEquals(strings[0], "rvm", "Must starts with 'rvm'");
-            if ("current".equals(strings[1])) {
-              final ExecResult result = new ExecResult();
-              result.setExitCode(0);
-              result.setStdout(currentOutput);
-              return result;
-            } else if ("info".equals(strings[1])) {
-              final String type = strings[2];
-              Assert.assertNotNull(type);
-              final String ret = infoMap.get(type);
-              Assert.assertNotNull(ret, "Not found: " + type);
-              final ExecResult result = new ExecResult();
-              result.setExitCode(0);
-              result.setStdout(ret);
-              return result;
-            } else {
-              Assert.fail("Mock does not supports command '" + script + "'");
-              return null;
+            Assert.assertEquals(++myRunsCount, 1, "All info must be gathered in one run");
+            final StringBuilder stdout = new StringBuilder();
+            for (String line : script.split("\n")) {
+              final String[] strings = line.split(" ");
+              Assert.assertTrue(strings.length >= 2);
+              if ("echo".equals(strings[0])) {
+                stdout.append(strings[1].replace("'", "")).append('\n');
+                continue;
+              }
+              Assert.assertEquals(strings[0], "rvm", "Must starts with 'rvm'");
+              if ("current".equals(strings[1])) {
+                stdout.append(currentOutput).append('\n');
+              } else if ("info".equals(strings[1])) {
+                final String type = strings[2];
+                Assert.assertNotNull(type);
+                final String ret = infoMap.get(type);
+                Assert.assertNotNull(ret, "Not found: " + type);
+                stdout.append(ret).append('\n');
+              } else {
+                Assert.fail("Mock does not supports command '" + line + "'");
+              }
             }
+            final ExecResult result = new ExecResult();
+            result.setExitCode(0);
+            result.setStdout(stdout.toString());
+            return result;
           }
         };
       }
@@ -2,6 +2,10 @@
 
 package org.jetbrains.plugins.ruby.rvm;
 
+import com.intellij.openapi.util.Condition;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import jetbrains.buildServer.util.TestFor;
 import junit.framework.Assert;
 import org.jetbrains.annotations.NotNull;
@@ -20,6 +24,30 @@ public class SharedRVMUtilTest {
     Assert.assertTrue(SharedRVMUtil.sdkRefMatchesManual(from, full));
   }
 
+  @Test
+  public void testGemsetsTable() throws Exception {
+    final Condition<String> installed = new Condition<String>() {
+      public boolean value(final String distName) {
+        return "ruby-2.1.0".equals(distName);
+      }
+    };
+    final SharedRVMUtil.RubyDistToGemsetTable table = new SharedRVMUtil.RubyDistToGemsetTable();
+    SharedRVMUtil.registerGemset("ruby-2.1.0", installed, table);
+    SharedRVMUtil.registerGemset("ruby-2.1.0@rails", installed, table);
+    SharedRVMUtil.registerGemset("ruby-2.1.0@rails", installed, table);
+    SharedRVMUtil.registerGemset("ruby-1.9.1@garbage", installed, table);
+
+    Assert.assertEquals(Collections.singleton("ruby-2.1.0"), table.getDists());
+    Assert.assertEquals(new HashSet<String>(Arrays.asList(null, "rails")), table.getGemsets("ruby-2.1.0"));
+    Assert.assertTrue(table.hasGemset(null, "ruby-2.1.0"));
+    Assert.assertTrue(table.getGemsets("ruby-1.9.1").isEmpty());
+
+    SharedRVMUtil.unregisterGemset("ruby-2.1.0@rails", table);
+    Assert.assertFalse(table.hasGemset("rails", "ruby-2.1.0"));
+    SharedRVMUtil.unregisterGemset("ruby-2.1.0", table);
+    Assert.assertTrue(table.isEmpty());
+  }
+
   @DataProvider
   public static String[][] data() {
     return new String[][]{